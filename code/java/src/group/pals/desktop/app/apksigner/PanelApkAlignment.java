@@ -15,8 +15,10 @@ import group.pals.desktop.app.apksigner.utils.Files;
 import group.pals.desktop.app.apksigner.utils.Preferences;
 import group.pals.desktop.app.apksigner.utils.Texts;
 import group.pals.desktop.app.apksigner.utils.ZipAlign;
+import group.pals.desktop.app.apksigner.utils.ZipAlign.ProgressEvent;
 import group.pals.desktop.app.apksigner.utils.ZipAlign.ZipAligner;
 import group.pals.desktop.app.apksigner.utils.ZipAlign.ZipAlignmentVerifier;
+import group.pals.desktop.app.apksigner.utils.ZipAlignmentPolicy;
 import group.pals.desktop.app.apksigner.utils.ui.Dlg;
 import group.pals.desktop.app.apksigner.utils.ui.FileDrop;
 import group.pals.desktop.app.apksigner.utils.ui.JEditorPopupMenu;
@@ -224,7 +226,7 @@ public class PanelApkAlignment extends JPanel {
             enableCommands(false);
 
             final ZipAlignmentVerifier verifier = new ZipAlignmentVerifier(
-                    mApkFile);
+                    mApkFile, ZipAlignmentPolicy.newApkPolicy());
             ServiceManager.registerThread(verifier);
             verifier.addNotification(new INotification() {
 
@@ -240,6 +242,10 @@ public class PanelApkAlignment extends JPanel {
                     case ZipAlignmentVerifier.MSG_DONE:
                         enableCommands(true);
                         break;
+                    case ZipAlignmentVerifier.MSG_PROGRESS:
+                        mTextInfo.append(((ProgressEvent) msg.obj)
+                                .formatEntries());
+                        break;
                     default:
                         if (!Texts.isEmpty(msg.detailedMessage))
                             mTextInfo.append(msg.detailedMessage);
@@ -256,6 +262,15 @@ public class PanelApkAlignment extends JPanel {
                                         .round((Double) msg.obj));
                             }// run()
                         });
+                    } else if (msg.id == ZipAlignmentVerifier.MSG_PROGRESS) {
+                        SwingUtilities.invokeLater(new Runnable() {
+
+                            @Override
+                            public void run() {
+                                mProgressBar.setValue((int) Math
+                                        .round(((ProgressEvent) msg.obj).progress));
+                            }// run()
+                        });
                     }// if
 
                     if (System.currentTimeMillis() - lastUpdate >= UI.DELAY_TIME_UPDATING_UI
@@ -319,7 +334,8 @@ public class PanelApkAlignment extends JPanel {
             resetOutputFields();
             enableCommands(false);
 
-            final ZipAligner zipAligner = new ZipAligner(mApkFile, outputFile);
+            final ZipAligner zipAligner = new ZipAligner(mApkFile,
+                    ZipAlignmentPolicy.newApkPolicy(), outputFile);
             ServiceManager.registerThread(zipAligner);
             zipAligner.addNotification(new INotification() {
 
@@ -334,6 +350,11 @@ public class PanelApkAlignment extends JPanel {
                         break;
                     case ZipAligner.MSG_DONE:
                         enableCommands(true);
+                        mProgressBar.setStringPainted(false);
+                        break;
+                    case ZipAligner.MSG_PROGRESS:
+                        mTextInfo.append(((ProgressEvent) msg.obj)
+                                .formatEntries());
                         break;
                     default:
                         if (!Texts.isEmpty(msg.detailedMessage))
@@ -351,6 +372,24 @@ public class PanelApkAlignment extends JPanel {
                                         .round((Double) msg.obj));
                             }// run()
                         });
+                    } else if (msg.id == ZipAligner.MSG_PROGRESS) {
+                        SwingUtilities.invokeLater(new Runnable() {
+
+                            @Override
+                            public void run() {
+                                final ProgressEvent event = (ProgressEvent) msg.obj;
+                                mProgressBar.setValue((int) Math
+                                        .round(event.progress));
+                                if (event.remainingTime >= 0) {
+                                    mProgressBar.setStringPainted(true);
+                                    mProgressBar.setString(Messages.getString(
+                                            R.string.pmsg_progress_with_speed,
+                                            Texts.percentToStr(event.progress),
+                                            Texts.sizeToStr(event.speed),
+                                            Texts.durationToStr(event.remainingTime)));
+                                }
+                            }// run()
+                        });
                     }// if
 
                     if (System.currentTimeMillis() - lastUpdate >= UI.DELAY_TIME_UPDATING_UI
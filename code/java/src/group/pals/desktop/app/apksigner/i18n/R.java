@@ -59,116 +59,131 @@ public class R {
         public static final int context_menu_paste = 0x0000001e;
         public static final int context_menu_select_all = 0x0000001f;
         public static final int country_code = 0x00000020;
-        public static final int creation_date = 0x00000021;
-        public static final int desc_apk_files = 0x00000022;
-        public static final int desc_jar_files = 0x00000023;
-        public static final int desc_jdk_path = 0x00000024;
-        public static final int desc_keystore_files = 0x00000025;
-        public static final int desc_load_apk_file = 0x00000026;
-        public static final int desc_load_key_file = 0x00000027;
-        public static final int desc_load_target_file = 0x00000028;
-        public static final int desc_save_as = 0x00000029;
-        public static final int desc_zip_files = 0x0000002a;
-        public static final int donation = 0x0000002b;
-        public static final int done = 0x0000002c;
-        public static final int entry_type = 0x0000002d;
-        public static final int error = 0x0000002e;
-        public static final int exit = 0x0000002f;
-        public static final int file = 0x00000030;
-        public static final int first_and_last_name = 0x00000031;
-        public static final int generate_keyfile = 0x00000032;
-        public static final int go = 0x00000033;
-        public static final int help = 0x00000034;
-        public static final int host = 0x00000035;
-        public static final int information = 0x00000036;
-        public static final int internet_connection = 0x00000037;
-        public static final int issuer = 0x00000038;
-        public static final int key_generator = 0x00000039;
-        public static final int key_tools = 0x0000003a;
-        public static final int keystore_provider = 0x0000003b;
-        public static final int keystore_type = 0x0000003c;
-        public static final int language = 0x0000003d;
-        public static final int list_entries = 0x0000003e;
-        public static final int msg_alias_is_empty = 0x0000003f;
-        public static final int msg_alias_password_is_empty = 0x00000040;
-        public static final int msg_alias_passwords_dont_match = 0x00000041;
-        public static final int msg_at_least_one_certificate_issuer_field_is_required = 0x00000042;
-        public static final int msg_cancelled_update = 0x00000043;
-        public static final int msg_cannot_save_a_file_here = 0x00000044;
-        public static final int msg_do_you_want_to_exit = 0x00000045;
-        public static final int msg_file_is_signed = 0x00000046;
-        public static final int msg_html_loading = 0x00000047;
-        public static final int msg_html_loading_fonts = 0x00000048;
-        public static final int msg_html_loading_language = 0x00000049;
-        public static final int msg_html_loading_theme = 0x0000004a;
-        public static final int msg_invalid_proxy_host = 0x0000004b;
-        public static final int msg_invalid_proxy_port = 0x0000004c;
-        public static final int msg_keyfile_doesnt_exist = 0x0000004d;
-        public static final int msg_keyfile_generated_successfully = 0x0000004e;
-        public static final int msg_load_a_file_to_sign = 0x0000004f;
-        public static final int msg_load_apk_file = 0x00000050;
-        public static final int msg_local_update_available = 0x00000051;
-        public static final int msg_password_is_empty = 0x00000052;
-        public static final int msg_passwords_dont_match = 0x00000053;
-        public static final int msg_restart_app_to_apply_new_language = 0x00000054;
-        public static final int msg_specify_target_file = 0x00000055;
-        public static final int msg_unknown_error_try_again = 0x00000056;
-        public static final int msg_update_cancelled = 0x00000057;
-        public static final int msg_update_cancelled_because_wrong_checksum = 0x00000058;
-        public static final int msg_update_finished = 0x00000059;
-        public static final int msg_updating = 0x0000005a;
-        public static final int msg_validity_must_be_larger_than_zero = 0x0000005b;
-        public static final int no = 0x0000005c;
-        public static final int ok = 0x0000005d;
-        public static final int organization = 0x0000005e;
-        public static final int organizational_unit = 0x0000005f;
-        public static final int owner = 0x00000060;
-        public static final int passed = 0x00000061;
-        public static final int password = 0x00000062;
-        public static final int pmsg_file_is_signed_but_cannot_be_renamed_to_new_one = 0x00000063;
-        public static final int pmsg_aligning_apk = 0x00000064;
-        public static final int pmsg_alignment_done = 0x00000065;
-        public static final int pmsg_app_name = 0x00000066;
-        public static final int pmsg_available_space_is_low = 0x00000067;
-        public static final int pmsg_confirm_aligning_file_not_apk = 0x00000068;
-        public static final int pmsg_donation = 0x00000069;
-        public static final int pmsg_error_details = 0x0000006a;
-        public static final int pmsg_error_generating_keyfile = 0x0000006b;
-        public static final int pmsg_error_signing_file = 0x0000006c;
-        public static final int pmsg_exception = 0x0000006d;
-        public static final int pmsg_file_not_exist = 0x0000006e;
-        public static final int pmsg_local_update_available = 0x0000006f;
-        public static final int pmsg_override_file = 0x00000070;
-        public static final int pmsg_sensitive_data_encryption = 0x00000071;
-        public static final int pmsg_there_is_x_service_running = 0x00000072;
-        public static final int pmsg_there_are_x_services_running = 0x00000073;
-        public static final int pmsg_update_filesize_exceeds_limit = 0x00000074;
-        public static final int pmsg_update_finished = 0x00000075;
-        public static final int pmsg_updating = 0x00000076;
-        public static final int pmsg_updating_with_percentage = 0x00000077;
-        public static final int pmsg_valid_from_until = 0x00000078;
-        public static final int pmsg_verifying_alignment_of_apk = 0x00000079;
-        public static final int pmsg_your_keystore_contains_x_entries = 0x0000007a;
-        public static final int pmsg_your_keystore_contains_x_entry = 0x0000007b;
-        public static final int port = 0x0000007c;
-        public static final int save_as = 0x0000007d;
-        public static final int serial_number = 0x0000007e;
-        public static final int settings = 0x0000007f;
-        public static final int sign = 0x00000080;
-        public static final int signature_algorithm_name = 0x00000081;
-        public static final int signer = 0x00000082;
-        public static final int state_or_province = 0x00000083;
-        public static final int target_file = 0x00000084;
-        public static final int updater_service = 0x00000085;
-        public static final int use_proxy = 0x00000086;
-        public static final int username = 0x00000087;
-        public static final int validity = 0x00000088;
-        public static final int verification_failed = 0x00000089;
-        public static final int verification_succesful = 0x0000008a;
-        public static final int verify = 0x0000008b;
-        public static final int version = 0x0000008c;
-        public static final int warning = 0x0000008d;
-        public static final int yes = 0x0000008e;
+        public static final int crc_error = 0x00000021;
+        public static final int creation_date = 0x00000022;
+        public static final int desc_apk_files = 0x00000023;
+        public static final int desc_jar_files = 0x00000024;
+        public static final int desc_jdk_path = 0x00000025;
+        public static final int desc_keystore_files = 0x00000026;
+        public static final int desc_load_apk_file = 0x00000027;
+        public static final int desc_load_key_file = 0x00000028;
+        public static final int desc_load_target_file = 0x00000029;
+        public static final int desc_save_as = 0x0000002a;
+        public static final int desc_zip_files = 0x0000002b;
+        public static final int donation = 0x0000002c;
+        public static final int done = 0x0000002d;
+        public static final int duplicate_finder_thread = 0x0000002e;
+        public static final int entry_type = 0x0000002f;
+        public static final int error = 0x00000030;
+        public static final int exit = 0x00000031;
+        public static final int file = 0x00000032;
+        public static final int first_and_last_name = 0x00000033;
+        public static final int generate_keyfile = 0x00000034;
+        public static final int go = 0x00000035;
+        public static final int help = 0x00000036;
+        public static final int host = 0x00000037;
+        public static final int information = 0x00000038;
+        public static final int internet_connection = 0x00000039;
+        public static final int issuer = 0x0000003a;
+        public static final int key_generator = 0x0000003b;
+        public static final int key_tools = 0x0000003c;
+        public static final int keystore_provider = 0x0000003d;
+        public static final int keystore_type = 0x0000003e;
+        public static final int language = 0x0000003f;
+        public static final int list_entries = 0x00000040;
+        public static final int msg_alias_is_empty = 0x00000041;
+        public static final int msg_alias_password_is_empty = 0x00000042;
+        public static final int msg_alias_passwords_dont_match = 0x00000043;
+        public static final int msg_apk_already_aligned = 0x00000044;
+        public static final int msg_at_least_one_certificate_issuer_field_is_required = 0x00000045;
+        public static final int msg_cancelled_update = 0x00000046;
+        public static final int msg_cannot_save_a_file_here = 0x00000047;
+        public static final int msg_do_you_want_to_exit = 0x00000048;
+        public static final int msg_file_is_signed = 0x00000049;
+        public static final int msg_html_loading = 0x0000004a;
+        public static final int msg_html_loading_fonts = 0x0000004b;
+        public static final int msg_html_loading_language = 0x0000004c;
+        public static final int msg_html_loading_theme = 0x0000004d;
+        public static final int msg_invalid_proxy_host = 0x0000004e;
+        public static final int msg_invalid_proxy_port = 0x0000004f;
+        public static final int msg_keyfile_doesnt_exist = 0x00000050;
+        public static final int msg_keyfile_generated_successfully = 0x00000051;
+        public static final int msg_load_a_file_to_sign = 0x00000052;
+        public static final int msg_load_apk_file = 0x00000053;
+        public static final int msg_local_update_available = 0x00000054;
+        public static final int msg_no_duplicate_entries = 0x00000055;
+        public static final int msg_output_copied_from_cache = 0x00000056;
+        public static final int msg_password_is_empty = 0x00000057;
+        public static final int msg_passwords_dont_match = 0x00000058;
+        public static final int msg_restart_app_to_apply_new_language = 0x00000059;
+        public static final int msg_specify_target_file = 0x0000005a;
+        public static final int msg_unknown_error_try_again = 0x0000005b;
+        public static final int msg_update_cancelled = 0x0000005c;
+        public static final int msg_update_cancelled_because_wrong_checksum = 0x0000005d;
+        public static final int msg_update_finished = 0x0000005e;
+        public static final int msg_updating = 0x0000005f;
+        public static final int msg_validity_must_be_larger_than_zero = 0x00000060;
+        public static final int no = 0x00000061;
+        public static final int ok = 0x00000062;
+        public static final int organization = 0x00000063;
+        public static final int organizational_unit = 0x00000064;
+        public static final int owner = 0x00000065;
+        public static final int passed = 0x00000066;
+        public static final int password = 0x00000067;
+        public static final int pmsg_file_is_signed_but_cannot_be_renamed_to_new_one = 0x00000068;
+        public static final int pmsg_aligning_apk = 0x00000069;
+        public static final int pmsg_alignment_done = 0x0000006a;
+        public static final int pmsg_app_name = 0x0000006b;
+        public static final int pmsg_applying_storage_policy = 0x0000006c;
+        public static final int pmsg_available_space_is_low = 0x0000006d;
+        public static final int pmsg_confirm_aligning_file_not_apk = 0x0000006e;
+        public static final int pmsg_donation = 0x0000006f;
+        public static final int pmsg_duplicate_group = 0x00000070;
+        public static final int pmsg_duplicates_found = 0x00000071;
+        public static final int pmsg_error_details = 0x00000072;
+        public static final int pmsg_error_generating_keyfile = 0x00000073;
+        public static final int pmsg_error_signing_file = 0x00000074;
+        public static final int pmsg_exception = 0x00000075;
+        public static final int pmsg_file_not_exist = 0x00000076;
+        public static final int pmsg_finding_duplicate_entries = 0x00000077;
+        public static final int pmsg_local_update_available = 0x00000078;
+        public static final int pmsg_override_file = 0x00000079;
+        public static final int pmsg_progress_with_speed = 0x0000007a;
+        public static final int pmsg_recompressing_entries = 0x0000007b;
+        public static final int pmsg_recompression_done = 0x0000007c;
+        public static final int pmsg_resuming_alignment = 0x0000007d;
+        public static final int pmsg_sensitive_data_encryption = 0x0000007e;
+        public static final int pmsg_storage_rule_result = 0x0000007f;
+        public static final int pmsg_there_is_x_service_running = 0x00000080;
+        public static final int pmsg_there_are_x_services_running = 0x00000081;
+        public static final int pmsg_update_filesize_exceeds_limit = 0x00000082;
+        public static final int pmsg_update_finished = 0x00000083;
+        public static final int pmsg_updating = 0x00000084;
+        public static final int pmsg_updating_with_percentage = 0x00000085;
+        public static final int pmsg_valid_from_until = 0x00000086;
+        public static final int pmsg_verifying_alignment_of_apk = 0x00000087;
+        public static final int pmsg_your_keystore_contains_x_entries = 0x00000088;
+        public static final int pmsg_your_keystore_contains_x_entry = 0x00000089;
+        public static final int port = 0x0000008a;
+        public static final int recompressed = 0x0000008b;
+        public static final int save_as = 0x0000008c;
+        public static final int serial_number = 0x0000008d;
+        public static final int settings = 0x0000008e;
+        public static final int sign = 0x0000008f;
+        public static final int signature_algorithm_name = 0x00000090;
+        public static final int signer = 0x00000091;
+        public static final int state_or_province = 0x00000092;
+        public static final int target_file = 0x00000093;
+        public static final int updater_service = 0x00000094;
+        public static final int use_proxy = 0x00000095;
+        public static final int username = 0x00000096;
+        public static final int validity = 0x00000097;
+        public static final int verification_failed = 0x00000098;
+        public static final int verification_succesful = 0x00000099;
+        public static final int verify = 0x0000009a;
+        public static final int version = 0x0000009b;
+        public static final int warning = 0x0000009c;
+        public static final int yes = 0x0000009d;
 
     }// string
 
@@ -41,11 +41,33 @@ public class BaseThread extends Thread {
      */
     public static final int MSG_ERROR = -3;
 
+    /**
+     * A progress event. {@link Message#obj} is a typed event, its class
+     * depends on the thread.
+     * 
+     * @since v1.8.6 beta
+     */
+    public static final int MSG_PROGRESS = -4;
+
+    /**
+     * Default maximum number of progress events per second.
+     * 
+     * @since v1.8.6 beta
+     */
+    public static final int DEFAULT_MAX_PROGRESS_RATE = 10;
+
     /**
      * All client notifications.
      */
     private final List<INotification> mNotifications = new ArrayList<INotification>();
 
+    /**
+     * Minimum interval between two progress events, in nanoseconds.
+     */
+    private long mProgressInterval = 1000000000L / DEFAULT_MAX_PROGRESS_RATE;
+    private long mLastProgressTime;
+    private boolean mProgressSent = false;
+
     /**
      * Adds new notification.
      * 
@@ -71,6 +93,59 @@ public class BaseThread extends Thread {
         return mNotifications.remove(notification);
     }// removeNotification()
 
+    /**
+     * Sets maximum number of progress events ({@link #MSG_PROGRESS}) per
+     * second. Events which come too early are coalesced into the next ones.
+     * Default is {@link #DEFAULT_MAX_PROGRESS_RATE}.
+     * 
+     * @param eventsPerSecond
+     *            the rate, {@code 0} for no limits.
+     * @return the instance of this thread, to allow chaining multiple calls
+     *         into a single statement.
+     * @since v1.8.6 beta
+     */
+    public BaseThread setMaxProgressRate(int eventsPerSecond) {
+        mProgressInterval = eventsPerSecond > 0 ? 1000000000L / eventsPerSecond
+                : 0;
+        return this;
+    }// setMaxProgressRate()
+
+    /**
+     * Checks if a progress event should be sent now. Threads should call this
+     * before building an event, so they don't pay for events which nobody
+     * receives.
+     * 
+     * @param force
+     *            {@code true} to ignore the rate limit, for example for the
+     *            last event.
+     * @return {@code true} if there are listeners and the rate limit allows
+     *         a new event, {@code false} otherwise.
+     * @since v1.8.6 beta
+     */
+    protected boolean isProgressDue(boolean force) {
+        if (mNotifications.isEmpty())
+            return false;
+        if (force || !mProgressSent || mProgressInterval <= 0)
+            return true;
+        return System.nanoTime() - mLastProgressTime >= mProgressInterval;
+    }// isProgressDue()
+
+    /**
+     * Sends a progress event ({@link #MSG_PROGRESS}) to all listeners.
+     * 
+     * @param event
+     *            the event.
+     * @return {@code true} if any of the listeners handled the message,
+     *         {@code false} otherwise.
+     * @see #isProgressDue(boolean)
+     * @since v1.8.6 beta
+     */
+    protected boolean sendProgress(Object event) {
+        mLastProgressTime = System.nanoTime();
+        mProgressSent = true;
+        return sendNotification(MSG_PROGRESS, event);
+    }// sendProgress()
+
     /**
      * Sends notification to all listeners.
      * 
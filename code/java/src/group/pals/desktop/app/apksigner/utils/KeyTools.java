@@ -263,4 +263,42 @@ public class KeyTools {
 
         return result;
     }// getAliases()
+
+    /**
+     * Gets the certificate of an alias from {@code keyFile}. The private key
+     * of the alias is recovered too, so this also checks {@code keypass}.
+     * 
+     * @param keyFile
+     *            the keyfile.
+     * @param keystoreType
+     *            the keystore type.
+     * @param storepass
+     *            the password.
+     * @param alias
+     *            the alias name.
+     * @param keypass
+     *            the alias password.
+     * @return the encoded certificate, or {@code null} if it can't be read,
+     *         or the private key can't be recovered with {@code keypass}.
+     */
+    public static byte[] getCertificate(File keyFile, String keystoreType,
+            char[] storepass, String alias, char[] keypass) {
+        try {
+            final InputStream inputStream = new BufferedInputStream(
+                    new FileInputStream(keyFile), Files.FILE_BUFFER);
+            try {
+                KeyStore keyStore = KeyStore.getInstance(keystoreType);
+                keyStore.load(inputStream, storepass);
+                if (keyStore.getKey(alias, keypass) == null)
+                    return null;
+
+                final Certificate certificate = keyStore.getCertificate(alias);
+                return certificate != null ? certificate.getEncoded() : null;
+            } finally {
+                inputStream.close();
+            }
+        } catch (Exception e) {
+            return null;
+        }
+    }// getCertificate()
 }
@@ -0,0 +1,537 @@
+/*
+ *    Copyright (C) 2012 Hai Bison
+ *
+ *    See the file LICENSE at the root directory of this project for copying
+ *    permission.
+ */
+
+package group.pals.desktop.app.apksigner.utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Content-addressed cache of results of operations on files (aligning,
+ * signing...), on disk.
+ * <p>
+ * A key is the digest of an input file's content and the parameters of an
+ * operation, see {@link #newKey(File, String...)}. Its value is a copy of the
+ * output file. The total size of values is bounded: least recently used ones
+ * are evicted when a new one is put. Files which are not in the index (left
+ * by jobs which crashed, for example) are deleted at the same time.
+ * </p>
+ * <p>
+ * The index (key, size and last access time of each value) is a
+ * {@link Properties} file in the cache directory. It is only read and
+ * written while holding a lock on {@link #LOCK_FILE} (and on this class, as
+ * file locks are held by the whole JVM), and is replaced atomically. So
+ * several threads and processes can share the same cache directory. Values
+ * are also copied from the cache while holding the lock, so they can't be
+ * evicted in the middle.
+ * </p>
+ *
+ * @author Hai Bison
+ * @since v1.8.6 beta
+ */
+public class ResultCache {
+
+    /**
+     * Default maximum size of a cache: {@code 1 GiB}.
+     */
+    public static final long DEFAULT_MAX_SIZE = 1024 * 1024 * 1024;
+
+    /**
+     * The index file.
+     */
+    public static final String INDEX_FILE = "index";
+
+    /**
+     * The file to lock while using the index.
+     */
+    public static final String LOCK_FILE = "index.lock";
+
+    /**
+     * The buffer to read input files while hashing them, {@code 1 MiB}.
+     */
+    private static final int HASH_BUFFER = 1024 * 1024;
+
+    /**
+     * The age after which a temporary file in the cache directory is
+     * considered left behind, {@code 24 hours}. Younger ones may be being
+     * written by other jobs.
+     */
+    private static final long STALE_TEMP_FILE_AGE = 24 * 60 * 60 * 1000;
+
+    private final File mDir;
+    private final long mMaxSize;
+
+    /**
+     * Creates new instance with maximum size of {@link #DEFAULT_MAX_SIZE}.
+     *
+     * @param dir
+     *            the cache directory, it will be created if needed.
+     */
+    public ResultCache(File dir) {
+        this(dir, DEFAULT_MAX_SIZE);
+    }// ResultCache()
+
+    /**
+     * Creates new instance.
+     *
+     * @param dir
+     *            the cache directory, it will be created if needed.
+     * @param maxSize
+     *            maximum total size of values, in bytes.
+     */
+    public ResultCache(File dir, long maxSize) {
+        if (maxSize < 0)
+            throw new IllegalArgumentException(String.format(
+                    "Invalid maximum size: %,d", maxSize));
+        mDir = dir;
+        mMaxSize = maxSize;
+    }// ResultCache()
+
+    /**
+     * Gets the cache directory.
+     *
+     * @return the cache directory.
+     */
+    public File getDir() {
+        return mDir;
+    }// getDir()
+
+    /**
+     * Makes a key from the content of an input file and the parameters of an
+     * operation. The file is read once, and hashed with
+     * {@link Hasher#SHA256}.
+     *
+     * @param input
+     *            the input file.
+     * @param params
+     *            the parameters, which should tell the operation and all of
+     *            its options which affect the output file.
+     * @return the key, in hexadecimal.
+     * @throws IOException
+     *             if any occurred.
+     */
+    public String newKey(File input, String... params) throws IOException {
+        final MessageDigest md = newDigest();
+
+        final RandomAccessFile raf = new RandomAccessFile(input, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            final ByteBuffer buf = ByteBuffer.allocate(HASH_BUFFER);
+            int read;
+            while ((read = channel.read(buf)) >= 0) {
+                md.update(buf.array(), 0, read);
+                buf.clear();
+            }
+        } finally {
+            raf.close();
+        }
+
+        final byte[] contentDigest = md.digest();
+        md.update(contentDigest);
+        for (String param : params) {
+            md.update((byte) 0);
+            md.update(String.valueOf(param).getBytes(Texts.UTF8));
+        }
+
+        final StringBuilder result = new StringBuilder();
+        for (byte b : md.digest())
+            result.append(String.format("%02x", b));
+        return result.toString();
+    }// newKey()
+
+    /**
+     * Copies the value of a key into {@code output}, from its current
+     * position, and marks the value as most recently used.
+     *
+     * @param key
+     *            the key.
+     * @param output
+     *            the output channel.
+     * @return {@code true} if the value has been copied, {@code false} if
+     *         the key is not in this cache.
+     * @throws IOException
+     *             if any occurred.
+     */
+    public boolean copyTo(String key, FileChannel output) throws IOException {
+        synchronized (ResultCache.class) {
+            final RandomAccessFile lock = lock();
+            try {
+                final Properties index = loadIndex();
+                if (index.getProperty(key) == null)
+                    return false;
+
+                final RandomAccessFile raf = new RandomAccessFile(
+                        getValueFile(key), "r");
+                try {
+                    final FileChannel input = raf.getChannel();
+                    final long size = input.size();
+                    long position = 0;
+                    while (position < size)
+                        position += input.transferTo(position, size
+                                - position, output);
+                } finally {
+                    raf.close();
+                }
+
+                index.setProperty(key, newIndexValue(getValueFile(key)
+                        .length()));
+                saveIndex(index);
+                return true;
+            } finally {
+                lock.close();
+            }
+        }// synchronized
+    }// copyTo()
+
+    /**
+     * Replaces {@code output} with the value of a key, atomically, and marks
+     * the value as most recently used.
+     *
+     * @param key
+     *            the key.
+     * @param output
+     *            the output file.
+     * @return {@code true} if the value has been copied, {@code false} if
+     *         the key is not in this cache.
+     * @throws IOException
+     *             if any occurred.
+     */
+    public boolean copyTo(String key, File output) throws IOException {
+        final File tempFile = File.createTempFile(output.getName() + '.',
+                ZipAlign.TEMP_FILE_SUFFIX, output.getAbsoluteFile()
+                        .getParentFile());
+        try {
+            final RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
+            try {
+                if (!copyTo(key, raf.getChannel()))
+                    return false;
+            } finally {
+                raf.close();
+            }
+
+            java.nio.file.Files.move(tempFile.toPath(), output.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } finally {
+            tempFile.delete();
+        }
+    }// copyTo()
+
+    /**
+     * Puts a copy of {@code file} into this cache as the value of a key,
+     * then evicts least recently used values until the total size is within
+     * the limit. Files which are larger than the limit are not put.
+     *
+     * @param key
+     *            the key.
+     * @param file
+     *            the file.
+     * @throws IOException
+     *             if any occurred.
+     */
+    public void put(String key, File file) throws IOException {
+        if (file.length() > mMaxSize)
+            return;
+
+        if (!mDir.isDirectory() && !mDir.mkdirs() && !mDir.isDirectory())
+            throw new IOException(String.format(
+                    "Cannot create cache directory \"%s\"", mDir));
+
+        /*
+         * Copy the file without holding the lock, then move it in.
+         */
+        final File tempFile = File.createTempFile(key + '.',
+                ZipAlign.TEMP_FILE_SUFFIX, mDir);
+        try {
+            java.nio.file.Files.copy(file.toPath(), tempFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+
+            synchronized (ResultCache.class) {
+                final RandomAccessFile lock = lock();
+                try {
+                    final Properties index = loadIndex();
+                    java.nio.file.Files.move(tempFile.toPath(), getValueFile(
+                            key).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                    index.setProperty(key, newIndexValue(getValueFile(key)
+                            .length()));
+                    deleteUnindexedFiles(index);
+                    evict(index, key);
+                    saveIndex(index);
+                } finally {
+                    lock.close();
+                }
+            }// synchronized
+        } finally {
+            tempFile.delete();
+        }
+    }// put()
+
+    /**
+     * Evicts least recently used values until the total size is within the
+     * limit. The caller must hold the lock.
+     *
+     * @param index
+     *            the index.
+     * @param keep
+     *            the key to keep, it is the most recently used one.
+     */
+    private void evict(final Properties index, String keep) {
+        final List<String> keys = new ArrayList<String>(
+                index.stringPropertyNames());
+        long totalSize = 0;
+        for (String key : keys)
+            totalSize += getSize(index, key);
+        if (totalSize <= mMaxSize)
+            return;
+
+        Collections.sort(keys, new Comparator<String>() {
+
+            @Override
+            public int compare(String lhs, String rhs) {
+                final long a = getLastAccess(index, lhs);
+                final long b = getLastAccess(index, rhs);
+                return a < b ? -1 : (a == b ? lhs.compareTo(rhs) : 1);
+            }// compare()
+        });
+
+        for (String key : keys) {
+            if (totalSize <= mMaxSize)
+                break;
+            if (key.equals(keep))
+                continue;
+
+            /*
+             * A value which can't be deleted (for example, it is being
+             * copied on Windows) is dropped from the index anyway, it will be
+             * replaced by the next put of the same key.
+             */
+            getValueFile(key).delete();
+            totalSize -= getSize(index, key);
+            index.remove(key);
+        }// for
+    }// evict()
+
+    /**
+     * Deletes files in the cache directory which are not values in the
+     * index, and temporary files older than {@link #STALE_TEMP_FILE_AGE}. So
+     * they don't take space beyond the limit. The caller must hold the lock.
+     *
+     * @param index
+     *            the index.
+     */
+    private void deleteUnindexedFiles(Properties index) {
+        final File[] files = mDir.listFiles();
+        if (files == null)
+            return;
+
+        final long staleTime = System.currentTimeMillis()
+                - STALE_TEMP_FILE_AGE;
+        for (File file : files) {
+            final String name = file.getName();
+            if (!file.isFile() || name.equals(INDEX_FILE)
+                    || name.equals(LOCK_FILE))
+                continue;
+
+            if (name.endsWith(ZipAlign.TEMP_FILE_SUFFIX)) {
+                if (file.lastModified() < staleTime)
+                    file.delete();
+            } else if (index.getProperty(name) == null)
+                file.delete();
+        }// for
+    }// deleteUnindexedFiles()
+
+    /**
+     * Gets the file which holds the value of a key.
+     *
+     * @param key
+     *            the key.
+     * @return the file.
+     */
+    private File getValueFile(String key) {
+        return new File(mDir, key);
+    }// getValueFile()
+
+    /**
+     * Locks the index. The lock is released by closing the returned file.
+     * The caller must hold the lock on this class.
+     *
+     * @return the lock file.
+     * @throws IOException
+     *             if any occurred.
+     */
+    private RandomAccessFile lock() throws IOException {
+        if (!mDir.isDirectory() && !mDir.mkdirs() && !mDir.isDirectory())
+            throw new IOException(String.format(
+                    "Cannot create cache directory \"%s\"", mDir));
+
+        final RandomAccessFile result = new RandomAccessFile(new File(mDir,
+                LOCK_FILE), "rw");
+        try {
+            result.getChannel().lock();
+        } catch (IOException e) {
+            result.close();
+            throw e;
+        }
+        return result;
+    }// lock()
+
+    /**
+     * Loads the index. Entries whose values are missing, or whose sizes
+     * don't match, are dropped. The caller must hold the lock.
+     *
+     * @return the index.
+     * @throws IOException
+     *             if any occurred.
+     */
+    private Properties loadIndex() throws IOException {
+        final Properties result = new Properties();
+        final File file = new File(mDir, INDEX_FILE);
+        if (!file.isFile())
+            return result;
+
+        final Reader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), Texts.UTF8));
+        try {
+            result.load(reader);
+        } catch (IllegalArgumentException e) {
+            /*
+             * The index is corrupted, start over.
+             */
+            result.clear();
+        } finally {
+            reader.close();
+        }
+
+        for (String key : result.stringPropertyNames())
+            if (!getValueFile(key).isFile()
+                    || getValueFile(key).length() != getSize(result, key))
+                result.remove(key);
+
+        return result;
+    }// loadIndex()
+
+    /**
+     * Saves the index, replacing the old one atomically. The caller must
+     * hold the lock.
+     *
+     * @param index
+     *            the index.
+     * @throws IOException
+     *             if any occurred.
+     */
+    private void saveIndex(Properties index) throws IOException {
+        final File file = new File(mDir, INDEX_FILE);
+        final File tempFile = new File(mDir, INDEX_FILE
+                + ZipAlign.TEMP_FILE_SUFFIX);
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(tempFile), Texts.UTF8));
+        try {
+            index.store(writer, null);
+        } finally {
+            writer.close();
+        }
+
+        java.nio.file.Files.move(tempFile.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }// saveIndex()
+
+    /**
+     * Makes the index value of a value which is used now.
+     *
+     * @param size
+     *            the size of the value.
+     * @return the index value: the size and the last access time.
+     */
+    private static String newIndexValue(long size) {
+        return String.format("%d %d", size, System.currentTimeMillis());
+    }// newIndexValue()
+
+    /**
+     * Gets the size of a value from the index.
+     *
+     * @param index
+     *            the index.
+     * @param key
+     *            the key.
+     * @return the size, or {@code -1} if the index value is invalid.
+     */
+    private static long getSize(Properties index, String key) {
+        return getIndexField(index, key, 0);
+    }// getSize()
+
+    /**
+     * Gets the last access time of a value from the index.
+     *
+     * @param index
+     *            the index.
+     * @param key
+     *            the key.
+     * @return the last access time, or {@code -1} if the index value is
+     *         invalid.
+     */
+    private static long getLastAccess(Properties index, String key) {
+        return getIndexField(index, key, 1);
+    }// getLastAccess()
+
+    /**
+     * Gets a field of an index value.
+     *
+     * @param index
+     *            the index.
+     * @param key
+     *            the key.
+     * @param field
+     *            the field index.
+     * @return the field, or {@code -1} if the index value is invalid.
+     */
+    private static long getIndexField(Properties index, String key, int field) {
+        final String[] fields = String.valueOf(index.getProperty(key)).split(
+                " ");
+        try {
+            return field < fields.length ? Long.parseLong(fields[field]) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }// getIndexField()
+
+    /**
+     * Creates new message digest of {@link Hasher#SHA256}.
+     *
+     * @return the message digest.
+     * @throws IOException
+     *             if the algorithm is not supported.
+     */
+    private static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance(Hasher.SHA256);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }// newDigest()
+}
@@ -32,6 +32,16 @@ public class Signer {
      */
     private static final String SIGNED_UNALIGNED = "SIGNED_UNALIGNED";
 
+    /**
+     * The signature algorithm.
+     */
+    private static final String SIGALG = "MD5withRSA";
+
+    /**
+     * The digest algorithm.
+     */
+    private static final String DIGESTALG = "SHA1";
+
     /**
      * Signs an APK file.
      * 
@@ -57,6 +67,58 @@ public class Signer {
     public static String sign(File jdkPath, File targetFile, File keyFile,
             char[] storepass, String alias, char[] keypass) throws IOException,
             InterruptedException {
+        return sign(jdkPath, targetFile, keyFile, storepass, alias, keypass,
+                null);
+    }// sign()
+
+    /**
+     * Signs an APK file, with a cache of results.
+     * <p>
+     * Before running {@code jarsigner}, the target file's content, the alias
+     * and the fingerprint of its certificate are looked up in the cache. If
+     * they are found, the target file is replaced with the signed one from
+     * the cache. Otherwise, the signed file is put into the cache. If the
+     * certificate can't be read, or the private key can't be recovered with
+     * {@code keypass}, the cache is not used.
+     * </p>
+     * 
+     * @param jdkPath
+     *            the path to JDK, can be {@code null} on Unix system.
+     * @param targetFile
+     *            the target file, can be an APK, JAR or ZIP.
+     * @param keyFile
+     *            the keystore file.
+     * @param storepass
+     *            the keystore's password.
+     * @param alias
+     *            the keystore alias.
+     * @param keypass
+     *            the keystore's alias password.
+     * @param cache
+     *            the cache, can be {@code null}.
+     * @return {@code null} if everything is OK. Or result from
+     *         {@code jarsigner}. Or a message from this method.
+     * @throws IOException
+     *             if any occurred.
+     * @throws InterruptedException
+     *             if any occurred.
+     */
+    public static String sign(File jdkPath, File targetFile, File keyFile,
+            char[] storepass, String alias, char[] keypass, ResultCache cache)
+            throws IOException, InterruptedException {
+        String cacheKey = null;
+        if (cache != null) {
+            final byte[] certificate = KeyTools.getCertificate(keyFile,
+                    KeyTools.DEFAULT_KEYSTORE_TYPE, storepass, alias, keypass);
+            if (certificate != null) {
+                cacheKey = cache.newKey(targetFile, Signer.class.getName(),
+                        Integer.toString(Sys.APP_VERSION_CODE), alias, SIGALG,
+                        DIGESTALG, Hasher.calcHash(Hasher.SHA256, certificate,
+                                false).toString());
+                if (cache.copyTo(cacheKey, targetFile))
+                    return renameSignedFile(targetFile);
+            }
+        }
 
         /*
          * JDK for Linux does not need to specify full path
@@ -69,8 +131,8 @@ public class Signer {
          * -storepass STORE_PASS -keypass KEY_PASS APK_FILE ALIAS_NAME
          */
         ProcessBuilder pb = new ProcessBuilder(new String[] { jarsigner,
-                "-keystore", keyFile.getAbsolutePath(), "-sigalg",
-                "MD5withRSA", "-digestalg", "SHA1", "-storepass",
+                "-keystore", keyFile.getAbsolutePath(), "-sigalg", SIGALG,
+                "-digestalg", DIGESTALG, "-storepass",
                 new String(storepass), "-keypass", new String(keypass),
                 targetFile.getAbsolutePath(), alias });
         Process p = pb.start();
@@ -105,34 +167,52 @@ public class Signer {
          * Authorization).
          */
         if (result.isEmpty() || result.matches("(?sim)^jar signed.+")) {
-            final String oldName = targetFile.getName();
-            String newName;
-            if (oldName.matches("(?si).*?unsigned.+")) {
-                if (oldName.matches(Texts.REGEX_APK_FILES))
-                    newName = oldName.replaceFirst("(?si)unsigned",
-                            Matcher.quoteReplacement(SIGNED_UNALIGNED));
-                else
-                    newName = oldName.replaceFirst("(?si)unsigned",
-                            Matcher.quoteReplacement(SIGNED));
-            } else if (oldName.matches(Texts.REGEX_APK_FILES))
-                newName = Files.appendFilename(oldName, '_' + SIGNED_UNALIGNED);
-            else if (oldName.matches(Texts.REGEX_JAR_FILES)
-                    || oldName.matches(Texts.REGEX_ZIP_FILES))
-                newName = Files.appendFilename(oldName, '_' + SIGNED);
-            else
-                newName = String.format("%s_%s", oldName, SIGNED);
-
-            if (targetFile.renameTo(new File(targetFile.getParent()
-                    + File.separator + newName)))
-                return null;
+            if (cacheKey != null) {
+                try {
+                    cache.put(cacheKey, targetFile);
+                } catch (IOException e) {
+                    L.e("Signer.sign() >> %s", e);
+                }
+            }
 
-            return Messages
-                    .getString(
-                            R.string.pmsg_file_is_signed_but_cannot_be_renamed_to_new_one,
-                            newName);
+            return renameSignedFile(targetFile);
         }// results from console is empty
         else {
             return result;
         }// results from console is NOT empty
     }// sign()
+
+    /**
+     * Renames newly signed file.
+     * 
+     * @param targetFile
+     *            the signed file.
+     * @return {@code null} if everything is OK, or an error message.
+     */
+    private static String renameSignedFile(File targetFile) {
+        final String oldName = targetFile.getName();
+        String newName;
+        if (oldName.matches("(?si).*?unsigned.+")) {
+            if (oldName.matches(Texts.REGEX_APK_FILES))
+                newName = oldName.replaceFirst("(?si)unsigned",
+                        Matcher.quoteReplacement(SIGNED_UNALIGNED));
+            else
+                newName = oldName.replaceFirst("(?si)unsigned",
+                        Matcher.quoteReplacement(SIGNED));
+        } else if (oldName.matches(Texts.REGEX_APK_FILES))
+            newName = Files.appendFilename(oldName, '_' + SIGNED_UNALIGNED);
+        else if (oldName.matches(Texts.REGEX_JAR_FILES)
+                || oldName.matches(Texts.REGEX_ZIP_FILES))
+            newName = Files.appendFilename(oldName, '_' + SIGNED);
+        else
+            newName = String.format("%s_%s", oldName, SIGNED);
+
+        if (targetFile.renameTo(new File(targetFile.getParent()
+                + File.separator + newName)))
+            return null;
+
+        return Messages.getString(
+                R.string.pmsg_file_is_signed_but_cannot_be_renamed_to_new_one,
+                newName);
+    }// renameSignedFile()
 }
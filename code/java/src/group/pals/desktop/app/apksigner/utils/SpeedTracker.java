@@ -72,6 +72,12 @@ public class SpeedTracker {
 
     private final ArrayList<CheckPoint> mCheckPoints = new ArrayList<SpeedTracker.CheckPoint>();
 
+    /**
+     * The previous call to {@link #addTotal(double)}.
+     */
+    private double mLastTotalTick = Double.NaN;
+    private double mLastTotal;
+
     /**
      * Creates new instance.
      */
@@ -85,17 +91,35 @@ public class SpeedTracker {
      * @param speed
      *            the instantaneous speed.
      */
-    public void add(double speed) {
+    public synchronized void add(double speed) {
         mCheckPoints.add(new CheckPoint(speed));
         if (mCheckPoints.size() > mMaxCheckPoints)
             mCheckPoints.remove(0);
     }// add()
 
+    /**
+     * Adds the total amount (e.g. bytes) which has been done so far. The
+     * speed since the previous call is added as a new instantaneous speed, in
+     * <i>amount/ second</i>. The first call only records the starting point.
+     * 
+     * @param total
+     *            the total amount done so far.
+     * @since v1.8.6 beta
+     */
+    public synchronized void addTotal(double total) {
+        final double tick = System.nanoTime();
+        if (!Double.isNaN(mLastTotalTick) && tick > mLastTotalTick)
+            add((total - mLastTotal) * 1e9 / (tick - mLastTotalTick));
+        mLastTotalTick = tick;
+        mLastTotal = total;
+    }// addTotal()
+
     /**
      * Clears all data.
      */
-    public void clear() {
+    public synchronized void clear() {
         mCheckPoints.clear();
+        mLastTotalTick = Double.NaN;
     }// clear()
 
     /**
@@ -125,4 +149,20 @@ public class SpeedTracker {
             return 0;
         }
     }// calcInstantaneousSpeed()
+
+    /**
+     * Estimates the time to complete the remaining amount, at current
+     * instantaneous speed. The speed must be in <i>amount/ second</i>, see
+     * {@link #addTotal(double)}.
+     * 
+     * @param remaining
+     *            the remaining amount.
+     * @return the time in seconds, or {@code -1} if it's unknown (current
+     *         speed is zero).
+     * @since v1.8.6 beta
+     */
+    public double calcRemainingTime(double remaining) {
+        final double speed = calcInstantaneousSpeed();
+        return speed > 0 ? Math.max(0, remaining) / speed : -1;
+    }// calcRemainingTime()
 }
@@ -117,6 +117,25 @@ public class Texts {
             return "100%";
     }// percentToStr()
 
+    /**
+     * Converts a duration to string.
+     * 
+     * @param seconds
+     *            the duration in seconds.
+     * @return e.g.:<br>
+     *         - 0:05<br>
+     *         - 12:34<br>
+     *         - 1:02:03
+     * @since v1.8.6 beta
+     */
+    public static String durationToStr(double seconds) {
+        final long total = Math.max(0, Math.round(seconds));
+        if (total < 3600)
+            return String.format("%d:%02d", total / 60, total % 60);
+        return String.format("%d:%02d:%02d", total / 3600,
+                (total % 3600) / 60, total % 60);
+    }// durationToStr()
+
     /**
      * Checks whether {@code s} is empty or {@code null}.
      * 
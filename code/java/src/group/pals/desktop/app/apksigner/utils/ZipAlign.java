@@ -10,24 +10,53 @@ package group.pals.desktop.app.apksigner.utils;
 import group.pals.desktop.app.apksigner.i18n.Messages;
 import group.pals.desktop.app.apksigner.i18n.R;
 import group.pals.desktop.app.apksigner.services.BaseThread;
+import group.pals.desktop.app.apksigner.utils.ui.UI;
 
 import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.Enumeration;
-import java.util.GregorianCalendar;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
-import java.util.zip.ZipOutputStream;
 
 /**
  * ZipAlign.
@@ -93,174 +122,4484 @@ public class ZipAlign {
      */
     public static final int ZIP_ENTRY_VERSION = 20;
 
+    /**
+     * The offset of version needed to extract in a ZIP entry's header.
+     */
+    public static final int ZIP_ENTRY_OFFSET_VERSION = 4;
+
+    /**
+     * The offset of general purpose bit flags in a ZIP entry's header.
+     */
+    public static final int ZIP_ENTRY_OFFSET_FLAGS = 6;
+
+    /**
+     * The offset of compression method in a ZIP entry's header.
+     */
+    public static final int ZIP_ENTRY_OFFSET_METHOD = 8;
+
+    /**
+     * The offset of last modification time in a ZIP entry's header.
+     */
+    public static final int ZIP_ENTRY_OFFSET_TIME = 10;
+
+    /**
+     * The offset of last modification date in a ZIP entry's header.
+     */
+    public static final int ZIP_ENTRY_OFFSET_DATE = 12;
+
+    /**
+     * The offset of CRC-32 in a ZIP entry's header.
+     */
+    public static final int ZIP_ENTRY_OFFSET_CRC = 14;
+
+    /**
+     * The offset of compressed size in a ZIP entry's header.
+     */
+    public static final int ZIP_ENTRY_OFFSET_COMPRESSED_SIZE = 18;
+
+    /**
+     * The offset of uncompressed size in a ZIP entry's header.
+     */
+    public static final int ZIP_ENTRY_OFFSET_SIZE = 22;
+
     /**
      * The offset of extra field length in a ZIP entry's header.
      */
     public static final int ZIP_ENTRY_OFFSET_EXTRA_LEN = 28;
 
-    /**
-     * The size of field extra length, in a ZIP entry's header.
-     */
-    public static final int ZIP_ENTRY_FIELD_EXTRA_LEN_SIZE = 2;
+    /**
+     * The size of field extra length, in a ZIP entry's header.
+     */
+    public static final int ZIP_ENTRY_FIELD_EXTRA_LEN_SIZE = 2;
+
+    /**
+     * @see <a
+     *      href="https://android.googlesource.com/platform/build/+/master/tools/zipalign/ZipEntry.h">ZipEntry.h</a>
+     */
+    public static final int ZIP_ENTRY_USES_DATA_DESCR = 0x0008;
+
+    /**
+     * The general purpose bit flag of an encrypted entry.
+     */
+    public static final int ZIP_ENTRY_ENCRYPTED = 0x0001;
+
+    /**
+     * The general purpose bit flags of deflating options (normal, maximum,
+     * fast, super fast).
+     */
+    public static final int ZIP_ENTRY_DEFLATING_OPTIONS = 0x0006;
+
+    /**
+     * @see <a
+     *      href="https://android.googlesource.com/platform/build/+/master/tools/zipalign/ZipEntry.h">ZipEntry.h</a>
+     */
+    public static final int ZIP_ENTRY_DATA_DESCRIPTOR_LEN = 16;
+
+    /**
+     * Length of a data descriptor which has no signature.
+     */
+    public static final int ZIP_ENTRY_DATA_DESCRIPTOR_NO_SIG_LEN = 12;
+
+    /**
+     * Length of a data descriptor of a ZIP64 entry (with signature).
+     */
+    public static final int ZIP64_ENTRY_DATA_DESCRIPTOR_LEN = 24;
+
+    /**
+     * Length of a data descriptor of a ZIP64 entry, which has no signature.
+     */
+    public static final int ZIP64_ENTRY_DATA_DESCRIPTOR_NO_SIG_LEN = 20;
+
+    /**
+     * The charset of entry names.
+     */
+    private static final Charset UTF8 = Charset.forName(Texts.UTF8);
+
+    /**
+     * Maximum size of a mapped window of
+     * {@link ZipAlignmentVerifier#verifyRange(int[], int, int)}.
+     */
+    private static final long VERIFIER_MAP_WINDOW = 1 << 30;
+
+    /**
+     * Maximum size of data which {@link ZipAligner} copies between two
+     * progress updates, so large entries don't stall the progress.
+     */
+    private static final long COPY_PROGRESS_CHUNK = 8 * 1024 * 1024;
+
+    /**
+     * Size of the buffer which {@link ZipAligner} moves entry data with, when
+     * aligning a file in place.
+     */
+    private static final int IN_PLACE_BUFFER = 1024 * 1024;
+
+    /**
+     * Minimum size of data which {@link ZipAligner} copies between two
+     * checkpoints of its journal. Each checkpoint forces output file to the
+     * storage device, so they shouldn't be too frequent.
+     */
+    private static final long JOURNAL_CHECKPOINT_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * Size of data which {@link ZipAligner} writes between two syncs with
+     * {@link DurabilityPolicy#PERIODIC_SYNC}.
+     */
+    public static final long PERIODIC_SYNC_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * Suffix of the temporary file which {@link ZipAligner} writes to, next
+     * to output file.
+     */
+    public static final String TEMP_FILE_SUFFIX = ".part";
+
+    /*
+     * Keys of the journal of ZipAligner.
+     */
+
+    private static final String JOURNAL_INPUT = "input";
+    private static final String JOURNAL_INPUT_LENGTH = "input.length";
+    private static final String JOURNAL_INPUT_MODIFIED = "input.modified";
+    private static final String JOURNAL_OUTPUT = "output";
+    private static final String JOURNAL_LAYOUT = "layout";
+    private static final String JOURNAL_ENTRY = "entry";
+    private static final String JOURNAL_OFFSET = "offset";
+
+    /**
+     * A task of {@link ZipAlignmentVerifier} is split if it has more entries
+     * than this.
+     */
+    private static final int VERIFIER_TASK_ENTRIES = 1024;
+
+    /**
+     * A task of {@link ZipAlignmentVerifier} which checks CRCs is split if
+     * its entries have more data than this (and there are two or more
+     * entries).
+     */
+    private static final long VERIFIER_TASK_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Default alignment value.
+     * <p>
+     * See <a
+     * href="http://developer.android.com/tools/help/zipalign.html">zipalign
+     * </a>.
+     * </p>
+     */
+    public static final int DEFAULT_ALIGNMENT = 4;
+
+    /**
+     * Last modification time of all entries in reproducible output, in
+     * MS-DOS format: 00:00:00.
+     */
+    public static final int REPRODUCIBLE_DOS_TIME = 0;
+
+    /**
+     * Last modification date of all entries in reproducible output, in
+     * MS-DOS format: 2008-01-01, the same as the one of Android build tools.
+     */
+    public static final int REPRODUCIBLE_DOS_DATE = (2008 - 1980) << 9 | 1 << 5 | 1;
+
+    /**
+     * Used to append to newly aligned APK's file name.
+     */
+    public static final String ALIGNED = "ALIGNED";
+
+    /**
+     * Actions which {@link ZipAligner} can take if all entries of input file
+     * are already aligned.
+     * 
+     * @author Hai Bison
+     * @since v1.8.6 beta
+     */
+    public static enum AlreadyAlignedAction {
+
+        /**
+         * Rewrite all entries as usual.
+         */
+        REWRITE,
+
+        /**
+         * Copy input file to output with one sequential, whole-file copy.
+         */
+        COPY,
+
+        /**
+         * Create output file as a hard link to input file. Falls back to
+         * {@link #COPY} if it's not possible.
+         */
+        HARD_LINK,
+
+        /**
+         * Create output file as a copy-on-write clone of input file. Falls
+         * back to {@link #COPY} if it's not possible.
+         */
+        REFLINK
+    }// AlreadyAlignedAction
+
+    /**
+     * Policies of {@link ZipAligner} to force output file to the storage
+     * device, trading throughput for durability.
+     * 
+     * @author Hai Bison
+     * @since v1.8.6 beta
+     */
+    public static enum DurabilityPolicy {
+
+        /**
+         * Leave it to the operating system.
+         */
+        NONE,
+
+        /**
+         * Force output file once, before it is committed.
+         */
+        SYNC_AT_END,
+
+        /**
+         * Force output file every {@link ZipAlign#PERIODIC_SYNC_BYTES} while
+         * writing it, and once more before it is committed. This bounds the
+         * amount of dirty data which the job leaves to the operating system.
+         */
+        PERIODIC_SYNC
+    }// DurabilityPolicy
+
+    /**
+     * Per-entry results of a job, which listeners can query to show details
+     * of the entries in a {@link ProgressEvent}.
+     * 
+     * @author Hai Bison
+     * @since v1.8.6 beta
+     */
+    public static interface EntryResults {
+
+        /**
+         * Gets the name of an entry.
+         * 
+         * @param index
+         *            the entry index, see {@link ProgressEvent#firstEntry}.
+         * @return the entry name.
+         */
+        String getEntryName(int index);
+
+        /**
+         * Gets the result flags of an entry.
+         * 
+         * @param index
+         *            the entry index, see {@link ProgressEvent#firstEntry}.
+         * @return the flags, see {@link ProgressEvent#FLAG_COMPRESSED}...
+         */
+        int getEntryFlags(int index);
+
+        /**
+         * Formats an entry as one line of text, for displaying to user. This
+         * is slow, it should only be called by listeners.
+         * 
+         * @param index
+         *            the entry index, see {@link ProgressEvent#firstEntry}.
+         * @return the formatted line, ends with a new line.
+         */
+        String formatEntry(int index);
+    }// EntryResults
+
+    /**
+     * Progress event, which is sent with {@link BaseThread#MSG_PROGRESS}.
+     * <p>
+     * Events are coalesced (see {@link BaseThread#setMaxProgressRate(int)}),
+     * so one event covers all entries which have been done since the
+     * previous event.
+     * </p>
+     * 
+     * @author Hai Bison
+     * @since v1.8.6 beta
+     */
+    public static class ProgressEvent {
+
+        /**
+         * The entry is compressed.
+         */
+        public static final int FLAG_COMPRESSED = 0x01;
+
+        /**
+         * The entry has been padded.
+         */
+        public static final int FLAG_PADDED = 0x02;
+
+        /**
+         * The entry is not aligned.
+         */
+        public static final int FLAG_BAD = 0x04;
+
+        /**
+         * The entry's data doesn't match its CRC or size.
+         */
+        public static final int FLAG_CRC_ERROR = 0x08;
+
+        /**
+         * The entry has been recompressed.
+         */
+        public static final int FLAG_RECOMPRESSED = 0x10;
+
+        /**
+         * The per-entry results, can be {@code null} if the job doesn't keep
+         * them.
+         */
+        public final EntryResults results;
+
+        /**
+         * Index of the first entry which has been done since the previous
+         * event.
+         */
+        public final int firstEntry;
+
+        /**
+         * Number of entries done so far. Entries from {@link #firstEntry}
+         * to {@code entriesDone - 1} are new in this event; the last one is
+         * the current entry.
+         */
+        public final int entriesDone;
+
+        /**
+         * Total number of entries, {@code -1} if unknown.
+         */
+        public final int entryCount;
+
+        /**
+         * Number of bytes done so far.
+         */
+        public final long bytesDone;
+
+        /**
+         * Total number of bytes, {@code -1} if unknown.
+         */
+        public final long bytesTotal;
+
+        /**
+         * Combined flags of new entries in this event, see
+         * {@link #FLAG_COMPRESSED}...
+         */
+        public final int flags;
+
+        /**
+         * The overall progress, {@code 0 >> 100}.
+         */
+        public final double progress;
+
+        /**
+         * Current throughput, in bytes/ second, {@code 0} if unknown.
+         */
+        public final double speed;
+
+        /**
+         * Estimated time to process remaining bytes, in seconds, {@code -1}
+         * if unknown.
+         */
+        public final double remainingTime;
+
+        /**
+         * Creates new instance.
+         * 
+         * @param results
+         *            see {@link #results}.
+         * @param firstEntry
+         *            see {@link #firstEntry}.
+         * @param entriesDone
+         *            see {@link #entriesDone}.
+         * @param entryCount
+         *            see {@link #entryCount}.
+         * @param bytesDone
+         *            see {@link #bytesDone}.
+         * @param bytesTotal
+         *            see {@link #bytesTotal}.
+         * @param flags
+         *            see {@link #flags}.
+         * @param progress
+         *            see {@link #progress}.
+         * @param speed
+         *            see {@link #speed}.
+         * @param remainingTime
+         *            see {@link #remainingTime}.
+         */
+        public ProgressEvent(EntryResults results, int firstEntry,
+                int entriesDone, int entryCount, long bytesDone,
+                long bytesTotal, int flags, double progress, double speed,
+                double remainingTime) {
+            this.results = results;
+            this.firstEntry = firstEntry;
+            this.entriesDone = entriesDone;
+            this.entryCount = entryCount;
+            this.bytesDone = bytesDone;
+            this.bytesTotal = bytesTotal;
+            this.flags = flags;
+            this.progress = progress;
+            this.speed = speed;
+            this.remainingTime = remainingTime;
+        }// ProgressEvent()
+
+        /**
+         * Formats new entries of this event, see
+         * {@link EntryResults#formatEntry(int)}.
+         * 
+         * @return the formatted lines, or an empty string if there are no
+         *         per-entry results.
+         */
+        public String formatEntries() {
+            if (results == null)
+                return Texts.EMPTY;
+
+            final StringBuilder result = new StringBuilder();
+            for (int i = firstEntry; i < entriesDone; i++)
+                result.append(results.formatEntry(i));
+            return result.toString();
+        }// formatEntries()
+    }// ProgressEvent
+
+    /**
+     * Extended class of {@link FilterOutputStream}, which has some helper
+     * methods for writing data to ZIP stream.
+     * 
+     * @author Hai Bison
+     * @since v1.6.9 beta
+     */
+    private static class FilterOutputStreamEx extends FilterOutputStream {
+
+        private long totalWritten = 0;
+
+        /**
+         * Creates new instance.
+         * 
+         * @param out
+         *            {@link OutputStream}.
+         */
+        public FilterOutputStreamEx(OutputStream out) {
+            super(out);
+        }// FilterOutputStreamEx()
+
+        @Override
+        public void write(byte[] b) throws IOException {
+            out.write(b);
+            totalWritten += b.length;
+        }// write()
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            totalWritten += len;
+        }// write()
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            totalWritten += 1;
+        }// write()
+
+        @Override
+        public void close() throws IOException {
+            // l("\t\tclose() >> totalWritten = %,d", totalWritten);
+            super.close();
+        }// close()
+
+    }// FilterOutputStreamEx
+
+    /**
+     * Creates new buffer which is large enough to hold any local file header,
+     * including its file name and "extra" field.
+     * 
+     * @return the buffer, in little-endian byte order.
+     */
+    private static ByteBuffer newLocalHeaderBuffer() {
+        return ByteBuffer.allocate(ZIP_ENTRY_HEADER_LEN + 0xffff * 2).order(
+                ByteOrder.LITTLE_ENDIAN);
+    }// newLocalHeaderBuffer()
+
+    /**
+     * Reads a local file header, including its file name and "extra" field,
+     * into {@code header} (from position {@code 0}).
+     * 
+     * @param channel
+     *            the input channel.
+     * @param offset
+     *            the offset of the header.
+     * @param header
+     *            the buffer, see {@link #newLocalHeaderBuffer()}.
+     * @return the header size.
+     * @throws IOException
+     *             if any occurred, or the header is invalid.
+     */
+    private static int readLocalHeader(FileChannel channel, long offset,
+            ByteBuffer header) throws IOException {
+        header.clear().limit(ZIP_ENTRY_HEADER_LEN);
+        readFully(channel, header, offset);
+        if (header.getInt(0) != ZipCentralDirectory.LOCSIG)
+            throw new IOException(String.format(
+                    "Invalid local file header at %,d", offset));
+
+        final int size = ZIP_ENTRY_HEADER_LEN
+                + (header.getShort(ZipCentralDirectory.LOC_OFFSET_NAME_LEN) & 0xffff)
+                + (header.getShort(ZIP_ENTRY_OFFSET_EXTRA_LEN) & 0xffff);
+        header.limit(size);
+        readFully(channel, header, offset + ZIP_ENTRY_HEADER_LEN);
+
+        return size;
+    }// readLocalHeader()
+
+    /**
+     * Adds padding to the "extra" field of a local file header which has been
+     * read by {@link #readLocalHeader(FileChannel, long, ByteBuffer)}.
+     * 
+     * @param header
+     *            the header.
+     * @param headerSize
+     *            the header size.
+     * @param padding
+     *            the padding.
+     * @return the new header size.
+     */
+    private static int appendPadding(ByteBuffer header, int headerSize,
+            int padding) {
+        final int extraLen = header.getShort(ZIP_ENTRY_OFFSET_EXTRA_LEN) & 0xffff;
+        header.putShort(ZIP_ENTRY_OFFSET_EXTRA_LEN,
+                (short) (extraLen + padding));
+
+        final int size = headerSize + padding;
+        header.limit(size);
+        for (int i = headerSize; i < size; i++)
+            header.put(i, (byte) 0);
+
+        return size;
+    }// appendPadding()
+
+    /**
+     * Removes all alignment records and padding (see
+     * {@link ZipExtraFields#removeAlignment(byte[], int, int)}) from the
+     * "extra" field of a local file header which has been read by
+     * {@link #readLocalHeader(FileChannel, long, ByteBuffer)}.
+     * 
+     * @param header
+     *            the header.
+     * @return the new header size.
+     */
+    private static int removeAlignmentRecords(ByteBuffer header) {
+        final int extraOffset = ZIP_ENTRY_HEADER_LEN
+                + (header.getShort(ZipCentralDirectory.LOC_OFFSET_NAME_LEN) & 0xffff);
+        final int extraLen = ZipExtraFields.removeAlignment(header.array(),
+                extraOffset,
+                header.getShort(ZIP_ENTRY_OFFSET_EXTRA_LEN) & 0xffff);
+        header.putShort(ZIP_ENTRY_OFFSET_EXTRA_LEN, (short) extraLen);
+
+        final int size = extraOffset + extraLen;
+        header.limit(size);
+        return size;
+    }// removeAlignmentRecords()
+
+    /**
+     * Normalises a local file header which has been read by
+     * {@link #readLocalHeader(FileChannel, long, ByteBuffer)}, for
+     * reproducible output: its last modification time and date are set to
+     * {@link #REPRODUCIBLE_DOS_TIME} and {@link #REPRODUCIBLE_DOS_DATE}, and
+     * only ZIP64 extended information is kept in its "extra" field.
+     * 
+     * @param header
+     *            the header.
+     * @return the new header size.
+     */
+    private static int normalizeLocalHeader(ByteBuffer header) {
+        header.putShort(ZIP_ENTRY_OFFSET_TIME, (short) REPRODUCIBLE_DOS_TIME);
+        header.putShort(ZIP_ENTRY_OFFSET_DATE, (short) REPRODUCIBLE_DOS_DATE);
+
+        final int extraOffset = ZIP_ENTRY_HEADER_LEN
+                + (header.getShort(ZipCentralDirectory.LOC_OFFSET_NAME_LEN) & 0xffff);
+        final int extraLen = ZipExtraFields.keep(header.array(), extraOffset,
+                header.getShort(ZIP_ENTRY_OFFSET_EXTRA_LEN) & 0xffff,
+                ZipExtraFields.ZIP64);
+        header.putShort(ZIP_ENTRY_OFFSET_EXTRA_LEN, (short) extraLen);
+
+        final int size = extraOffset + extraLen;
+        header.limit(size);
+        return size;
+    }// normalizeLocalHeader()
+
+    /**
+     * Gets the size of an alignment record ({@link ZipExtraFields#ALIGNMENT}
+     * ) which aligns the data following it.
+     * 
+     * @param recordOffset
+     *            the offset of the record in output file.
+     * @param alignment
+     *            the alignment.
+     * @return the record size.
+     */
+    private static int getAlignmentRecordLength(long recordOffset,
+            int alignment) {
+        final long dataOffset = recordOffset
+                + ZipExtraFields.ALIGNMENT_RECORD_MIN_LEN;
+        return ZipExtraFields.ALIGNMENT_RECORD_MIN_LEN
+                + (int) ((alignment - (dataOffset % alignment)) % alignment);
+    }// getAlignmentRecordLength()
+
+    /**
+     * Appends an alignment record ({@link ZipExtraFields#ALIGNMENT}) to the
+     * "extra" field of a local file header, which has no alignment records.
+     * 
+     * @param header
+     *            the header.
+     * @param headerSize
+     *            the header size.
+     * @param recordLen
+     *            the record size, see
+     *            {@link #getAlignmentRecordLength(long, int)}.
+     * @param alignment
+     *            the alignment.
+     * @return the new header size.
+     * @see #removeAlignmentRecords(ByteBuffer)
+     */
+    private static int appendAlignmentRecord(ByteBuffer header,
+            int headerSize, int recordLen, int alignment) {
+        final int size = appendPadding(header, headerSize, recordLen);
+        header.putShort(headerSize, (short) ZipExtraFields.ALIGNMENT);
+        header.putShort(headerSize + 2,
+                (short) (recordLen - ZipExtraFields.RECORD_HEADER_LEN));
+        header.putShort(headerSize + 4, (short) alignment);
+        return size;
+    }// appendAlignmentRecord()
+
+    /**
+     * Gets the length of the data descriptor at {@code offset}, which may or
+     * may not start with a signature.
+     * 
+     * @param channel
+     *            the input channel.
+     * @param offset
+     *            the offset of the data descriptor.
+     * @param zip64
+     *            {@code true} if the entry has ZIP64 extended information in
+     *            its local header, its data descriptor then has 64-bit sizes.
+     * @return the length.
+     * @throws IOException
+     */
+    private static int getDataDescriptorLength(FileChannel channel,
+            long offset, boolean zip64) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(4).order(
+                ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, buf, offset);
+        if (buf.getInt(0) == ZipCentralDirectory.EXTSIG)
+            return zip64 ? ZIP64_ENTRY_DATA_DESCRIPTOR_LEN
+                    : ZIP_ENTRY_DATA_DESCRIPTOR_LEN;
+        return zip64 ? ZIP64_ENTRY_DATA_DESCRIPTOR_NO_SIG_LEN
+                : ZIP_ENTRY_DATA_DESCRIPTOR_NO_SIG_LEN;
+    }// getDataDescriptorLength()
+
+    /**
+     * Writes all remaining bytes of {@code buf} to {@code channel}.
+     * 
+     * @param channel
+     *            the channel.
+     * @param buf
+     *            the buffer.
+     * @param offset
+     *            the position in {@code channel} to start writing to.
+     * @throws IOException
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buf,
+            long offset) throws IOException {
+        while (buf.hasRemaining())
+            offset += channel.write(buf, offset);
+    }// writeFully()
+
+    /**
+     * Reads from {@code channel} until {@code buf} is full.
+     * 
+     * @param channel
+     *            the channel.
+     * @param buf
+     *            the buffer.
+     * @param offset
+     *            the position in {@code channel} to start reading from.
+     * @throws IOException
+     *             if any occurred, or end of file has been reached.
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buf,
+            long offset) throws IOException {
+        while (buf.hasRemaining()) {
+            final int read = channel.read(buf, offset);
+            if (read < 0)
+                throw new IOException("Unexpected end of file");
+            offset += read;
+        }
+    }// readFully()
+
+    /**
+     * Checks data of an entry against its CRC and size.
+     * 
+     * @param channel
+     *            the channel of the ZIP file.
+     * @param centralDir
+     *            the central directory.
+     * @param index
+     *            the entry index.
+     * @param dataOffset
+     *            the offset of the entry's data.
+     * @param crc
+     *            the CRC to use.
+     * @param inflater
+     *            the inflater to use, with no ZLIB header.
+     * @param input
+     *            the buffer to read data.
+     * @param output
+     *            the buffer to inflate data.
+     * @return {@code true} if the data is good, or the entry's compression
+     *         method is not supported.
+     * @throws IOException
+     *             if any occurred.
+     */
+    private static boolean checkCrc(FileChannel channel,
+            ZipCentralDirectory centralDir, int index, long dataOffset,
+            CRC32 crc, Inflater inflater, byte[] input, byte[] output)
+            throws IOException {
+        final int method = centralDir.getMethod(index);
+        if (method != ZipEntry.STORED && method != ZipEntry.DEFLATED)
+            return true;
+
+        crc.reset();
+        inflater.reset();
+
+        long offset = dataOffset;
+        long remaining = centralDir.getCompressedSize(index);
+        long size = 0;
+        if (method == ZipEntry.STORED) {
+            while (remaining > 0) {
+                final int len = (int) Math.min(input.length, remaining);
+                readFully(channel, ByteBuffer.wrap(input, 0, len), offset);
+                crc.update(input, 0, len);
+                offset += len;
+                remaining -= len;
+                size += len;
+            }// while
+        } else {
+            try {
+                while (!inflater.finished()) {
+                    if (inflater.needsInput() && remaining > 0) {
+                        final int len = (int) Math.min(input.length,
+                                remaining);
+                        readFully(channel, ByteBuffer.wrap(input, 0, len),
+                                offset);
+                        inflater.setInput(input, 0, len);
+                        offset += len;
+                        remaining -= len;
+                    }
+
+                    final int len = inflater.inflate(output);
+                    crc.update(output, 0, len);
+                    size += len;
+                    if (len == 0
+                            && !inflater.finished()
+                            && ((inflater.needsInput() && remaining == 0) || inflater
+                                    .needsDictionary()))
+                        return false;
+                }// while
+            } catch (DataFormatException e) {
+                return false;
+            }
+        }// if
+
+        return crc.getValue() == centralDir.getCrc(index)
+                && size == centralDir.getSize(index);
+    }// checkCrc()
+
+    /**
+     * Creates new buffer which is large enough to hold any central directory
+     * record, including its file name, "extra" field and comment.
+     * 
+     * @return the buffer, in little-endian byte order.
+     */
+    private static ByteBuffer newCentralHeaderBuffer() {
+        return ByteBuffer.allocate(ZipCentralDirectory.CENHDR + 0xffff * 3)
+                .order(ByteOrder.LITTLE_ENDIAN);
+    }// newCentralHeaderBuffer()
+
+    /**
+     * Puts an unsigned 32-bit value into {@code buf} at its current position.
+     * 
+     * @param buf
+     *            the buffer, in little-endian byte order.
+     * @param v
+     *            the value.
+     * @return {@code buf}.
+     * @throws IOException
+     *             if the value doesn't fit in 32 bits.
+     */
+    private static ByteBuffer putU32(ByteBuffer buf, long v)
+            throws IOException {
+        if (v < 0 || v > 0xffffffffL)
+            throw new IOException(String.format(
+                    "Value doesn't fit in 32 bits: %,d", v));
+        return buf.putInt((int) v);
+    }// putU32()
+
+    /**
+     * Clears {@code record} and puts the fixed part of a central directory
+     * record into it. Name, "extra" field and comment should be put right
+     * after, then the whole record can be written in one call.
+     * 
+     * @param record
+     *            the buffer, see {@link #newCentralHeaderBuffer()}.
+     * @param version
+     *            version made by, and version needed to extract.
+     * @param flags
+     *            general purpose bit flag.
+     * @param method
+     *            compression method.
+     * @param dosTime
+     *            last modification time, in MS-DOS format.
+     * @param dosDate
+     *            last modification date, in MS-DOS format.
+     * @param crc
+     *            CRC-32.
+     * @param compressedSize
+     *            compressed size, it will be capped at
+     *            {@link ZipCentralDirectory#ZIP64_MAGIC}.
+     * @param size
+     *            uncompressed size, it will be capped at
+     *            {@link ZipCentralDirectory#ZIP64_MAGIC}.
+     * @param nameLen
+     *            file name length.
+     * @param extraLen
+     *            "extra" field length.
+     * @param commentLen
+     *            file comment length.
+     * @param headerOffset
+     *            relative offset of local header, it will be capped at
+     *            {@link ZipCentralDirectory#ZIP64_MAGIC}.
+     * @return {@code record}.
+     * @throws IOException
+     */
+    private static ByteBuffer putCentralHeader(ByteBuffer record, int version,
+            int flags, int method, int dosTime, int dosDate, long crc,
+            long compressedSize, long size, int nameLen, int extraLen,
+            int commentLen, long headerOffset) throws IOException {
+        record.clear();
+        record.putInt(ZipCentralDirectory.CENSIG); // CEN header signature
+        record.putShort((short) version); // version made by
+        record.putShort((short) version); // version needed to extract
+        record.putShort((short) flags); // general purpose bit flag
+        record.putShort((short) method); // compression method
+        record.putShort((short) dosTime); // last modification time
+        record.putShort((short) dosDate); // last modification date
+        putU32(record, crc); // crc-32
+        putU32(record,
+                Math.min(compressedSize, ZipCentralDirectory.ZIP64_MAGIC)); // compressed
+                                                                            // size
+        putU32(record, Math.min(size, ZipCentralDirectory.ZIP64_MAGIC)); // uncompressed
+                                                                         // size
+        record.putShort((short) nameLen);
+        record.putShort((short) extraLen);
+        record.putShort((short) commentLen);
+        record.putShort((short) 0); // starting disk number
+        record.putShort((short) 0); // internal file attributes (unused)
+        record.putInt(0); // external file attributes (unused)
+        putU32(record, Math.min(headerOffset, ZipCentralDirectory.ZIP64_MAGIC)); // relative
+                                                                                 // offset
+                                                                                 // of
+                                                                                 // local
+                                                                                 // header
+        return record;
+    }// putCentralHeader()
+
+    /**
+     * Writes the end records of a ZIP file (the ZIP64 end of central
+     * directory record and its locator if needed, then the end of central
+     * directory record), in one call.
+     * 
+     * @param out
+     *            the output stream, which is at the end of the central
+     *            directory.
+     * @param entryCount
+     *            the number of entries.
+     * @param centralDirOffset
+     *            the offset of the central directory.
+     * @param centralDirSize
+     *            the size of the central directory.
+     * @param comment
+     *            the ZIP file comment.
+     * @throws IOException
+     */
+    private static void writeEndRecords(FilterOutputStreamEx out,
+            long entryCount, long centralDirOffset, long centralDirSize,
+            byte[] comment) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(
+                ZipCentralDirectory.ZIP64_ENDHDR
+                        + ZipCentralDirectory.ZIP64_LOCHDR
+                        + ZipCentralDirectory.ENDHDR + comment.length).order(
+                ByteOrder.LITTLE_ENDIAN);
+
+        if (entryCount >= ZipCentralDirectory.ZIP64_MAGIC_COUNT
+                || centralDirSize >= ZipCentralDirectory.ZIP64_MAGIC
+                || centralDirOffset >= ZipCentralDirectory.ZIP64_MAGIC) {
+            final long zip64EndOffset = out.totalWritten;
+
+            buf.putInt(ZipCentralDirectory.ZIP64_ENDSIG); // ZIP64 END record
+                                                          // signature
+            buf.putLong(ZipCentralDirectory.ZIP64_ENDHDR - 12); // size of this
+                                                                // record
+            buf.putShort((short) ZipCentralDirectory.ZIP64_VERSION); // version
+                                                                     // made by
+            buf.putShort((short) ZipCentralDirectory.ZIP64_VERSION); // version
+                                                                     // needed
+                                                                     // to
+                                                                     // extract
+            buf.putInt(0); // number of this disk
+            buf.putInt(0); // central directory start disk
+            buf.putLong(entryCount); // number of directory entries on disk
+            buf.putLong(entryCount); // total number of directory entries
+            buf.putLong(centralDirSize); // length of central directory
+            buf.putLong(centralDirOffset); // offset of central directory
+
+            buf.putInt(ZipCentralDirectory.ZIP64_LOCSIG); // ZIP64 END locator
+                                                          // signature
+            buf.putInt(0); // disk of ZIP64 END record
+            buf.putLong(zip64EndOffset); // offset of ZIP64 END record
+            buf.putInt(1); // total number of disks
+        }// if
+
+        buf.putInt(ZipCentralDirectory.ENDSIG); // END record signature
+        buf.putShort((short) 0); // number of this disk
+        buf.putShort((short) 0); // central directory start disk
+        buf.putShort((short) Math.min(entryCount,
+                ZipCentralDirectory.ZIP64_MAGIC_COUNT)); // number of directory
+                                                         // entries on disk
+        buf.putShort((short) Math.min(entryCount,
+                ZipCentralDirectory.ZIP64_MAGIC_COUNT)); // total number of
+                                                         // directory entries
+        putU32(buf, Math.min(centralDirSize, ZipCentralDirectory.ZIP64_MAGIC)); // length
+                                                                                // of
+                                                                                // central
+                                                                                // directory
+        putU32(buf,
+                Math.min(centralDirOffset, ZipCentralDirectory.ZIP64_MAGIC)); // offset
+                                                                              // of
+                                                                              // central
+                                                                              // directory
+        buf.putShort((short) comment.length); // zip file comment length
+        buf.put(comment);
+
+        out.write(buf.array(), 0, buf.position());
+    }// writeEndRecords()
+
+    /**
+     * To align ZIP files :-)
+     * 
+     * @author Hai Bison
+     * @since v1.6.9 beta
+     */
+    public static class ZipAligner extends BaseThread implements
+            EntryResults {
+
+        private final File mInputFile;
+        private final ZipAlignmentPolicy mPolicy;
+        private final File mOutputFile;
+        private final File mTempFile;
+        private final OutputStream mOutput;
+        private final boolean mInPlace;
+
+        /**
+         * Creates new instance with alignment value of
+         * {@link ZipAlign#DEFAULT_ALIGNMENT}.
+         * 
+         * @param input
+         *            the input file.
+         * @param output
+         *            the output file.
+         */
+        public ZipAligner(File input, File output) {
+            this(input, DEFAULT_ALIGNMENT, output);
+        }// ZipAligner()
+
+        /**
+         * Creates new instance.
+         * 
+         * @param input
+         *            the input file.
+         * @param alignment
+         *            the alignment, {@link ZipAlign#DEFAULT_ALIGNMENT} is
+         *            highly recommended.
+         * @param output
+         *            the output file.
+         */
+        public ZipAligner(File input, int alignment, File output) {
+            this(input, new ZipAlignmentPolicy(alignment), output);
+        }// ZipAligner()
+
+        /**
+         * Creates new instance.
+         * <p>
+         * The job writes to a temporary file next to output file (whose name
+         * ends with {@link ZipAlign#TEMP_FILE_SUFFIX}), then renames it to
+         * output file atomically when it succeeds. So readers of output file
+         * never see a partial file, and an existing output file is kept if
+         * the job fails.
+         * </p>
+         * 
+         * @param input
+         *            the input file.
+         * @param policy
+         *            the alignment policy.
+         * @param output
+         *            the output file.
+         */
+        public ZipAligner(File input, ZipAlignmentPolicy policy, File output) {
+            mInputFile = input;
+            mPolicy = policy;
+            mOutputFile = output;
+            mTempFile = new File(output.getAbsoluteFile().getParentFile(),
+                    output.getName() + TEMP_FILE_SUFFIX);
+            mOutput = null;
+            mInPlace = false;
+
+            setName(Messages.getString(R.string.apk_aligner_thread));
+        }// ZipAligner()
+
+        /**
+         * Creates new instance which aligns a file in place.
+         * 
+         * @param file
+         *            the file.
+         * @param alignment
+         *            the alignment, {@link ZipAlign#DEFAULT_ALIGNMENT} is
+         *            highly recommended.
+         * @return the new instance.
+         * @see #newInPlace(File, ZipAlignmentPolicy)
+         */
+        public static ZipAligner newInPlace(File file, int alignment) {
+            return newInPlace(file, new ZipAlignmentPolicy(alignment));
+        }// newInPlace()
+
+        /**
+         * Creates new instance which aligns a file in place.
+         * <p>
+         * The new layout is planned first, then entries are moved within the
+         * file (from back to front where they grow, with a bounded buffer),
+         * and the central directory is rewritten. So the job needs no disk
+         * space other than the padding, but the file is not valid while
+         * entries are being moved: from then on, the job can't be cancelled,
+         * and if it fails (or the process dies), the file is damaged. Entries
+         * must be stored in the order of the central directory, without
+         * overlaps.
+         * </p>
+         * <p>
+         * A journal, parallelism and {@link AlreadyAlignedAction} don't apply
+         * to this mode. A file which is already aligned is left untouched.
+         * </p>
+         * 
+         * @param file
+         *            the file.
+         * @param policy
+         *            the alignment policy.
+         * @return the new instance.
+         */
+        public static ZipAligner newInPlace(File file, ZipAlignmentPolicy policy) {
+            return new ZipAligner(file, policy);
+        }// newInPlace()
+
+        /**
+         * Creates new instance which aligns a file in place, see
+         * {@link #newInPlace(File, ZipAlignmentPolicy)}.
+         * 
+         * @param file
+         *            the file.
+         * @param policy
+         *            the alignment policy.
+         */
+        private ZipAligner(File file, ZipAlignmentPolicy policy) {
+            mInputFile = file;
+            mPolicy = policy;
+            mOutputFile = file;
+            mTempFile = null;
+            mOutput = null;
+            mInPlace = true;
+
+            setName(Messages.getString(R.string.apk_aligner_thread));
+        }// ZipAligner()
+
+        /**
+         * Creates new instance which writes to an arbitrary stream.
+         * <p>
+         * Entry data will be copied through a buffer, rather than via
+         * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+         * like when writing to a file. The stream will be closed when the
+         * job finishes.
+         * </p>
+         * 
+         * @param input
+         *            the input file.
+         * @param alignment
+         *            the alignment, {@link ZipAlign#DEFAULT_ALIGNMENT} is
+         *            highly recommended.
+         * @param output
+         *            the output stream.
+         */
+        public ZipAligner(File input, int alignment, OutputStream output) {
+            this(input, new ZipAlignmentPolicy(alignment), output);
+        }// ZipAligner()
+
+        /**
+         * Creates new instance which writes to an arbitrary stream.
+         * 
+         * @param input
+         *            the input file.
+         * @param policy
+         *            the alignment policy.
+         * @param output
+         *            the output stream.
+         * @see #ZipAligner(File, int, OutputStream)
+         */
+        public ZipAligner(File input, ZipAlignmentPolicy policy,
+                OutputStream output) {
+            mInputFile = input;
+            mPolicy = policy;
+            mOutputFile = null;
+            mTempFile = null;
+            mOutput = output;
+            mInPlace = false;
+
+            setName(Messages.getString(R.string.apk_aligner_thread));
+        }// ZipAligner()
+
+        /**
+         * Sets number of threads to copy entries.
+         * <p>
+         * If it is greater than {@code 1}, the whole layout of output file
+         * will be planned first, then output file will be pre-sized and
+         * entries will be copied concurrently with positional writes. Default
+         * is {@code 1}. This takes effect only when writing to a file.
+         * </p>
+         * 
+         * @param parallelism
+         *            number of threads, for example
+         *            {@link Runtime#availableProcessors()}.
+         * @return the instance of this aligner, to allow chaining multiple
+         *         calls into a single statement.
+         */
+        public ZipAligner setParallelism(int parallelism) {
+            mParallelism = Math.max(1, parallelism);
+            return this;
+        }// setParallelism()
+
+        /**
+         * Sets whether to pad entries with a well-formed alignment record
+         * ({@link ZipExtraFields#ALIGNMENT}, like Android's build tools do)
+         * instead of zeros. Existing alignment records are replaced, so
+         * aligning a file again keeps its headers the same. Default is
+         * {@code false}.
+         * 
+         * @param alignmentExtraField
+         *            {@code true} or {@code false}.
+         * @return the instance of this aligner, to allow chaining multiple
+         *         calls into a single statement.
+         */
+        public ZipAligner setAlignmentExtraField(boolean alignmentExtraField) {
+            mAlignmentExtraField = alignmentExtraField;
+            return this;
+        }// setAlignmentExtraField()
+
+        /**
+         * Sets the action to take if all entries of input file are already
+         * aligned. Default is {@link AlreadyAlignedAction#COPY}.
+         * 
+         * @param action
+         *            the action.
+         * @return the instance of this aligner, to allow chaining multiple
+         *         calls into a single statement.
+         */
+        public ZipAligner setAlreadyAlignedAction(AlreadyAlignedAction action) {
+            mAlreadyAlignedAction = action;
+            return this;
+        }// setAlreadyAlignedAction()
+
+        /**
+         * Sets whether to copy central directory records of input file as-is,
+         * patching only their local header offsets (and compressed sizes,
+         * methods, flags and versions needed of recompressed or converted
+         * entries). This keeps every field of
+         * the records (such as "version made by", internal and external
+         * attributes), and is much faster than rebuilding them. Records whose
+         * local header offsets move into or out of ZIP64 extended information
+         * are always rebuilt. Default is {@code true}.
+         * 
+         * @param copyCentralRecords
+         *            {@code true} or {@code false}.
+         * @return the instance of this aligner, to allow chaining multiple
+         *         calls into a single statement.
+         */
+        public ZipAligner setCopyCentralRecords(boolean copyCentralRecords) {
+            mCopyCentralRecords = copyCentralRecords;
+            return this;
+        }// setCopyCentralRecords()
+
+        /**
+         * Sets the checkpoint journal, so an interrupted job can be resumed.
+         * <p>
+         * While copying entries, the aligner records the last checkpoint
+         * (entries done and output offset) in the journal, after forcing
+         * output file to the storage device. If the job is cancelled or
+         * fails, the temporary file of output file is kept along with the
+         * journal. A later job with the same input file, output file, options
+         * and journal continues from the last checkpoint, instead of starting
+         * over. The journal is deleted when the job succeeds. This takes
+         * effect only when writing to a file. Default is {@code null}.
+         * </p>
+         *
+         * @param journalFile
+         *            the journal file, or {@code null} to disable it.
+         * @return the instance of this aligner, to allow chaining multiple
+         *         calls into a single statement.
+         */
+        public ZipAligner setJournalFile(File journalFile) {
+            mJournalFile = journalFile;
+            return this;
+        }// setJournalFile()
+
+        /**
+         * Sets whether to check data of entries against their CRCs and sizes
+         * while copying them, so a damaged input file fails the job instead
+         * of producing a damaged output file.
+         * <p>
+         * Stored entries are checked on the fly, as their bytes are copied.
+         * Deflated entries are inflated and checked by a pool of threads,
+         * alongside the copying. Entries which are neither stored nor
+         * deflated are not checked. Default is {@code false}.
+         * </p>
+         * 
+         * @param crcChecked
+         *            {@code true} or {@code false}.
+         * @return the instance of this aligner, to allow chaining multiple
+         *         calls into a single statement.
+         */
+        public ZipAligner setCrcChecked(boolean crcChecked) {
+            mCrcChecked = crcChecked;
+            return this;
+        }// setCrcChecked()
+
+        /**
+         * Sets the policy to force output file to the storage device. With
+         * any policy other than {@link DurabilityPolicy#NONE}, the directory
+         * of output file is forced as well after output file is committed,
+         * if the platform supports it. Output files which are hard links or
+         * clones of input file (see {@link AlreadyAlignedAction}) share
+         * their data with input file, so only their directory is forced. This
+         * takes effect only when writing to a file. Default is
+         * {@link DurabilityPolicy#NONE}.
+         * 
+         * @param policy
+         *            the policy.
+         * @return the instance of this aligner, to allow chaining multiple
+         *         calls into a single statement.
+         */
+        public ZipAligner setDurabilityPolicy(DurabilityPolicy policy) {
+            mDurabilityPolicy = policy;
+            return this;
+        }// setDurabilityPolicy()
+
+        /**
+         * Sets whether to preallocate output file, i.e. to set its final
+         * size (which is known from the planned layout) before writing it.
+         * Then the file doesn't grow chunk by chunk, which saves metadata
+         * updates, and lets the file system reserve its extent in one go
+         * (how much depends on the file system, some of them just make a
+         * sparse file). Output file is always preallocated if entries are
+         * copied concurrently (see {@link #setParallelism(int)}). This takes
+         * effect only when writing to a file. Default is {@code false}.
+         * 
+         * @param preallocated
+         *            {@code true} or {@code false}.
+         * @return the instance of this aligner, to allow chaining multiple
+         *         calls into a single statement.
+         */
+        public ZipAligner setPreallocated(boolean preallocated) {
+            mPreallocated = preallocated;
+            return this;
+        }// setPreallocated()
+
+        /**
+         * Sets the level to recompress deflated entries at.
+         * <p>
+         * If it is not {@link Deflater#NO_COMPRESSION}, every deflated entry
+         * is inflated and deflated again at this level by a pool of threads
+         * (see {@link #setRecompressionParallelism(int)}), before the layout of output file is planned. The new data is kept
+         * (in spool files next to output file, until it is copied) only if
+         * it is smaller than the original one. Entries which are encrypted,
+         * or use data descriptors or ZIP64 sizes, are left as-is. The new
+         * data only depends on the original one and the level, so output
+         * file is the same no matter how the work is split between threads.
+         * </p>
+         * <p>
+         * This doesn't apply to in-place mode. Default is
+         * {@link Deflater#NO_COMPRESSION}.
+         * </p>
+         * 
+         * @param level
+         *            the level, from {@link Deflater#BEST_SPEED} to
+         *            {@link Deflater#BEST_COMPRESSION}, or
+         *            {@link Deflater#DEFAULT_COMPRESSION}.
+         * @return the instance of this aligner, to allow chaining multiple
+         *         calls into a single statement.
+         */
+        public ZipAligner setRecompressionLevel(int level) {
+            if (level < Deflater.DEFAULT_COMPRESSION
+                    || level > Deflater.BEST_COMPRESSION)
+                throw new IllegalArgumentException("Invalid level: " + level);
+            mRecompressionLevel = level;
+            return this;
+        }// setRecompressionLevel()
+
+        /**
+         * Sets number of threads to recompress or convert entries with, see
+         * {@link #setRecompressionLevel(int)} and
+         * {@link #setStoragePolicy(ZipStoragePolicy)}. Each thread has its
+         * own spool file. Default is {@link Runtime#availableProcessors()}.
+         * 
+         * @param parallelism
+         *            number of threads.
+         * @return the instance of this aligner, to allow chaining multiple
+         *         calls into a single statement.
+         */
+        public ZipAligner setRecompressionParallelism(int parallelism) {
+            mRecompressionParallelism = Math.max(1, parallelism);
+            return this;
+        }// setRecompressionParallelism()
+
+        /**
+         * Sets the storage policy, to convert entries to
+         * {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED} while aligning
+         * them.
+         * <p>
+         * Entries are converted by the same stage and with the same
+         * restrictions as {@link #setRecompressionLevel(int)}: their data is
+         * checked against CRCs and sizes, and only their compressed sizes,
+         * methods and flags change. Deflating uses the recompression level
+         * (or {@link Deflater#DEFAULT_COMPRESSION} if it is not set), and an
+         * entry stays stored if deflating it doesn't make it smaller. The
+         * result of each rule is reported when the stage is done.
+         * </p>
+         * <p>
+         * This doesn't apply to in-place mode. Default is {@code null}.
+         * </p>
+         * 
+         * @param policy
+         *            the policy, can be {@code null}.
+         * @return the instance of this aligner, to allow chaining multiple
+         *         calls into a single statement.
+         */
+        public ZipAligner setStoragePolicy(ZipStoragePolicy policy) {
+            mStoragePolicy = policy;
+            return this;
+        }// setStoragePolicy()
+
+        /**
+         * Sets whether to make reproducible output: the same input data
+         * always makes the same output file, no matter which tool (or host)
+         * has made the input file.
+         * <p>
+         * In this mode, last modification time and date of all entries are
+         * set to {@link ZipAlign#REPRODUCIBLE_DOS_TIME} and
+         * {@link ZipAlign#REPRODUCIBLE_DOS_DATE}. "Extra" fields of local
+         * headers keep only ZIP64 extended information, followed by the
+         * alignment (padding, or the alignment record, see
+         * {@link #setAlignmentExtraField(boolean)}), and ones of central
+         * directory records keep only ZIP64 extended information. All central
+         * directory records are rebuilt, and the ZIP file comment is dropped.
+         * Files which are already aligned are aligned again rather than
+         * handled by {@link #setAlreadyAlignedAction(AlreadyAlignedAction)}.
+         * Default is {@code false}.
+         * </p>
+         * 
+         * @param reproducible
+         *            {@code true} or {@code false}.
+         * @return the instance of this aligner, to allow chaining multiple
+         *         calls into a single statement.
+         */
+        public ZipAligner setReproducible(boolean reproducible) {
+            mReproducible = reproducible;
+            return this;
+        }// setReproducible()
+
+        /**
+         * Sets the cache of results.
+         * <p>
+         * Before doing any work, the aligner looks up input file's content
+         * and the options which affect output file in the cache. If they are
+         * found, output file is copied from the cache. Otherwise, output file
+         * is put into the cache when the job succeeds. Failing to put it is
+         * not an error. This takes effect only when writing to a file, not in
+         * in-place mode. Default is {@code null}.
+         * </p>
+         * 
+         * @param cache
+         *            the cache, can be {@code null}.
+         * @return the instance of this aligner, to allow chaining multiple
+         *         calls into a single statement.
+         */
+        public ZipAligner setResultCache(ResultCache cache) {
+            mResultCache = cache;
+            return this;
+        }// setResultCache()
+
+        private RandomAccessFile mRafInput;
+        private FileChannel mInputChannel;
+        private ZipCentralDirectory mCentralDir;
+        private FileChannel mOutputChannel;
+        private FilterOutputStreamEx mOutputStream;
+        private byte[] mBuffer;
+        private ZipEntryTable mEntries;
+        private long mTotalPadding = 0;
+        private int mChangedHeaders = 0;
+        private boolean mAlignmentExtraField = false;
+        private boolean mReproducible = false;
+        private long mCentralDirOffset;
+        private long mCentralDirSize;
+        private long mOutputSize;
+        private int mParallelism = 1;
+        private AlreadyAlignedAction mAlreadyAlignedAction = AlreadyAlignedAction.COPY;
+        private boolean mCopyCentralRecords = true;
+        private DurabilityPolicy mDurabilityPolicy = DurabilityPolicy.NONE;
+        private boolean mPreallocated = false;
+
+        /**
+         * The level to recompress entries at, the storage policy, number of
+         * threads to recompress entries with, and the spool files which hold
+         * recompressed data (one per thread).
+         */
+        private int mRecompressionLevel = Deflater.NO_COMPRESSION;
+        private int mRecompressionParallelism = Runtime.getRuntime()
+                .availableProcessors();
+        private ZipStoragePolicy mStoragePolicy;
+        private File[] mSpoolFiles;
+        private RandomAccessFile[] mSpools;
+
+        /**
+         * The cache of results, and the key of current job in it.
+         */
+        private ResultCache mResultCache;
+        private String mCacheKey;
+
+        /**
+         * The journal, the entry and output offset to resume from, the output
+         * offset of the last checkpoint, and the checksum of planned layout.
+         */
+        private File mJournalFile;
+        private int mResumeEntry = 0;
+        private long mResumeOffset = 0;
+        private long mCheckpointOffset = 0;
+        private long mLayoutChecksum = -1;
+
+        /**
+         * Set by {@link #interrupt()}, unless the job can't be cancelled any
+         * more (see {@link #setUncancellable()}).
+         */
+        private volatile boolean mCancelled = false;
+        private boolean mCancellable = true;
+
+        /**
+         * The pool of threads which check CRCs of entries, its cancellation
+         * flag, its error, and the first entry which has been found bad.
+         */
+        private boolean mCrcChecked = false;
+        private ExecutorService mCrcExecutor;
+        private final CRC32 mCrc = new CRC32();
+        private final AtomicBoolean mCrcCancelled = new AtomicBoolean();
+        private final AtomicReference<Throwable> mCrcError = new AtomicReference<Throwable>();
+        private final AtomicInteger mBadEntry = new AtomicInteger(-1);
+
+        /**
+         * 0 >> 100
+         */
+        private double mProgress = 0;
+
+        /**
+         * Entries done, and the ones which have not been sent in a
+         * {@link ProgressEvent}.
+         */
+        private int mEntriesDone = 0;
+        private int mFirstNewEntry = 0;
+        private int mNewEntryFlags = 0;
+
+        /**
+         * Bytes of current copying stage: total, done, and the ones which
+         * have been sent in a {@link ProgressEvent}. The stage takes
+         * {@link #mBytesProgressSpan} of {@link #mProgress}, from
+         * {@link #mBytesProgressStart}.
+         */
+        private long mBytesTotal = 0;
+        private long mBytesDone = 0;
+        private long mEventBytesDone = 0;
+        private double mBytesProgressStart = 0;
+        private double mBytesProgressSpan = 0;
+
+        /**
+         * Bytes of current copying stage which have been forced to the
+         * storage device, see {@link DurabilityPolicy#PERIODIC_SYNC}.
+         */
+        private long mSyncedBytes = 0;
+        private final SpeedTracker mSpeedTracker = new SpeedTracker();
+
+        @Override
+        public void run() {
+            L.d("%s >> starting", ZipAligner.class.getSimpleName());
+
+            boolean failed = false;
+            boolean cached = false;
+            try {
+                cached = copyCachedOutput();
+                if (!cached && !isCancelled())
+                    openFiles();
+                if (!cached && !isCancelled()) {
+                    if (mInPlace) {
+                        alignInPlace();
+                    } else if (mAlreadyAlignedAction != AlreadyAlignedAction.REWRITE
+                            && isAlreadyAligned()) {
+                        copyAlignedInput();
+                    } else {
+                        loadJournal();
+                        openOutput(mOutputSize);
+                        if (!isCancelled())
+                            copyAllEntries();
+                        if (!isCancelled())
+                            buildCentralDirectory();
+                    }
+                }
+            } catch (Exception e) {
+                failed = true;
+                sendNotification(
+                        MSG_ERROR,
+                        Texts.NULL,
+                        Messages.getString(R.string.pmsg_error_details,
+                                e.getMessage(), L.printStackTrace(e)));
+            } finally {
+                try {
+                    closeFiles(!failed && !isCancelled());
+                } catch (Exception e) {
+                    failed = true;
+                    sendNotification(
+                            MSG_ERROR,
+                            Texts.NULL,
+                            Messages.getString(R.string.pmsg_error_details,
+                                    e.getMessage(), L.printStackTrace(e)));
+                }
+            }
+
+            deleteSpools();
+
+            if (failed || isCancelled()) {
+                /*
+                 * Keep output file if it can be resumed.
+                 */
+                if (!isJournaled() || !mJournalFile.isFile())
+                    deleteTempFile();
+            } else {
+                if (isJournaled())
+                    mJournalFile.delete();
+                if (mCacheKey != null && !cached)
+                    putOutputIntoCache();
+            }
+
+            if (isCancelled())
+                sendNotification(MSG_ERROR, Texts.NULL,
+                        Messages.getString(R.string.cancelled));
+
+            sendNotification(MSG_DONE);
+
+            L.d("%s >> finishing", ZipAligner.class.getSimpleName());
+        }// run()
+
+        /**
+         * Copies output file from {@link #mResultCache}, if it is there.
+         * 
+         * @return {@code true} if output file has been copied, {@code false}
+         *         if it is not in the cache (or there is no cache).
+         * @throws IOException
+         */
+        private boolean copyCachedOutput() throws IOException {
+            if (mResultCache == null || mOutputFile == null || mInPlace)
+                return false;
+
+            /*
+             * The key holds every setting which changes output file. Actions
+             * for already aligned input other than REWRITE all produce a copy
+             * of input file.
+             */
+            mCacheKey = mResultCache.newKey(mInputFile,
+                    ZipAligner.class.getName(),
+                    Integer.toString(Sys.APP_VERSION_CODE), mPolicy.getKey(),
+                    Boolean.toString(mAlignmentExtraField),
+                    Boolean.toString(mReproducible),
+                    Boolean.toString(mCopyCentralRecords),
+                    Boolean.toString(mAlreadyAlignedAction == AlreadyAlignedAction.REWRITE),
+                    Integer.toString(mRecompressionLevel),
+                    mStoragePolicy != null ? mStoragePolicy.getKey() : null);
+            if (isCancelled())
+                return false;
+
+            /*
+             * The temporary file may hold a job to resume, so it's only
+             * replaced if the key is in the cache. Then it's opened, to be
+             * forced and committed like any output.
+             */
+            if (!mResultCache.copyTo(mCacheKey, mTempFile))
+                return false;
+            mOutputChannel = new RandomAccessFile(mTempFile, "rw").getChannel();
+
+            sendNotification(MSG_INFO, Texts.NULL, String.format("%s\n",
+                    Messages.getString(R.string.msg_output_copied_from_cache)));
+            return true;
+        }// copyCachedOutput()
+
+        /**
+         * Puts output file into {@link #mResultCache}. Errors are logged, as
+         * the job has succeeded anyway.
+         */
+        private void putOutputIntoCache() {
+            try {
+                mResultCache.put(mCacheKey, mOutputFile);
+            } catch (IOException e) {
+                L.e("%s >> putOutputIntoCache() >> %s",
+                        ZipAligner.class.getSimpleName(), e);
+            }
+        }// putOutputIntoCache()
+
+        /**
+         * Cancels the job.
+         * <p>
+         * The thread is not interrupted, because that would close the file
+         * channels in the middle of I/O (see
+         * {@link java.nio.channels.ClosedByInterruptException}). Instead, the
+         * job checks {@link #isCancelled()} after every chunk it copies, and
+         * stops there, so it can record a checkpoint in the journal.
+         * </p>
+         * <p>
+         * This has no effect once an in-place job has started to move
+         * entries.
+         * </p>
+         */
+        @Override
+        public synchronized void interrupt() {
+            if (mCancellable)
+                mCancelled = true;
+        }// interrupt()
+
+        /**
+         * Makes the job uncancellable, unless it has been cancelled already.
+         * 
+         * @return {@code true} if succeeded, {@code false} if the job has
+         *         been cancelled.
+         */
+        private synchronized boolean setUncancellable() {
+            if (isCancelled())
+                return false;
+            mCancellable = false;
+            return true;
+        }// setUncancellable()
+
+        /**
+         * Checks if the job has been cancelled.
+         *
+         * @return {@code true} or {@code false}.
+         */
+        private boolean isCancelled() {
+            return mCancelled || isInterrupted();
+        }// isCancelled()
+
+        /**
+         * Deletes the temporary file, if the job is writing to a file.
+         */
+        private void deleteTempFile() {
+            if (mTempFile != null)
+                mTempFile.delete();
+        }// deleteTempFile()
+
+        /**
+         * Checks if the job uses a journal.
+         *
+         * @return {@code true} or {@code false}.
+         */
+        private boolean isJournaled() {
+            return mJournalFile != null && mOutputFile != null && !mInPlace;
+        }// isJournaled()
+
+        /**
+         * Calculates the checksum of planned layout (and of the options which
+         * affect output headers), to tell if a journal belongs to it.
+         *
+         * @return the checksum.
+         */
+        private long getLayoutChecksum() {
+            if (mLayoutChecksum >= 0)
+                return mLayoutChecksum;
+
+            final CRC32 crc = new CRC32();
+            final ByteBuffer buf = ByteBuffer.allocate(32);
+            for (int i = 0; i < mEntries.size(); i++) {
+                buf.clear();
+                buf.putLong(mEntries.getOutputHeaderOffset(i))
+                        .putInt(mEntries.getOutputHeaderSize(i))
+                        .putInt(mEntries.getPadding(i))
+                        .putInt(mEntries.getAlignment(i))
+                        .putInt(mEntries.getMethod(i));
+                crc.update(buf.array(), 0, buf.position());
+            }// for
+
+            buf.clear();
+            buf.putLong(mCentralDirOffset).putLong(mOutputSize)
+                    .putInt(mEntries.size())
+                    .putInt((mAlignmentExtraField ? 1 : 0)
+                            | (mReproducible ? 2 : 0))
+                    .putInt(isRecompressing() ? mRecompressionLevel : -2)
+                    .putInt(isRecompressing() && mStoragePolicy != null ? mStoragePolicy
+                            .toString().hashCode() : 0);
+            crc.update(buf.array(), 0, buf.position());
+
+            return mLayoutChecksum = crc.getValue();
+        }// getLayoutChecksum()
+
+        /**
+         * Loads the journal, if any, and sets the entry to resume from if it
+         * matches current job. A journal which doesn't match is deleted.
+         *
+         * @throws IOException
+         */
+        private void loadJournal() throws IOException {
+            if (!isJournaled() || !mJournalFile.isFile())
+                return;
+
+            final Properties journal = new Properties();
+            final Reader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(mJournalFile), Texts.UTF8));
+            try {
+                journal.load(reader);
+
+                final int entry = Integer.parseInt(journal
+                        .getProperty(JOURNAL_ENTRY));
+                final long offset = Long.parseLong(journal
+                        .getProperty(JOURNAL_OFFSET));
+                if (mInputFile.getCanonicalPath().equals(
+                        journal.getProperty(JOURNAL_INPUT))
+                        && mInputFile.length() == Long.parseLong(journal
+                                .getProperty(JOURNAL_INPUT_LENGTH))
+                        && mInputFile.lastModified() == Long.parseLong(journal
+                                .getProperty(JOURNAL_INPUT_MODIFIED))
+                        && mOutputFile.getCanonicalPath().equals(
+                                journal.getProperty(JOURNAL_OUTPUT))
+                        && getLayoutChecksum() == Long.parseLong(journal
+                                .getProperty(JOURNAL_LAYOUT))
+                        && entry > 0
+                        && entry <= mEntries.size()
+                        && offset == getOutputHeaderOffset(entry)
+                        && mTempFile.length() >= offset) {
+                    mResumeEntry = entry;
+                    mResumeOffset = offset;
+                    mCheckpointOffset = offset;
+
+                    L.d("\tloadJournal() >> resuming from entry #%,d at %,d",
+                            entry, offset);
+                    sendNotification(MSG_INFO, Texts.NULL, String.format(
+                            "%s\n\n", Messages.getString(
+                                    R.string.pmsg_resuming_alignment, entry,
+                                    Texts.sizeToStr(offset))));
+                    return;
+                }
+            } catch (IllegalArgumentException e) {
+                /*
+                 * Ignore it, the journal is corrupted.
+                 */
+            } finally {
+                reader.close();
+            }
+
+            L.d("\tloadJournal() >> journal doesn't match, deleting it");
+            mJournalFile.delete();
+        }// loadJournal()
+
+        /**
+         * Forces output file to the storage device, then records a checkpoint
+         * in the journal. The journal is replaced atomically, so it always
+         * holds a checkpoint whose data is on the device.
+         *
+         * @param entry
+         *            the number of entries which have been copied, from the
+         *            first one.
+         * @param offset
+         *            the output offset of the entry at {@code entry}.
+         * @throws IOException
+         */
+        private void saveCheckpoint(int entry, long offset) throws IOException {
+            if (entry == 0 || offset == mCheckpointOffset)
+                return;
+
+            mOutputStream.flush();
+            mOutputChannel.force(false);
+
+            final Properties journal = new Properties();
+            journal.setProperty(JOURNAL_INPUT, mInputFile.getCanonicalPath());
+            journal.setProperty(JOURNAL_INPUT_LENGTH,
+                    Long.toString(mInputFile.length()));
+            journal.setProperty(JOURNAL_INPUT_MODIFIED,
+                    Long.toString(mInputFile.lastModified()));
+            journal.setProperty(JOURNAL_OUTPUT, mOutputFile.getCanonicalPath());
+            journal.setProperty(JOURNAL_LAYOUT,
+                    Long.toString(getLayoutChecksum()));
+            journal.setProperty(JOURNAL_ENTRY, Integer.toString(entry));
+            journal.setProperty(JOURNAL_OFFSET, Long.toString(offset));
+
+            final File tempFile = new File(mJournalFile.getPath() + ".tmp");
+            final FileOutputStream output = new FileOutputStream(tempFile);
+            try {
+                final Writer writer = new BufferedWriter(
+                        new OutputStreamWriter(output, Texts.UTF8));
+                journal.store(writer, null);
+                writer.flush();
+                output.getFD().sync();
+            } finally {
+                output.close();
+            }
+            java.nio.file.Files.move(tempFile.toPath(), mJournalFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+
+            mCheckpointOffset = offset;
+        }// saveCheckpoint()
+
+        /**
+         * Opens input file, recompresses entries if needed, and plans the
+         * layout of output file.
+         * <p>
+         * This takes 5% of total, plus 40% if entries are recompressed.
+         * </p>
+         * 
+         * @throws IOException
+         */
+        private void openFiles() throws IOException {
+            sendNotification(MSG_INFO, Texts.NULL, String.format(
+                    "%s\n\n",
+                    Messages.getString(R.string.pmsg_aligning_apk,
+                            mInputFile.getName(), mPolicy)));
+
+            mRafInput = new RandomAccessFile(mInputFile, mInPlace ? "rw" : "r");
+            mInputChannel = mRafInput.getChannel();
+            mCentralDir = ZipCentralDirectory.read(mInputChannel, mInPlace);
+            mEntries = new ZipEntryTable(mCentralDir, true, isRecompressing());
+
+            if (isRecompressing())
+                recompressEntries();
+            if (isCancelled())
+                return;
+
+            planLayout();
+
+            sendNotification(MSG_INFO, mProgress += 5);
+        }// openFiles()
+
+        /**
+         * Checks if entries will be recompressed, or converted by the storage
+         * policy.
+         * 
+         * @return {@code true} or {@code false}.
+         */
+        private boolean isRecompressing() {
+            return (mRecompressionLevel != Deflater.NO_COMPRESSION || mStoragePolicy != null)
+                    && !mInPlace;
+        }// isRecompressing()
+
+        /**
+         * Gets the compression method an entry should be recompressed with.
+         * 
+         * @param index
+         *            the entry index.
+         * @return the method, or {@code -1} if the entry needs no
+         *         recompression.
+         */
+        private int getRecompressionMethod(int index) {
+            final int method = mCentralDir.getMethod(index);
+            if (method != ZipEntry.STORED && method != ZipEntry.DEFLATED)
+                return -1;
+
+            final int result = mStoragePolicy != null ? mStoragePolicy
+                    .getMethod(mCentralDir.getName(index), method) : method;
+            if (result == method
+                    && (method == ZipEntry.STORED || mRecompressionLevel == Deflater.NO_COMPRESSION))
+                return -1;
+            return result;
+        }// getRecompressionMethod()
+
+        /**
+         * Recompresses deflated entries at {@link #mRecompressionLevel}, and
+         * converts entries by {@link #mStoragePolicy}, with a pool of threads.
+         * Each thread has its own inflater, deflater and spool file, which are
+         * reused for all entries it takes. An entry whose data doesn't match
+         * its CRC or size fails the job.
+         * <p>
+         * This takes 40% of total.
+         * </p>
+         * 
+         * @throws IOException
+         */
+        private void recompressEntries() throws IOException {
+            if (mRecompressionLevel != Deflater.NO_COMPRESSION)
+                sendNotification(MSG_INFO, Texts.NULL, String.format("%s\n",
+                        Messages.getString(
+                                R.string.pmsg_recompressing_entries,
+                                mRecompressionLevel)));
+            if (mStoragePolicy != null)
+                sendNotification(MSG_INFO, Texts.NULL, String.format("%s\n",
+                        Messages.getString(
+                                R.string.pmsg_applying_storage_policy,
+                                mStoragePolicy)));
+
+            final int entryCount = mEntries.size();
+            final int threads = mRecompressionParallelism;
+            final AtomicInteger nextEntry = new AtomicInteger();
+            final AtomicBoolean cancelled = new AtomicBoolean();
+            final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+            final AtomicLong readBytes = new AtomicLong();
+
+            final byte[] methods = new byte[entryCount];
+            long bytesTotal = 0;
+            for (int i = 0; i < entryCount; i++) {
+                methods[i] = (byte) getRecompressionMethod(i);
+                if (methods[i] >= 0)
+                    bytesTotal += mCentralDir.getCompressedSize(i);
+            }// for
+            final int level = mRecompressionLevel != Deflater.NO_COMPRESSION ? mRecompressionLevel
+                    : Deflater.DEFAULT_COMPRESSION;
+            startCopying(bytesTotal, 0, 40);
+
+            final File dir = mTempFile != null ? mTempFile.getParentFile()
+                    : null;
+            mSpoolFiles = new File[threads];
+            mSpools = new RandomAccessFile[threads];
+            for (int t = 0; t < threads; t++) {
+                mSpoolFiles[t] = File.createTempFile(
+                        mOutputFile != null ? mOutputFile.getName() + '.'
+                                : "zipalign", ".spool", dir);
+                mSpools[t] = new RandomAccessFile(mSpoolFiles[t], "rw");
+            }// for
+
+            final ExecutorService executor = Executors
+                    .newFixedThreadPool(threads);
+            for (int t = 0; t < threads; t++) {
+                final int spool = t;
+                executor.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        final Deflater deflater = new Deflater(level, true);
+                        final Inflater inflater = new Inflater(true);
+                        final ByteBuffer header = newLocalHeaderBuffer();
+                        final CRC32 crc = new CRC32();
+                        final byte[][] buffers = new byte[3][Files.FILE_BUFFER];
+                        try {
+                            int i;
+                            while (!cancelled.get()
+                                    && (i = nextEntry.getAndIncrement()) < entryCount) {
+                                if (methods[i] >= 0
+                                        && !recompressEntry(i, methods[i],
+                                                spool, header, crc, deflater,
+                                                inflater, buffers, readBytes,
+                                                cancelled))
+                                    notifyBadEntry(i);
+                            }
+                        } catch (Throwable t) {
+                            error.compareAndSet(null, t);
+                            cancelled.set(true);
+                        } finally {
+                            deflater.end();
+                            inflater.end();
+                        }
+                    }// run()
+                });
+            }// for
+            executor.shutdown();
+
+            boolean interrupted = false;
+            boolean terminated = false;
+            while (!terminated) {
+                try {
+                    terminated = executor.awaitTermination(
+                            UI.DELAY_TIME_UPDATING_UI, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    cancelled.set(true);
+                }
+                if (isCancelled() || isCrcFailed())
+                    cancelled.set(true);
+                notifyBytesCopied(readBytes.get());
+            }// while
+
+            if (interrupted)
+                interrupt();
+
+            final Throwable t = error.get();
+            if (t instanceof IOException)
+                throw (IOException) t;
+            else if (t != null)
+                throw new IOException(t);
+            throwCrcError();
+            if (isCancelled())
+                return;
+
+            notifyProgress(true);
+            notifyRecompressionDone();
+        }// recompressEntries()
+
+        /**
+         * Reports the result of recompression: entries which have been
+         * recompressed and bytes saved, then entries which have been
+         * converted and bytes before/ after, by each rule of the storage
+         * policy.
+         */
+        private void notifyRecompressionDone() {
+            final int ruleCount = mStoragePolicy != null ? mStoragePolicy
+                    .getRuleCount() : 0;
+            final int[] convertedEntries = new int[ruleCount];
+            final long[] bytesBefore = new long[ruleCount];
+            final long[] bytesAfter = new long[ruleCount];
+            int recompressedEntries = 0;
+            long savedBytes = 0;
+            for (int i = 0; i < mEntries.size(); i++) {
+                if (!mEntries.isRecompressed(i))
+                    continue;
+
+                if (mEntries.getMethod(i) == mCentralDir.getMethod(i)) {
+                    recompressedEntries++;
+                    savedBytes += mCentralDir.getCompressedSize(i)
+                            - mEntries.getRecompressedSize(i);
+                } else {
+                    final int rule = mStoragePolicy.findRule(mCentralDir
+                            .getName(i));
+                    convertedEntries[rule]++;
+                    bytesBefore[rule] += mCentralDir.getCompressedSize(i);
+                    bytesAfter[rule] += mEntries.getRecompressedSize(i);
+                }
+            }// for
+
+            final StringBuilder result = new StringBuilder();
+            if (mRecompressionLevel != Deflater.NO_COMPRESSION)
+                result.append(Messages.getString(
+                        R.string.pmsg_recompression_done, recompressedEntries,
+                        Texts.sizeToStr(savedBytes))).append('\n');
+            for (int rule = 0; rule < ruleCount; rule++) {
+                if (convertedEntries[rule] == 0)
+                    continue;
+                result.append(
+                        Messages.getString(R.string.pmsg_storage_rule_result,
+                                mStoragePolicy.getExpression(rule),
+                                ZipStoragePolicy.methodToString(mStoragePolicy
+                                        .getMethod(rule)),
+                                convertedEntries[rule],
+                                Texts.sizeToStr(bytesBefore[rule]),
+                                Texts.sizeToStr(bytesAfter[rule]))).append(
+                        '\n');
+            }// for
+            sendNotification(MSG_INFO, Texts.NULL, result.append('\n')
+                    .toString());
+        }// notifyRecompressionDone()
+
+        /**
+         * Recompresses an entry into a spool file. This method is called from
+         * worker threads.
+         * 
+         * @param index
+         *            the entry index.
+         * @param method
+         *            the compression method to recompress the entry with.
+         * @param spool
+         *            the index of the spool file, which is owned by current
+         *            thread.
+         * @param header
+         *            the buffer to hold the local header, see
+         *            {@link ZipAlign#newLocalHeaderBuffer()}.
+         * @param crc
+         *            the CRC to check the data.
+         * @param deflater
+         *            the deflater, with no ZLIB header.
+         * @param inflater
+         *            the inflater, with no ZLIB header.
+         * @param buffers
+         *            three buffers: to read data, to inflate data and to
+         *            deflate data.
+         * @param readBytes
+         *            the counter of bytes read.
+         * @param cancelled
+         *            the cancellation flag.
+         * @return {@code false} if the entry's data doesn't match its CRC or
+         *         size, {@code true} otherwise (even if it has not been
+         *         recompressed).
+         * @throws IOException
+         */
+        private boolean recompressEntry(int index, int method, int spool,
+                ByteBuffer header, CRC32 crc, Deflater deflater,
+                Inflater inflater, byte[][] buffers, AtomicLong readBytes,
+                AtomicBoolean cancelled) throws IOException {
+            final long compressedSize = mCentralDir.getCompressedSize(index);
+            if (compressedSize >= ZipCentralDirectory.ZIP64_MAGIC
+                    || mCentralDir.getSize(index) >= ZipCentralDirectory.ZIP64_MAGIC) {
+                readBytes.addAndGet(compressedSize);
+                return true;
+            }
+
+            /*
+             * Only the compressed size, method and flags in the local header
+             * will be patched, so the sizes must be there.
+             */
+            final long headerOffset = mCentralDir.getLocalHeaderOffset(index);
+            final int headerSize = readLocalHeader(mInputChannel,
+                    headerOffset, header);
+            if ((header.getShort(ZIP_ENTRY_OFFSET_FLAGS) & (ZIP_ENTRY_USES_DATA_DESCR | ZIP_ENTRY_ENCRYPTED)) != 0
+                    || (header.getInt(ZIP_ENTRY_OFFSET_COMPRESSED_SIZE) & 0xffffffffL) != compressedSize) {
+                readBytes.addAndGet(compressedSize);
+                return true;
+            }
+
+            final boolean stored = mCentralDir.getMethod(index) == ZipEntry.STORED;
+            final byte[] input = buffers[0];
+            final byte[] output = buffers[1];
+            final byte[] deflated = buffers[2];
+            final RandomAccessFile out = mSpools[spool];
+            final long start = out.getFilePointer();
+
+            crc.reset();
+            inflater.reset();
+            deflater.reset();
+
+            long offset = headerOffset + headerSize;
+            long remaining = compressedSize;
+            long size = 0;
+            long newSize = 0;
+            try {
+                while (stored ? remaining > 0 : !inflater.finished()) {
+                    int read = 0;
+                    if ((stored || inflater.needsInput()) && remaining > 0) {
+                        if (cancelled.get()) {
+                            out.seek(start);
+                            return true;
+                        }
+
+                        read = (int) Math.min(input.length, remaining);
+                        readFully(mInputChannel,
+                                ByteBuffer.wrap(input, 0, read), offset);
+                        if (!stored)
+                            inflater.setInput(input, 0, read);
+                        offset += read;
+                        remaining -= read;
+                        readBytes.addAndGet(read);
+                    }
+
+                    /*
+                     * Get the next chunk of original data.
+                     */
+                    final byte[] data;
+                    final int len;
+                    if (stored) {
+                        data = input;
+                        len = read;
+                    } else {
+                        data = output;
+                        len = inflater.inflate(output);
+                        if (len == 0
+                                && !inflater.finished()
+                                && ((inflater.needsInput() && remaining == 0) || inflater
+                                        .needsDictionary()))
+                            return false;
+                    }
+                    crc.update(data, 0, len);
+                    size += len;
+
+                    if (method == ZipEntry.STORED) {
+                        out.write(data, 0, len);
+                        newSize += len;
+                        continue;
+                    }
+
+                    deflater.setInput(data, 0, len);
+                    while (!deflater.needsInput()) {
+                        final int count = deflater.deflate(deflated);
+                        out.write(deflated, 0, count);
+                        newSize += count;
+                    }// while
+
+                    /*
+                     * Give up as soon as the new data is not smaller.
+                     */
+                    if (newSize >= compressedSize) {
+                        readBytes.addAndGet(remaining);
+                        out.seek(start);
+                        return true;
+                    }
+                }// while
+            } catch (DataFormatException e) {
+                return false;
+            }
+
+            if (crc.getValue() != mCentralDir.getCrc(index)
+                    || size != mCentralDir.getSize(index))
+                return false;
+
+            if (method == ZipEntry.DEFLATED) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    final int count = deflater.deflate(deflated);
+                    out.write(deflated, 0, count);
+                    newSize += count;
+                }// while
+            }// if
+
+            if (method == ZipEntry.STORED || newSize < compressedSize)
+                mEntries.setRecompressed(index, method, spool, start, newSize);
+            else
+                out.seek(start);
+            return true;
+        }// recompressEntry()
+
+        /**
+         * Closes and deletes the spool files, if any.
+         */
+        private void deleteSpools() {
+            if (mSpools == null)
+                return;
+
+            for (int i = 0; i < mSpools.length; i++) {
+                try {
+                    if (mSpools[i] != null)
+                        mSpools[i].close();
+                } catch (IOException e) {
+                    L.d("%s >> deleteSpools() >> %s",
+                            ZipAligner.class.getSimpleName(), e);
+                }
+                if (mSpoolFiles[i] != null)
+                    mSpoolFiles[i].delete();
+            }// for
+            mSpools = null;
+        }// deleteSpools()
+
+        /**
+         * Opens output.
+         * 
+         * @param size
+         *            the final size of output, to preallocate output file if
+         *            needed.
+         * @throws IOException
+         */
+        private void openOutput(long size) throws IOException {
+            if (mOutputFile != null) {
+                if (mOutputFile.getCanonicalFile().equals(
+                        mInputFile.getCanonicalFile()))
+                    throw new IOException(
+                            "Output file must be different from input file");
+
+                /*
+                 * Headers go through a buffered stream on top of the output
+                 * channel, entry data goes directly from input channel to
+                 * output channel.
+                 */
+                final RandomAccessFile rafOutput = new RandomAccessFile(
+                        mTempFile, "rw");
+                rafOutput.setLength(mResumeOffset);
+                if (mPreallocated || isConcurrent())
+                    rafOutput.setLength(size);
+                mOutputChannel = rafOutput.getChannel();
+                mOutputChannel.position(mResumeOffset);
+                mOutputStream = new FilterOutputStreamEx(
+                        new BufferedOutputStream(
+                                Channels.newOutputStream(mOutputChannel),
+                                Files.FILE_BUFFER));
+                mOutputStream.totalWritten = mResumeOffset;
+            } else {
+                mOutputStream = new FilterOutputStreamEx(
+                        new BufferedOutputStream(mOutput, Files.FILE_BUFFER));
+            }
+
+            mBuffer = new byte[Files.FILE_BUFFER];
+        }// openOutput()
+
+        /**
+         * Checks if the planned layout is the same as input file's, i.e. all
+         * entries are already aligned and there are no gaps between them.
+         * 
+         * @return {@code true} or {@code false}.
+         */
+        private boolean isAlreadyAligned() {
+            if (mReproducible || mChangedHeaders != 0
+                    || mCentralDirOffset != mCentralDir.getOffset())
+                return false;
+
+            for (int i = 0; i < mEntries.size(); i++)
+                if (mEntries.getOutputHeaderOffset(i) != mEntries
+                        .getHeaderOffset(i))
+                    return false;
+
+            return true;
+        }// isAlreadyAligned()
+
+        /**
+         * Produces output from input file which is already aligned, with
+         * {@link #mAlreadyAlignedAction}.
+         * <p>
+         * This takes 90% of total.
+         * </p>
+         * 
+         * @throws IOException
+         */
+        private void copyAlignedInput() throws IOException {
+            sendNotification(MSG_INFO, Texts.NULL, String.format("%s\n",
+                    Messages.getString(R.string.msg_apk_already_aligned)));
+
+            final double progress = mProgress;
+            if (mCrcChecked)
+                startCheckingCrcs(0, true);
+            try {
+                boolean done = false;
+                if (mOutputFile != null) {
+                    switch (mAlreadyAlignedAction) {
+                    case HARD_LINK:
+                        done = linkOutputFile();
+                        break;
+                    case REFLINK:
+                        done = reflinkOutputFile();
+                        break;
+                    default:
+                        break;
+                    }
+                }// if
+
+                if (!done && !isCancelled()) {
+                    openOutput(mInputChannel.size());
+                    startCopying(mInputChannel.size(), 0, 90);
+                    copyRawData(mRafInput, 0, mInputChannel.size(), null);
+                    mOutputStream.flush();
+                    notifyProgress(true);
+                }
+
+                finishCheckingCrcs(false);
+            } finally {
+                finishCheckingCrcs(true);
+            }
+
+            sendNotification(MSG_INFO, mProgress = progress + 90);
+        }// copyAlignedInput()
+
+        /**
+         * Aligns input file in place: moves all entries to their planned
+         * offsets, rewrites the central directory, and truncates the file.
+         * <p>
+         * This takes 90% of total.
+         * </p>
+         * 
+         * @throws IOException
+         */
+        private void alignInPlace() throws IOException {
+            final boolean aligned = isAlreadyAligned();
+            if (aligned)
+                sendNotification(MSG_INFO, Texts.NULL, String.format("%s\n",
+                        Messages.getString(R.string.msg_apk_already_aligned)));
+            else
+                checkInputOrder();
+
+            /*
+             * Entries can't be checked once they start moving.
+             */
+            if (mCrcChecked) {
+                startCheckingCrcs(0, true);
+                try {
+                    finishCheckingCrcs(false);
+                } finally {
+                    finishCheckingCrcs(true);
+                }
+            }// if
+
+            if (aligned) {
+                sendNotification(MSG_INFO, mProgress += 90);
+                return;
+            }
+            if (!setUncancellable())
+                return;
+
+            mOutputChannel = mInputChannel;
+            mOutputStream = new FilterOutputStreamEx(new BufferedOutputStream(
+                    Channels.newOutputStream(mOutputChannel), Files.FILE_BUFFER));
+            mBuffer = new byte[IN_PLACE_BUFFER];
+            if (mOutputSize > mInputChannel.size())
+                mRafInput.setLength(mOutputSize);
+
+            moveAllEntries();
+
+            mOutputChannel.position(mCentralDirOffset);
+            mOutputStream.totalWritten = mCentralDirOffset;
+            buildCentralDirectory();
+            mOutputChannel.truncate(mOutputSize);
+        }// alignInPlace()
+
+        /**
+         * Checks that entries of input file are stored in the order of the
+         * central directory, without overlaps, which moving them in place
+         * relies on.
+         * 
+         * @throws IOException
+         *             if they're not.
+         */
+        private void checkInputOrder() throws IOException {
+            for (int i = 1; i < mEntries.size(); i++) {
+                if (mEntries.getHeaderOffset(i) < mEntries.getDataOffset(i - 1)
+                        + mEntries.getDataLength(i - 1))
+                    throw new IOException(String.format(
+                            "Entry #%,d is not stored after the previous one, cannot align in place",
+                            i));
+            }// for
+        }// checkInputOrder()
+
+        /**
+         * Moves all entries of input file to their planned offsets, with their
+         * new local headers.
+         * <p>
+         * Entries are split into runs: an entry ends a run if its new place
+         * doesn't overlap the old place of the next entry. Runs are moved
+         * from front to back, entries of a run are moved from back to front.
+         * So an entry never overwrites the old place of another one which has
+         * not been moved yet.
+         * </p>
+         * <p>
+         * This takes 80% of total.
+         * </p>
+         * 
+         * @throws IOException
+         */
+        private void moveAllEntries() throws IOException {
+            final int entryCount = mEntries.size();
+            final ByteBuffer header = newLocalHeaderBuffer();
+
+            startCopying(mCentralDirOffset, 0, 80);
+
+            int first = 0;
+            for (int end = 1; end <= entryCount; end++) {
+                if (end < entryCount
+                        && mEntries.getOutputHeaderOffset(end) > mEntries
+                                .getHeaderOffset(end))
+                    continue;
+
+                for (int i = end - 1; i >= first; i--)
+                    moveEntry(i, header);
+                for (int i = first; i < end; i++)
+                    notifyEntryCopied(i);
+                notifyProgress(false);
+                first = end;
+            }// for
+
+            notifyProgress(true);
+        }// moveAllEntries()
+
+        /**
+         * Moves an entry to its planned offset: its data first, then its new
+         * local header (which may overwrite the old place of its data).
+         * 
+         * @param index
+         *            the entry index.
+         * @param header
+         *            the buffer, see {@link ZipAlign#newLocalHeaderBuffer()}.
+         * @throws IOException
+         */
+        private void moveEntry(int index, ByteBuffer header) throws IOException {
+            final int headerSize = readOutputHeader(header, index);
+            final long offset = mEntries.getOutputHeaderOffset(index);
+            moveData(mEntries.getDataOffset(index), offset + headerSize,
+                    mEntries.getDataLength(index));
+
+            writeFully(mOutputChannel,
+                    ByteBuffer.wrap(header.array(), 0, headerSize), offset);
+            notifyBytesCopied(mBytesDone + headerSize);
+        }// moveEntry()
+
+        /**
+         * Moves data within input file, with {@link #mBuffer}. If the two
+         * ranges overlap, the data is moved in the right direction so it
+         * doesn't overwrite itself.
+         * 
+         * @param from
+         *            the old offset.
+         * @param to
+         *            the new offset.
+         * @param size
+         *            the size of data.
+         * @throws IOException
+         */
+        private void moveData(long from, long to, long size)
+                throws IOException {
+            if (from == to) {
+                notifyBytesCopied(mBytesDone + size);
+                return;
+            }
+
+            final ByteBuffer buf = ByteBuffer.wrap(mBuffer);
+            long totalSizeMoved = 0;
+            while (totalSizeMoved < size) {
+                final int count = (int) Math.min(mBuffer.length, size
+                        - totalSizeMoved);
+                final long pos = to > from ? size - totalSizeMoved - count
+                        : totalSizeMoved;
+
+                buf.clear();
+                buf.limit(count);
+                readFully(mInputChannel, buf, from + pos);
+                buf.flip();
+                writeFully(mOutputChannel, buf, to + pos);
+
+                totalSizeMoved += count;
+                notifyBytesCopied(mBytesDone + count);
+                syncIfDue();
+            }// while
+        }// moveData()
+
+        /**
+         * Creates the temporary file as a hard link to input file.
+         * 
+         * @return {@code true} if succeeded, {@code false} otherwise.
+         * @throws IOException
+         *             if output file is the same as input file.
+         */
+        private boolean linkOutputFile() throws IOException {
+            if (mOutputFile.getCanonicalFile().equals(
+                    mInputFile.getCanonicalFile()))
+                throw new IOException(
+                        "Output file must be different from input file");
+
+            try {
+                java.nio.file.Files.deleteIfExists(mTempFile.toPath());
+                java.nio.file.Files.createLink(mTempFile.toPath(),
+                        mInputFile.toPath());
+                return true;
+            } catch (Exception e) {
+                L.e("%s >> linkOutputFile() >> %s",
+                        ZipAligner.class.getSimpleName(), e);
+                return false;
+            }
+        }// linkOutputFile()
+
+        /**
+         * Creates the temporary file as a copy-on-write clone (reflink) of
+         * input file. This needs {@code cp} which supports {@code --reflink}
+         * (GNU coreutils), and a file system which supports it.
+         * 
+         * <p>
+         * If the thread is interrupted while waiting for {@code cp}, the job
+         * is cancelled.
+         * </p>
+         * 
+         * @return {@code true} if succeeded, {@code false} otherwise.
+         * @throws IOException
+         *             if output file is the same as input file.
+         */
+        private boolean reflinkOutputFile() throws IOException {
+            if (mOutputFile.getCanonicalFile().equals(
+                    mInputFile.getCanonicalFile()))
+                throw new IOException(
+                        "Output file must be different from input file");
+
+            Process p = null;
+            try {
+                p = new ProcessBuilder(new String[] { "cp",
+                        "--reflink=always", mInputFile.getAbsolutePath(),
+                        mTempFile.getAbsolutePath() })
+                        .redirectErrorStream(true).start();
+                final InputStream stream = p.getInputStream();
+                final byte[] buffer = new byte[1024];
+                try {
+                    while (stream.read(buffer) > 0) {
+                        // Drain the console
+                    }
+                } finally {
+                    stream.close();
+                }
+
+                return p.waitFor() == 0;
+            } catch (InterruptedException e) {
+                /*
+                 * Stop the child process, so it doesn't write the temporary
+                 * file any more, and cancel the job. The caller must not fall
+                 * back to copying.
+                 */
+                p.destroy();
+                mCancelled = true;
+                return false;
+            } catch (Exception e) {
+                L.e("%s >> reflinkOutputFile() >> %s",
+                        ZipAligner.class.getSimpleName(), e);
+                return false;
+            }
+        }// reflinkOutputFile()
+
+        /**
+         * Computes the layout of output file: offset of every local header,
+         * its padding, and the offset of the central directory.
+         * 
+         * @throws IOException
+         */
+        private void planLayout() throws IOException {
+            final ByteBuffer header = newLocalHeaderBuffer();
+            final byte[] original = new byte[header.capacity()];
+            final byte[] extra = new byte[0xffff];
+
+            long offset = 0;
+            long centralDirSize = 0;
+            final int entryCount = mCentralDir.size();
+            for (int i = 0; i < entryCount; i++) {
+                final long inputHeaderOffset = mCentralDir
+                        .getLocalHeaderOffset(i);
+                final int inputHeaderSize = readLocalHeader(mInputChannel,
+                        inputHeaderOffset, header);
+                if (mAlignmentExtraField || mReproducible)
+                    System.arraycopy(header.array(), 0, original, 0,
+                            inputHeaderSize);
+                final int nameLen = header
+                        .getShort(ZipCentralDirectory.LOC_OFFSET_NAME_LEN) & 0xffff;
+                final int extraLen = header.getShort(ZIP_ENTRY_OFFSET_EXTRA_LEN) & 0xffff;
+
+                final long compressedSize = getCompressedSize(i);
+                final long dataLength = compressedSize
+                        + ((header.getShort(ZIP_ENTRY_OFFSET_FLAGS) & ZIP_ENTRY_USES_DATA_DESCR) != 0 ? getDataDescriptorLength(
+                                mInputChannel,
+                                inputHeaderOffset + inputHeaderSize
+                                        + compressedSize,
+                                ZipExtraFields.find(header.array(),
+                                        ZIP_ENTRY_HEADER_LEN + nameLen,
+                                        extraLen, ZipExtraFields.ZIP64) >= 0)
+                                : 0);
+
+                final int headerSize = mReproducible ? normalizeLocalHeader(header)
+                        : inputHeaderSize;
+                final int padding;
+                final int alignment;
+                final int outputHeaderSize;
+                if (mEntries.getMethod(i) != ZipEntry.STORED) {
+                    /*
+                     * The entry is compressed, copy it without padding.
+                     */
+                    padding = 0;
+                    alignment = 0;
+                    outputHeaderSize = headerSize;
+                } else {
+                    alignment = mPolicy.hasRules() ? mPolicy
+                            .getAlignment(mCentralDir.getName(i)) : mPolicy
+                            .getDefaultAlignment();
+                    if (mAlignmentExtraField) {
+                        final int size = removeAlignmentRecords(header);
+                        padding = getAlignmentRecordLength(offset + size,
+                                alignment);
+                        outputHeaderSize = appendAlignmentRecord(header,
+                                size, padding, alignment);
+                    } else {
+                        final long newOffset = offset + headerSize;
+                        padding = (int) ((alignment - (newOffset % alignment)) % alignment);
+                        outputHeaderSize = headerSize + padding;
+                    }
+
+                    if (outputHeaderSize - ZIP_ENTRY_HEADER_LEN - nameLen > 0xffff)
+                        throw new IOException(String.format(
+                                "Cannot align entry #%,d, its extra field is too long",
+                                i));
+                    mTotalPadding += padding;
+                }
+
+                if (outputHeaderSize != inputHeaderSize
+                        || mEntries.isRecompressed(i)
+                        || ((mReproducible || (mAlignmentExtraField && alignment > 0)) && !equals(
+                                original, header.array(), inputHeaderSize)))
+                    mChangedHeaders++;
+
+                mEntries.setHeader(i, inputHeaderOffset, inputHeaderSize);
+                mEntries.setDataLength(i, dataLength);
+                mEntries.setOutputHeader(i, offset, outputHeaderSize, padding);
+                mEntries.setAlignment(i, alignment);
+                mEntries.setFlags(i, (padding > 0 ? ProgressEvent.FLAG_PADDED
+                        : alignment == 0 ? ProgressEvent.FLAG_COMPRESSED : 0)
+                        | (mEntries.isRecompressed(i) ? ProgressEvent.FLAG_RECOMPRESSED
+                                : 0));
+
+                offset += outputHeaderSize + dataLength;
+                if (isCentralRecordCopied(i))
+                    centralDirSize += mCentralDir.getRecordLength(i);
+                else
+                    centralDirSize += ZipCentralDirectory.CENHDR
+                            + mCentralDir.getNameLength(i)
+                            + prepareCentralExtra(i, extra)
+                            + mCentralDir.getCommentLength(i);
+            }// for
+
+            mCentralDirOffset = offset;
+            mCentralDirSize = centralDirSize;
+            mOutputSize = offset
+                    + centralDirSize
+                    + (isZip64End() ? ZipCentralDirectory.ZIP64_ENDHDR
+                            + ZipCentralDirectory.ZIP64_LOCHDR : 0)
+                    + ZipCentralDirectory.ENDHDR + getComment().length;
+
+            if (Sys.DEBUG)
+                L.d("\tplanLayout() >> total padding = %,d, output size = %,d",
+                        mTotalPadding, mOutputSize);
+        }// planLayout()
+
+        /**
+         * Compares first {@code len} bytes of two arrays.
+         * 
+         * @param a
+         *            the first array.
+         * @param b
+         *            the second array.
+         * @param len
+         *            the number of bytes to compare.
+         * @return {@code true} if they're equal, {@code false} otherwise.
+         */
+        private static boolean equals(byte[] a, byte[] b, int len) {
+            for (int i = 0; i < len; i++)
+                if (a[i] != b[i])
+                    return false;
+            return true;
+        }// equals()
+
+        /**
+         * Reads the local header of an entry and rewrites it for output file
+         * (normalises it in reproducible mode, then adds padding or replaces
+         * the alignment record).
+         * 
+         * @param header
+         *            the buffer, see {@link ZipAlign#newLocalHeaderBuffer()}.
+         * @param index
+         *            the entry index.
+         * @return the output header size.
+         * @throws IOException
+         */
+        private int readOutputHeader(ByteBuffer header, int index)
+                throws IOException {
+            int size = readLocalHeader(mInputChannel,
+                    mEntries.getHeaderOffset(index), header);
+            if (mReproducible)
+                size = normalizeLocalHeader(header);
+
+            final int alignment = mEntries.getAlignment(index);
+            final int padding = mEntries.getPadding(index);
+            size = mAlignmentExtraField && alignment > 0 ? appendAlignmentRecord(
+                    header, removeAlignmentRecords(header), padding, alignment)
+                    : appendPadding(header, size, padding);
+            if (size != mEntries.getOutputHeaderSize(index))
+                throw new IOException(String.format(
+                        "Header of entry #%,d is %,d bytes, expected %,d",
+                        index, size, mEntries.getOutputHeaderSize(index)));
+            if (mEntries.isRecompressed(index)) {
+                header.putInt(ZIP_ENTRY_OFFSET_COMPRESSED_SIZE,
+                        (int) mEntries.getRecompressedSize(index));
+                header.putShort(ZIP_ENTRY_OFFSET_METHOD,
+                        (short) mEntries.getMethod(index));
+                header.putShort(ZIP_ENTRY_OFFSET_FLAGS,
+                        (short) getFlags(index));
+                if (mEntries.getMethod(index) != mCentralDir.getMethod(index))
+                    header.putShort(ZIP_ENTRY_OFFSET_VERSION,
+                            (short) (isZip64(index) || hasZip64Record(header) ? ZipCentralDirectory.ZIP64_VERSION
+                                    : ZIP_ENTRY_VERSION));
+            }
+            return size;
+        }// readOutputHeader()
+
+        /**
+         * Checks if a local header has ZIP64 extended information.
+         * 
+         * @param header
+         *            the local header.
+         * @return {@code true} or {@code false}.
+         */
+        private static boolean hasZip64Record(ByteBuffer header) {
+            final int nameLen = header
+                    .getShort(ZipCentralDirectory.LOC_OFFSET_NAME_LEN) & 0xffff;
+            return ZipExtraFields.find(header.array(), ZIP_ENTRY_HEADER_LEN
+                    + nameLen, header.getShort(ZIP_ENTRY_OFFSET_EXTRA_LEN) & 0xffff,
+                    ZipExtraFields.ZIP64) >= 0;
+        }// hasZip64Record()
+
+        /**
+         * Gets the general purpose bit flags of an entry in output file.
+         * 
+         * @param index
+         *            the entry index.
+         * @return the flags, whose deflating options are cleared if the
+         *         entry has been converted to another method.
+         */
+        private int getFlags(int index) {
+            final int flags = mCentralDir.getFlags(index);
+            return mEntries.getMethod(index) != mCentralDir.getMethod(index) ? flags
+                    & ~ZIP_ENTRY_DEFLATING_OPTIONS
+                    : flags;
+        }// getFlags()
+
+        /**
+         * Gets the compressed size of an entry in output file.
+         * 
+         * @param index
+         *            the entry index.
+         * @return the size of recompressed data if the entry has been
+         *         recompressed, or the original compressed size.
+         */
+        private long getCompressedSize(int index) {
+            return mEntries.isRecompressed(index) ? mEntries
+                    .getRecompressedSize(index) : mCentralDir
+                    .getCompressedSize(index);
+        }// getCompressedSize()
+
+        /**
+         * Checks if an entry needs ZIP64 extended information in its central
+         * directory record.
+         * 
+         * @param index
+         *            the entry index.
+         * @return {@code true} or {@code false}.
+         */
+        private boolean isZip64(int index) {
+            return mCentralDir.getSize(index) >= ZipCentralDirectory.ZIP64_MAGIC
+                    || getCompressedSize(index) >= ZipCentralDirectory.ZIP64_MAGIC
+                    || mEntries.getOutputHeaderOffset(index) >= ZipCentralDirectory.ZIP64_MAGIC;
+        }// isZip64()
+
+        /**
+         * Checks if the output file needs the ZIP64 end of central directory
+         * record.
+         * 
+         * @return {@code true} or {@code false}.
+         */
+        private boolean isZip64End() {
+            return mEntries.size() >= ZipCentralDirectory.ZIP64_MAGIC_COUNT
+                    || mCentralDirSize >= ZipCentralDirectory.ZIP64_MAGIC
+                    || mCentralDirOffset >= ZipCentralDirectory.ZIP64_MAGIC;
+        }// isZip64End()
+
+        /**
+         * Prepares the "extra" field of an entry's central directory record:
+         * existing ZIP64 extended information (or in reproducible mode, the
+         * whole field) is dropped, and new one is appended if needed.
+         * 
+         * @param i
+         *            the entry index.
+         * @param extra
+         *            the buffer to hold the "extra" field, should be able to
+         *            hold {@code 0xffff} bytes.
+         * @return the length of the "extra" field.
+         * @throws IOException
+         *             if the "extra" field is too long.
+         */
+        private int prepareCentralExtra(int i, byte[] extra)
+                throws IOException {
+            int len = mReproducible ? 0 : ZipExtraFields.remove(extra, 0,
+                    mCentralDir.getExtra(i, extra, 0), ZipExtraFields.ZIP64);
+            if (!isZip64(i))
+                return len;
+
+            final long headerOffset = mEntries.getOutputHeaderOffset(i);
+            final long size = mCentralDir.getSize(i);
+            final long compressedSize = getCompressedSize(i);
+            final int dataLen = 8 * ((size >= ZipCentralDirectory.ZIP64_MAGIC ? 1
+                    : 0)
+                    + (compressedSize >= ZipCentralDirectory.ZIP64_MAGIC ? 1
+                            : 0) + (headerOffset >= ZipCentralDirectory.ZIP64_MAGIC ? 1
+                    : 0));
+            if (len + ZipExtraFields.RECORD_HEADER_LEN + dataLen > extra.length)
+                throw new IOException(String.format(
+                        "Extra field of entry #%,d is too long", i));
+
+            ZipExtraFields.put16(extra, len, ZipExtraFields.ZIP64);
+            ZipExtraFields.put16(extra, len + 2, dataLen);
+            len += ZipExtraFields.RECORD_HEADER_LEN;
+            if (size >= ZipCentralDirectory.ZIP64_MAGIC) {
+                ZipExtraFields.put64(extra, len, size);
+                len += 8;
+            }
+            if (compressedSize >= ZipCentralDirectory.ZIP64_MAGIC) {
+                ZipExtraFields.put64(extra, len, compressedSize);
+                len += 8;
+            }
+            if (headerOffset >= ZipCentralDirectory.ZIP64_MAGIC) {
+                ZipExtraFields.put64(extra, len, headerOffset);
+                len += 8;
+            }
+
+            return len;
+        }// prepareCentralExtra()
+
+        /**
+         * Gets the ZIP file comment of output file.
+         * 
+         * @return the comment of input file, or an empty one in reproducible
+         *         mode.
+         */
+        private byte[] getComment() {
+            return mReproducible ? new byte[0] : mCentralDir.getComment();
+        }// getComment()
+
+        /**
+         * Checks if the central directory record of an entry will be copied
+         * from input file, rather than rebuilt. Records of recompressed (or
+         * converted) entries are copied too, see
+         * {@link #patchCentralRecord(ByteBuffer, int, int)}.
+         * 
+         * @param index
+         *            the entry index.
+         * @return {@code true} or {@code false}.
+         */
+        private boolean isCentralRecordCopied(int index) {
+            return mCopyCentralRecords && !mReproducible
+                    && !mCentralDir.isLocalHeaderOffsetInZip64(index)
+                    && mEntries.getOutputHeaderOffset(index) < ZipCentralDirectory.ZIP64_MAGIC;
+        }// isCentralRecordCopied()
+
+        /**
+         * Copies a run of central directory records from input file, starting
+         * at an entry. The run ends at the first entry whose record is not
+         * copied, or which doesn't fit into {@code buffer}. Local header
+         * offsets (and records of recompressed or converted entries) are
+         * patched, then the whole run is written at once.
+         * 
+         * @param first
+         *            the index of the first entry. Its record must be copied.
+         * @param buffer
+         *            the buffer, which must be able to hold the largest
+         *            record.
+         * @return the index of the entry after the run.
+         * @throws IOException
+         *             if any.
+         */
+        private int copyCentralRecords(int first, ByteBuffer buffer)
+                throws IOException {
+            final int start = mCentralDir.getRecordOffset(first);
+            int end = start + mCentralDir.getRecordLength(first);
+            int last = first + 1;
+            for (; last < mEntries.size(); last++) {
+                final int recordLen = mCentralDir.getRecordLength(last);
+                if (!isCentralRecordCopied(last)
+                        || end - start + recordLen > buffer.capacity())
+                    break;
+                end += recordLen;
+            }// for
+
+            final int len = mCentralDir.getRecords(first, last - first,
+                    buffer.array(), 0);
+            buffer.clear();
+            for (int i = first; i < last; i++) {
+                final int offset = mCentralDir.getRecordOffset(i) - start;
+                buffer.putInt(offset
+                        + ZipCentralDirectory.CEN_LOCAL_HEADER_OFFSET,
+                        (int) mEntries.getOutputHeaderOffset(i));
+                if (mEntries.isRecompressed(i))
+                    patchCentralRecord(buffer, offset, i);
+            }// for
+            mOutputStream.write(buffer.array(), 0, len);
+
+            return last;
+        }// copyCentralRecords()
+
+        /**
+         * Patches a copied central directory record of a recompressed (or
+         * converted) entry. Its CRC, uncompressed size and "extra" field stay
+         * the same, because entries which use ZIP64 sizes are not
+         * recompressed.
+         * 
+         * @param record
+         *            the buffer which holds the record.
+         * @param offset
+         *            the offset of the record in {@code record}.
+         * @param index
+         *            the entry index.
+         */
+        private void patchCentralRecord(ByteBuffer record, int offset,
+                int index) {
+            record.putInt(offset + ZipCentralDirectory.CEN_COMPRESSED_SIZE,
+                    (int) mEntries.getRecompressedSize(index));
+            if (mEntries.getMethod(index) == mCentralDir.getMethod(index))
+                return;
+
+            final int extraOffset = offset + ZipCentralDirectory.CENHDR
+                    + mCentralDir.getNameLength(index);
+            final boolean zip64 = isZip64(index)
+                    || ZipExtraFields.find(record.array(), extraOffset,
+                            mCentralDir.getExtraLength(index),
+                            ZipExtraFields.ZIP64) >= 0;
+            record.putShort(offset + ZipCentralDirectory.CEN_VERSION_NEEDED,
+                    (short) (zip64 ? ZipCentralDirectory.ZIP64_VERSION
+                            : ZIP_ENTRY_VERSION));
+            record.putShort(offset + ZipCentralDirectory.CEN_FLAGS,
+                    (short) getFlags(index));
+            record.putShort(offset + ZipCentralDirectory.CEN_METHOD,
+                    (short) mEntries.getMethod(index));
+        }// patchCentralRecord()
+
+        /**
+         * Checks if entries will be copied concurrently.
+         * 
+         * @return {@code true} or {@code false}.
+         */
+        private boolean isConcurrent() {
+            return mParallelism > 1 && mOutputFile != null && !mInPlace;
+        }// isConcurrent()
+
+        /**
+         * Copies all entries, aligning them if needed.
+         * <p>
+         * This takes 80% of total, or 40% if entries have been recompressed.
+         * </p>
+         * 
+         * @throws IOException
+         */
+        private void copyAllEntries() throws IOException {
+            final int entryCount = mEntries.size();
+            if (entryCount == 0) {
+                sendNotification(MSG_INFO, mProgress += 80);
+                return;
+            }
+
+            startCopying(mCentralDirOffset, mResumeOffset,
+                    isRecompressing() ? 40 : 80);
+            for (int i = 0; i < mResumeEntry; i++)
+                notifyEntryCopied(i);
+
+            if (mCrcChecked)
+                startCheckingCrcs(mResumeEntry, false);
+            try {
+                if (isConcurrent())
+                    copyAllEntriesConcurrently();
+                else
+                    copyAllEntriesSequentially();
+                finishCheckingCrcs(false);
+            } finally {
+                finishCheckingCrcs(true);
+            }
+
+            notifyProgress(true);
+        }// copyAllEntries()
+
+        /**
+         * Copies all entries one by one, with the output stream.
+         * 
+         * @throws IOException
+         */
+        private void copyAllEntriesSequentially() throws IOException {
+            final int entryCount = mEntries.size();
+            final ByteBuffer header = newLocalHeaderBuffer();
+            int i = mResumeEntry;
+            for (; i < entryCount && !isCancelled(); i++) {
+                if (mOutputStream.totalWritten != mEntries
+                        .getOutputHeaderOffset(i))
+                    throw new IOException(String.format(
+                            "Entry #%,d is at %,d, expected %,d", i,
+                            mOutputStream.totalWritten,
+                            mEntries.getOutputHeaderOffset(i)));
+
+                /*
+                 * Copy the original local header, add padding to its `extra`
+                 * field.
+                 */
+                mOutputStream.write(header.array(), 0,
+                        readOutputHeader(header, i));
+
+                /*
+                 * Copy raw data. Stored data is checked on the fly, the data
+                 * descriptor (if any) follows it.
+                 */
+                if (mEntries.isRecompressed(i))
+                    copyRawData(mSpools[mEntries.getSpool(i)],
+                            mEntries.getRecompressedOffset(i),
+                            mEntries.getRecompressedSize(i), null);
+                else if (mCrcChecked
+                        && mCentralDir.getMethod(i) == ZipEntry.STORED) {
+                    final long size = mCentralDir.getCompressedSize(i);
+                    mCrc.reset();
+                    copyRawData(mRafInput, mEntries.getDataOffset(i), size,
+                            mCrc);
+                    if (!isCancelled()
+                            && (mCrc.getValue() != mCentralDir.getCrc(i) || size != mCentralDir
+                                    .getSize(i)))
+                        notifyBadEntry(i);
+                    copyRawData(mRafInput, mEntries.getDataOffset(i) + size,
+                            mEntries.getDataLength(i) - size, null);
+                } else if (mEntries.getDataLength(i) > 0)
+                    copyRawData(mRafInput, mEntries.getDataOffset(i),
+                            mEntries.getDataLength(i), null);
+                if (isCancelled())
+                    break;
+                if (mCrcChecked)
+                    throwCrcError();
+
+                notifyEntryCopied(i);
+                notifyBytesCopied(mOutputStream.totalWritten);
+                syncIfDue();
+
+                if (isJournaled()
+                        && mOutputStream.totalWritten - mCheckpointOffset >= JOURNAL_CHECKPOINT_BYTES)
+                    saveCheckpoint(i + 1, mOutputStream.totalWritten);
+            }// for
+
+            /*
+             * Entry #i is not done if cancelled.
+             */
+            if (isJournaled() && isCancelled())
+                saveCheckpoint(i, getOutputHeaderOffset(i));
+        }// copyAllEntriesSequentially()
+
+        /**
+         * Copies all entries with a pool of {@link #mParallelism} threads.
+         * Every entry is written with positional writes at its planned offset.
+         * 
+         * @throws IOException
+         */
+        private void copyAllEntriesConcurrently() throws IOException {
+            final int entryCount = mEntries.size();
+            final AtomicInteger nextEntry = new AtomicInteger(mResumeEntry);
+            final AtomicIntegerArray copiedEntries = new AtomicIntegerArray(
+                    entryCount);
+            final AtomicBoolean cancelled = new AtomicBoolean();
+            final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+            final AtomicLong copiedBytes = new AtomicLong(mResumeOffset);
+
+            final ExecutorService executor = Executors
+                    .newFixedThreadPool(mParallelism);
+            for (int t = 0; t < mParallelism; t++) {
+                executor.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        final ByteBuffer header = newLocalHeaderBuffer();
+                        final ByteBuffer buf = mCrcChecked ? ByteBuffer
+                                .allocate(Files.FILE_BUFFER) : ByteBuffer
+                                .allocateDirect(Files.FILE_BUFFER);
+                        final CRC32 crc = mCrcChecked ? new CRC32() : null;
+                        try {
+                            int i;
+                            while (!cancelled.get()
+                                    && (i = nextEntry.getAndIncrement()) < entryCount) {
+                                if (writeEntryAt(i, header, buf, crc,
+                                        copiedBytes, cancelled))
+                                    copiedEntries.set(i, 1);
+                            }
+                        } catch (Throwable t) {
+                            error.compareAndSet(null, t);
+                            cancelled.set(true);
+                        }
+                    }// run()
+                });
+            }// for
+            executor.shutdown();
+
+            /*
+             * Report entries in order, as soon as they're copied.
+             */
+            boolean interrupted = false;
+            boolean terminated = false;
+            int reported = mResumeEntry;
+            while (!terminated) {
+                try {
+                    terminated = executor.awaitTermination(
+                            UI.DELAY_TIME_UPDATING_UI, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    cancelled.set(true);
+                }
+                if (isCancelled() || isCrcFailed())
+                    cancelled.set(true);
+
+                while (!cancelled.get() && reported < entryCount
+                        && copiedEntries.get(reported) != 0)
+                    notifyEntryCopied(reported++);
+                if (cancelled.get())
+                    continue;
+
+                notifyBytesCopied(copiedBytes.get());
+
+                try {
+                    syncIfDue();
+
+                    /*
+                     * Entries before #reported are all done, so it's a
+                     * checkpoint.
+                     */
+                    if (isJournaled()
+                            && getOutputHeaderOffset(reported) - mCheckpointOffset >= JOURNAL_CHECKPOINT_BYTES)
+                        saveCheckpoint(reported,
+                                getOutputHeaderOffset(reported));
+                } catch (Throwable t) {
+                    error.compareAndSet(null, t);
+                    cancelled.set(true);
+                }
+            }// while
+
+            if (interrupted)
+                interrupt();
+
+            if (isCancelled() && isJournaled() && error.get() == null) {
+                while (reported < entryCount
+                        && copiedEntries.get(reported) != 0)
+                    reported++;
+                saveCheckpoint(reported, getOutputHeaderOffset(reported));
+            }
+
+            final Throwable t = error.get();
+            if (t instanceof IOException)
+                throw (IOException) t;
+            else if (t != null)
+                throw new IOException(t);
+
+            /*
+             * The central directory follows.
+             */
+            mOutputChannel.position(mCentralDirOffset);
+            mOutputStream.totalWritten = mCentralDirOffset;
+        }// copyAllEntriesConcurrently()
+
+        /**
+         * Gets the offset of an entry's local header in output file.
+         * 
+         * @param index
+         *            the entry index, or the number of entries for the
+         *            central directory.
+         * @return the offset.
+         */
+        private long getOutputHeaderOffset(int index) {
+            return index < mEntries.size() ? mEntries
+                    .getOutputHeaderOffset(index) : mCentralDirOffset;
+        }// getOutputHeaderOffset()
+
+        /**
+         * Writes an entry to its planned offset in output file. This method is
+         * called from worker threads.
+         * 
+         * @param index
+         *            the entry index.
+         * @param header
+         *            the buffer to hold the local header, see
+         *            {@link ZipAlign#newLocalHeaderBuffer()}.
+         * @param buf
+         *            the buffer to copy data, it must have a backing array if
+         *            {@code crc} is not {@code null}.
+         * @param crc
+         *            the CRC to check stored data, can be {@code null}.
+         * @param copiedBytes
+         *            the counter of bytes written.
+         * @param cancelled
+         *            the cancellation flag.
+         * @return {@code true} if the entry has been written completely,
+         *         {@code false} if it has been cancelled.
+         * @throws IOException
+         */
+        private boolean writeEntryAt(int index, ByteBuffer header,
+                ByteBuffer buf, CRC32 crc, AtomicLong copiedBytes,
+                AtomicBoolean cancelled) throws IOException {
+            final long headerOffset = mEntries.getOutputHeaderOffset(index);
+            final int headerSize = readOutputHeader(header, index);
+            header.position(0).limit(headerSize);
+            writeFully(mOutputChannel, header, headerOffset);
+            copiedBytes.addAndGet(headerSize);
+
+            final boolean recompressed = mEntries.isRecompressed(index);
+            final FileChannel source = recompressed ? mSpools[mEntries
+                    .getSpool(index)].getChannel() : mInputChannel;
+            final long inputDataOffset = recompressed ? mEntries
+                    .getRecompressedOffset(index) : mEntries
+                    .getDataOffset(index);
+            final long outputDataOffset = headerOffset + headerSize;
+            final long dataLength = recompressed ? mEntries
+                    .getRecompressedSize(index) : mEntries
+                    .getDataLength(index);
+            final long crcLength = crc != null && !recompressed
+                    && mCentralDir.getMethod(index) == ZipEntry.STORED ? mCentralDir
+                    .getCompressedSize(index) : -1;
+            if (crcLength >= 0)
+                crc.reset();
+
+            long totalSizeCopied = 0;
+            while (totalSizeCopied < dataLength && !cancelled.get()) {
+                buf.clear();
+                if (buf.remaining() > dataLength - totalSizeCopied)
+                    buf.limit((int) (dataLength - totalSizeCopied));
+                readFully(source, buf, inputDataOffset + totalSizeCopied);
+                buf.flip();
+                if (totalSizeCopied < crcLength)
+                    crc.update(buf.array(), 0, (int) Math.min(buf.limit(),
+                            crcLength - totalSizeCopied));
+                writeFully(mOutputChannel, buf, outputDataOffset
+                        + totalSizeCopied);
+                totalSizeCopied += buf.limit();
+                copiedBytes.addAndGet(buf.limit());
+            }// while
+
+            if (totalSizeCopied < dataLength)
+                return false;
+
+            if (crcLength >= 0
+                    && (crc.getValue() != mCentralDir.getCrc(index) || crcLength != mCentralDir
+                            .getSize(index)))
+                notifyBadEntry(index);
+            return true;
+        }// writeEntryAt()
+
+        /**
+         * Starts checking CRCs of entries with a pool of threads, alongside
+         * the copying. Entries are checked in order, but not necessarily in
+         * step with the copying.
+         * 
+         * @param first
+         *            the first entry to check.
+         * @param stored
+         *            {@code true} to check stored entries as well,
+         *            {@code false} if they're checked on the fly while they're
+         *            being copied.
+         */
+        private void startCheckingCrcs(int first, final boolean stored) {
+            final int entryCount = mEntries.size();
+            final AtomicInteger nextEntry = new AtomicInteger(first);
+            final int threads = Runtime.getRuntime().availableProcessors();
+
+            mCrcExecutor = Executors.newFixedThreadPool(threads);
+            for (int t = 0; t < threads; t++) {
+                mCrcExecutor.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        final CRC32 crc = new CRC32();
+                        final Inflater inflater = new Inflater(true);
+                        final byte[] input = new byte[Files.FILE_BUFFER];
+                        final byte[] output = new byte[Files.FILE_BUFFER];
+                        try {
+                            int i;
+                            while (!mCrcCancelled.get()
+                                    && (i = nextEntry.getAndIncrement()) < entryCount) {
+                                if ((stored || mCentralDir.getMethod(i) != ZipEntry.STORED)
+                                        && !checkCrc(mInputChannel,
+                                                mCentralDir, i,
+                                                mEntries.getDataOffset(i),
+                                                crc, inflater, input, output))
+                                    notifyBadEntry(i);
+                            }
+                        } catch (Throwable t) {
+                            mCrcError.compareAndSet(null, t);
+                            mCrcCancelled.set(true);
+                        } finally {
+                            inflater.end();
+                        }
+                    }// run()
+                });
+            }// for
+            mCrcExecutor.shutdown();
+        }// startCheckingCrcs()
+
+        /**
+         * Waits for the threads which check CRCs to finish, if any.
+         * 
+         * @param cancel
+         *            {@code true} to cancel them first, {@code false} to wait
+         *            for them to check all entries, then throw the error they
+         *            have found, if any.
+         * @throws IOException
+         *             the error which has been found.
+         */
+        private void finishCheckingCrcs(boolean cancel) throws IOException {
+            if (mCrcExecutor == null)
+                return;
+
+            if (cancel)
+                mCrcCancelled.set(true);
+
+            boolean interrupted = false;
+            boolean terminated = false;
+            while (!terminated) {
+                try {
+                    terminated = mCrcExecutor.awaitTermination(
+                            UI.DELAY_TIME_UPDATING_UI, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    mCrcCancelled.set(true);
+                }
+                if (isCancelled())
+                    mCrcCancelled.set(true);
+            }// while
+            mCrcExecutor = null;
+
+            if (interrupted)
+                interrupt();
+
+            if (!cancel && !isCancelled())
+                throwCrcError();
+        }// finishCheckingCrcs()
+
+        /**
+         * Records an entry whose data doesn't match its CRC or size, and stops
+         * checking others. If several entries are found bad, the first one
+         * (by index) is kept. This method can be called from worker threads.
+         * 
+         * @param index
+         *            the entry index.
+         */
+        private void notifyBadEntry(int index) {
+            int badEntry;
+            while (((badEntry = mBadEntry.get()) < 0 || index < badEntry)
+                    && !mBadEntry.compareAndSet(badEntry, index)) {
+                // Try again
+            }
+            mCrcCancelled.set(true);
+        }// notifyBadEntry()
+
+        /**
+         * Checks if CRC checking has found a bad entry, or has failed.
+         * 
+         * @return {@code true} or {@code false}.
+         */
+        private boolean isCrcFailed() {
+            return mBadEntry.get() >= 0 || mCrcError.get() != null;
+        }// isCrcFailed()
+
+        /**
+         * Throws the error which CRC checking has found, if any.
+         * 
+         * @throws IOException
+         *             the error.
+         */
+        private void throwCrcError() throws IOException {
+            final Throwable t = mCrcError.get();
+            if (t instanceof IOException)
+                throw (IOException) t;
+            else if (t != null)
+                throw new IOException(t);
+
+            final int index = mBadEntry.get();
+            if (index >= 0)
+                throw new IOException(String.format(
+                        "Entry #%,d \"%s\" doesn't match its CRC or size",
+                        index, mEntries.getName(index)));
+        }// throwCrcError()
+
+        /**
+         * Starts a copying stage, whose progress is weighted by bytes.
+         * 
+         * @param bytesTotal
+         *            total bytes of the stage.
+         * @param bytesDone
+         *            bytes which are already done, when resuming.
+         * @param progressSpan
+         *            the share of the stage in {@link #mProgress}.
+         */
+        private void startCopying(long bytesTotal, long bytesDone,
+                double progressSpan) {
+            mBytesTotal = bytesTotal;
+            mBytesDone = bytesDone;
+            mEventBytesDone = 0;
+            mBytesProgressStart = mProgress;
+            mBytesProgressSpan = progressSpan;
+            mProgress += progressSpan * bytesDone / Math.max(1, bytesTotal);
+            mSyncedBytes = bytesDone;
+            mSpeedTracker.clear();
+            mSpeedTracker.addTotal(bytesDone);
+        }// startCopying()
+
+        /**
+         * Forces output file to the storage device, if it's due by
+         * {@link DurabilityPolicy#PERIODIC_SYNC}.
+         * 
+         * @throws IOException
+         */
+        private void syncIfDue() throws IOException {
+            if (mDurabilityPolicy != DurabilityPolicy.PERIODIC_SYNC
+                    || mOutputChannel == null
+                    || mBytesDone - mSyncedBytes < PERIODIC_SYNC_BYTES)
+                return;
+
+            mOutputStream.flush();
+            mOutputChannel.force(false);
+            mSyncedBytes = mBytesDone;
+        }// syncIfDue()
+
+        /**
+         * Updates progress with an entry which has been copied. Its bytes are
+         * counted by {@link #notifyBytesCopied(long)}.
+         * 
+         * @param index
+         *            the entry index.
+         */
+        private void notifyEntryCopied(int index) {
+            mNewEntryFlags |= mEntries.getFlags(index);
+            mEntriesDone++;
+        }// notifyEntryCopied()
+
+        /**
+         * Updates progress with bytes which have been copied in current
+         * copying stage.
+         * 
+         * @param bytesDone
+         *            total bytes done so far.
+         */
+        private void notifyBytesCopied(long bytesDone) {
+            mBytesDone = bytesDone;
+            mProgress = mBytesProgressStart + mBytesProgressSpan * bytesDone
+                    / Math.max(1, mBytesTotal);
+            notifyProgress(false);
+        }// notifyBytesCopied()
+
+        /**
+         * Sends a {@link ProgressEvent} of entries and bytes which have been
+         * copied since the previous one, if it's due.
+         * 
+         * @param force
+         *            see {@link #isProgressDue(boolean)}.
+         */
+        private void notifyProgress(boolean force) {
+            if ((mFirstNewEntry == mEntriesDone && mEventBytesDone == mBytesDone)
+                    || !isProgressDue(force))
+                return;
+
+            mSpeedTracker.addTotal(mBytesDone);
+            sendProgress(new ProgressEvent(this, mFirstNewEntry,
+                    mEntriesDone, mEntries.size(), mBytesDone, mBytesTotal,
+                    mNewEntryFlags, mProgress,
+                    mSpeedTracker.calcInstantaneousSpeed(),
+                    mSpeedTracker.calcRemainingTime(mBytesTotal - mBytesDone)));
+            mFirstNewEntry = mEntriesDone;
+            mNewEntryFlags = 0;
+            mEventBytesDone = mBytesDone;
+        }// notifyProgress()
+
+        @Override
+        public String getEntryName(int index) {
+            return mEntries.getName(index);
+        }// getEntryName()
+
+        @Override
+        public int getEntryFlags(int index) {
+            return mEntries.getFlags(index);
+        }// getEntryFlags()
+
+        @Override
+        public String formatEntry(int index) {
+            final int padding = mEntries.getPadding(index);
+            if (mEntries.isRecompressed(index))
+                return String.format("%,15d  %s  (%s, %s -> %s)\n",
+                        mEntries.getDataOffset(index), getEntryName(index),
+                        Messages.getString(R.string.recompressed),
+                        Texts.sizeToStr(mCentralDir.getCompressedSize(index)),
+                        Texts.sizeToStr(mEntries.getRecompressedSize(index)));
+            if (padding == 0)
+                return String.format("%,15d  %s  (%s, %s)\n",
+                        mEntries.getDataOffset(index), getEntryName(index),
+                        Messages.getString(R.string.compressed),
+                        Messages.getString(R.string.passed));
+            return String.format("%,15d  %s  (%s, %s)\n",
+                    mEntries.getDataOffset(index), getEntryName(index),
+                    Messages.getString(R.string.aligned),
+                    Texts.sizeToStr(padding));
+        }// formatEntry()
+
+        /**
+         * Copies raw data from input file (or a spool file) to output. This
+         * method returns early if the job is cancelled, which is checked after
+         * every chunk.
+         * 
+         * @param source
+         *            input file, or a spool file.
+         * @param offset
+         *            the offset in {@code source}.
+         * @param size
+         *            the size of data to copy.
+         * @param crc
+         *            the CRC to update with the data, can be {@code null}.
+         * @throws IOException
+         */
+        private void copyRawData(RandomAccessFile source, long offset,
+                long size, CRC32 crc) throws IOException {
+            if (mOutputChannel != null && crc == null) {
+                /*
+                 * Flush pending headers first, so the data lands after them.
+                 */
+                mOutputStream.flush();
+
+                long totalSizeCopied = 0;
+                while (totalSizeCopied < size && !isCancelled()) {
+                    final long count = source.getChannel().transferTo(offset
+                            + totalSizeCopied, Math.min(COPY_PROGRESS_CHUNK,
+                            size - totalSizeCopied), mOutputChannel);
+                    if (count <= 0)
+                        throw new IOException("Unexpected end of file");
+                    totalSizeCopied += count;
+                    mOutputStream.totalWritten += count;
+                    notifyBytesCopied(mOutputStream.totalWritten);
+                    syncIfDue();
+                }// while
+
+                return;
+            }// if
+
+            source.seek(offset);
+
+            long totalSizeCopied = 0;
+            while (totalSizeCopied < size && !isCancelled()) {
+                int read = source.read(mBuffer, 0,
+                        (int) Math.min(mBuffer.length, size - totalSizeCopied));
+                if (read <= 0)
+                    throw new IOException("Unexpected end of file");
+
+                if (crc != null)
+                    crc.update(mBuffer, 0, read);
+                mOutputStream.write(mBuffer, 0, read);
+                totalSizeCopied += read;
+                notifyBytesCopied(mOutputStream.totalWritten);
+                syncIfDue();
+            }// while
+        }// copyRawData()
+
+        /**
+         * Builds central directory.
+         * <p>
+         * This takes 10% of total.
+         * </p>
+         * 
+         * @throws IOException
+         */
+        private void buildCentralDirectory() throws IOException {
+            final long centralDirOffset = mOutputStream.totalWritten;
+
+            L.d("\tWriting Central Directory at %,d", centralDirOffset);
+
+            final ByteBuffer record = newCentralHeaderBuffer();
+            final byte[] extra = new byte[0xffff];
+            final int entryCount = mEntries.size();
+            for (int i = 0; i < entryCount;) {
+                if (isCancelled())
+                    return;
+
+                if (isCentralRecordCopied(i)) {
+                    i = copyCentralRecords(i, record);
+                    continue;
+                }
+
+                /*
+                 * Rebuild the record.
+                 */
+                final int extraLen = prepareCentralExtra(i, extra);
+                final int version = isZip64(i) ? ZipCentralDirectory.ZIP64_VERSION
+                        : ZIP_ENTRY_VERSION;
+
+                putCentralHeader(record, version, getFlags(i),
+                        mEntries.getMethod(i),
+                        mReproducible ? REPRODUCIBLE_DOS_TIME : mCentralDir
+                                .getDosTime(i),
+                        mReproducible ? REPRODUCIBLE_DOS_DATE : mCentralDir
+                                .getDosDate(i), mCentralDir.getCrc(i),
+                        getCompressedSize(i),
+                        mCentralDir.getSize(i), mCentralDir.getNameLength(i),
+                        extraLen, mCentralDir.getCommentLength(i),
+                        mEntries.getOutputHeaderOffset(i));
+                int pos = ZipCentralDirectory.CENHDR;
+                pos += mCentralDir.getName(i, record.array(), pos);
+                System.arraycopy(extra, 0, record.array(), pos, extraLen);
+                pos += extraLen;
+                pos += mCentralDir.getComment(i, record.array(), pos);
+                mOutputStream.write(record.array(), 0, pos);
+                i++;
+            }// for
+
+            if (isCancelled())
+                return;
+
+            sendNotification(MSG_INFO, mProgress += 5);
+
+            /*
+             * Write the end of central directory.
+             */
+            final long centralDirSize = mOutputStream.totalWritten
+                    - centralDirOffset;
+            L.d("\tWriting End of Central Directory, its size = %,d",
+                    centralDirSize);
+            if (centralDirOffset != mCentralDirOffset
+                    || centralDirSize != mCentralDirSize)
+                throw new IOException(String.format(
+                        "Central directory is at %,d (%,d bytes), expected %,d (%,d bytes)",
+                        centralDirOffset, centralDirSize, mCentralDirOffset,
+                        mCentralDirSize));
+
+            writeEndRecords(mOutputStream, mEntries.size(), centralDirOffset,
+                    centralDirSize, getComment());
+
+            mOutputStream.flush();
+
+            /*
+             * Output file may have been preallocated, so it must end here.
+             */
+            if (mOutputStream.totalWritten != mOutputSize)
+                throw new IOException(String.format(
+                        "Output size is %,d, expected %,d",
+                        mOutputStream.totalWritten, mOutputSize));
+
+            sendNotification(MSG_INFO, mProgress += 5);
+        }// buildCentralDirectory()
+
+        /**
+         * Closes all files, and commits output file if needed.
+         * <p>
+         * This takes 5% of total.
+         * </p>
+         * 
+         * @param commit
+         *            {@code true} to commit output file, see
+         *            {@link #commitOutputFile()}.
+         * @throws IOException
+         */
+        private void closeFiles(boolean commit) throws IOException {
+            /*
+             * Output channel is input channel when aligning in place, so
+             * force it before closing input file.
+             */
+            try {
+                if (commit && mOutputChannel != null
+                        && mDurabilityPolicy != DurabilityPolicy.NONE) {
+                    /*
+                     * There is no output stream if output file has been
+                     * copied from the cache.
+                     */
+                    if (mOutputStream != null)
+                        mOutputStream.flush();
+                    mOutputChannel.force(false);
+                }
+            } finally {
+                try {
+                    if (mRafInput != null)
+                        mRafInput.close();
+                } finally {
+                    if (mOutputStream != null)
+                        mOutputStream.close();
+                    else if (mOutputChannel != null)
+                        mOutputChannel.close();
+                }
+            }
+
+            if (commit)
+                commitOutputFile();
+
+            sendNotification(MSG_INFO, mProgress = 100, Texts.NULL,
+                    String.format("\n%s", Messages.getString(
+                            R.string.pmsg_alignment_done,
+                            mOutputFile != null ? mOutputFile.getName()
+                                    : mOutput)));
+        }// closeFiles()
+
+        /**
+         * Commits output file: renames the temporary file to output file
+         * atomically, replacing the existing one (if any). Then forces the
+         * directory to the storage device if needed, on platforms which
+         * support it.
+         * 
+         * @throws IOException
+         */
+        private void commitOutputFile() throws IOException {
+            if (mTempFile == null)
+                return;
+
+            java.nio.file.Files.move(mTempFile.toPath(), mOutputFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+
+            if (mDurabilityPolicy == DurabilityPolicy.NONE)
+                return;
+
+            try {
+                final FileChannel dir = FileChannel.open(mTempFile
+                        .getParentFile().toPath(), StandardOpenOption.READ);
+                try {
+                    dir.force(true);
+                } finally {
+                    dir.close();
+                }
+            } catch (IOException e) {
+                /*
+                 * Some platforms (e.g. Windows) can't open directories.
+                 */
+                L.d("%s >> commitOutputFile() >> %s",
+                        ZipAligner.class.getSimpleName(), e);
+            }
+        }// commitOutputFile()
+    }// ZipAligner
+
+    /**
+     * The ZIP aligner which works on streams.
+     * <p>
+     * Unlike {@link ZipAligner}, this one doesn't need to seek in input: it
+     * reads local file headers one by one from an {@link InputStream} (for
+     * example a pipe from the packager), writes aligned entries to an
+     * {@link OutputStream}, and rebuilds the central directory from the
+     * entries it has collected along the way. The central directory of input
+     * is skipped. Memory usage is bounded by the size of the new central
+     * directory.
+     * </p>
+     * <p>
+     * Notes:
+     * <ul>
+     * <li>Entries which use data descriptors must be
+     * {@link ZipEntry#DEFLATED}, their ends are found by inflating them. A
+     * {@link ZipEntry#STORED} entry with data descriptor can't be delimited
+     * without the central directory, it is rejected.</li>
+     *
+     * <li>Entry comments are only available in the central directory of
+     * input, so they are not kept.</li>
+     *
+     * <li>The size of input is unknown, so progress stays at 5% while
+     * copying entries.</li>
+     * </ul>
+     * </p>
+     *
+     * @author Hai Bison
+     * @since v1.8.6 beta
+     */
+    public static class ZipStreamAligner extends BaseThread {
+
+        private final InputStream mInput;
+        private final ZipAlignmentPolicy mPolicy;
+        private final OutputStream mOutput;
+
+        /**
+         * Creates new instance.
+         * <p>
+         * Both streams will be closed when the job finishes.
+         * </p>
+         *
+         * @param input
+         *            the input stream.
+         * @param policy
+         *            the alignment policy.
+         * @param output
+         *            the output stream.
+         */
+        public ZipStreamAligner(InputStream input, ZipAlignmentPolicy policy,
+                OutputStream output) {
+            mInput = input;
+            mPolicy = policy;
+            mOutput = output;
+
+            setName(Messages.getString(R.string.apk_aligner_thread));
+        }// ZipStreamAligner()
+
+        /**
+         * Sets whether to pad entries with alignment records.
+         * 
+         * @param alignmentExtraField
+         *            {@code true} or {@code false}.
+         * @return the instance of this aligner, to allow chaining multiple
+         *         calls into a single statement.
+         * @see ZipAligner#setAlignmentExtraField(boolean)
+         */
+        public ZipStreamAligner setAlignmentExtraField(
+                boolean alignmentExtraField) {
+            mAlignmentExtraField = alignmentExtraField;
+            return this;
+        }// setAlignmentExtraField()
+
+        private FilterOutputStreamEx mOutputStream;
+        private FilterOutputStreamEx mCentralDirStream;
+        private ByteArrayOutputStream mCentralDir;
+        private final ByteBuffer mRecord = newCentralHeaderBuffer();
+        private boolean mAlignmentExtraField = false;
+        private int mEntryCount = 0;
+        private int mFirstNewEntry = 0;
+        private int mNewEntryFlags = 0;
+        private byte[] mComment = new byte[0];
+
+        /**
+         * The signature which follows the last entry.
+         */
+        private int mSignature;
+
+        /**
+         * Buffer of input.
+         */
+        private final byte[] mBuffer = new byte[Files.FILE_BUFFER];
+        private final ByteBuffer mDescriptor = ByteBuffer.allocate(
+                ZIP64_ENTRY_DATA_DESCRIPTOR_LEN).order(ByteOrder.LITTLE_ENDIAN);
+        private final byte[] mInflated = new byte[Files.FILE_BUFFER];
+        private int mBufferPos = 0;
+        private int mBufferLimit = 0;
+
+        /**
+         * Number of bytes consumed from input.
+         */
+        private long mInputOffset = 0;
+
+        /**
+         * 0 >> 100
+         */
+        private double mProgress = 0;
+        private final SpeedTracker mSpeedTracker = new SpeedTracker();
+
+        @Override
+        public void run() {
+            L.d("%s >> starting", ZipStreamAligner.class.getSimpleName());
+
+            try {
+                openStreams();
+                if (!isInterrupted())
+                    copyAllEntries();
+                if (!isInterrupted())
+                    skipCentralDirectory();
+                if (!isInterrupted())
+                    buildCentralDirectory();
+            } catch (Exception e) {
+                sendNotification(
+                        MSG_ERROR,
+                        Texts.NULL,
+                        Messages.getString(R.string.pmsg_error_details,
+                                e.getMessage(), L.printStackTrace(e)));
+            } finally {
+                try {
+                    closeStreams();
+                } catch (Exception e) {
+                    sendNotification(
+                            MSG_ERROR,
+                            Texts.NULL,
+                            Messages.getString(R.string.pmsg_error_details,
+                                    e.getMessage(), L.printStackTrace(e)));
+                }
+            }
+
+            if (isInterrupted())
+                sendNotification(MSG_ERROR, Texts.NULL,
+                        Messages.getString(R.string.cancelled));
+
+            sendNotification(MSG_DONE);
+
+            L.d("%s >> finishing", ZipStreamAligner.class.getSimpleName());
+        }// run()
+
+        /**
+         * Opens streams.
+         * <p>
+         * This takes 5% of total.
+         * </p>
+         *
+         * @throws IOException
+         */
+        private void openStreams() throws IOException {
+            sendNotification(MSG_INFO, Texts.NULL, String.format(
+                    "%s\n\n",
+                    Messages.getString(R.string.pmsg_aligning_apk, mInput,
+                            mPolicy)));
+
+            mOutputStream = new FilterOutputStreamEx(new BufferedOutputStream(
+                    mOutput, Files.FILE_BUFFER));
+            mCentralDir = new ByteArrayOutputStream();
+            mCentralDirStream = new FilterOutputStreamEx(mCentralDir);
+
+            sendNotification(MSG_INFO, mProgress = 5);
+        }// openStreams()
+
+        /**
+         * Copies all entries, until the central directory of input has been
+         * reached.
+         * <p>
+         * This takes 80% of total.
+         * </p>
+         *
+         * @throws IOException
+         */
+        private void copyAllEntries() throws IOException {
+            final ByteBuffer header = newLocalHeaderBuffer();
+            final byte[] extra = new byte[0xffff];
+            final Inflater inflater = new Inflater(true);
+            mSpeedTracker.addTotal(mInputOffset);
+            try {
+                while (!isInterrupted()) {
+                    header.clear().limit(ZIP_ENTRY_HEADER_LEN);
+                    readFully(header.array(), 0, 4);
+                    if (header.getInt(0) != ZipCentralDirectory.LOCSIG) {
+                        mSignature = header.getInt(0);
+                        break;
+                    }
+
+                    readFully(header.array(), 4, ZIP_ENTRY_HEADER_LEN - 4);
+                    final int nameLen = header
+                            .getShort(ZipCentralDirectory.LOC_OFFSET_NAME_LEN) & 0xffff;
+                    final int extraLen = header
+                            .getShort(ZIP_ENTRY_OFFSET_EXTRA_LEN) & 0xffff;
+                    final int headerSize = ZIP_ENTRY_HEADER_LEN + nameLen
+                            + extraLen;
+                    readFully(header.array(), ZIP_ENTRY_HEADER_LEN, nameLen
+                            + extraLen);
+
+                    copyEntry(header, headerSize, extra, inflater);
+                }// while
+
+                notifyProgress(true);
+            } finally {
+                inflater.end();
+            }
+        }// copyAllEntries()
+
+        /**
+         * Copies one entry, and appends its record to the new central
+         * directory.
+         *
+         * @param header
+         *            the local file header, which has been read fully.
+         * @param headerSize
+         *            the header size.
+         * @param extra
+         *            the buffer to build "extra" field of the central
+         *            directory record.
+         * @param inflater
+         *            the inflater, to find ends of entries which use data
+         *            descriptors.
+         * @throws IOException
+         */
+        private void copyEntry(ByteBuffer header, int headerSize,
+                byte[] extra, Inflater inflater) throws IOException {
+            final byte[] array = header.array();
+            final int flags = header.getShort(ZIP_ENTRY_OFFSET_FLAGS) & 0xffff;
+            final int method = header.getShort(ZIP_ENTRY_OFFSET_METHOD) & 0xffff;
+            final int nameLen = header
+                    .getShort(ZipCentralDirectory.LOC_OFFSET_NAME_LEN) & 0xffff;
+            final int extraLen = header.getShort(ZIP_ENTRY_OFFSET_EXTRA_LEN) & 0xffff;
+            final int zip64 = ZipExtraFields.find(array, ZIP_ENTRY_HEADER_LEN
+                    + nameLen, extraLen, ZipExtraFields.ZIP64);
+            final boolean usesDataDescriptor = (flags & ZIP_ENTRY_USES_DATA_DESCR) != 0;
+
+            long crc = header.getInt(ZIP_ENTRY_OFFSET_CRC) & 0xffffffffL;
+            long compressedSize = header.getInt(ZIP_ENTRY_OFFSET_COMPRESSED_SIZE) & 0xffffffffL;
+            long size = header.getInt(ZIP_ENTRY_OFFSET_SIZE) & 0xffffffffL;
+            if (!usesDataDescriptor && zip64 >= 0) {
+                /*
+                 * ZIP64 extended information in local headers has both sizes.
+                 */
+                final int zip64Data = zip64 + ZipExtraFields.RECORD_HEADER_LEN;
+                if (size == ZipCentralDirectory.ZIP64_MAGIC)
+                    size = ZipExtraFields.u64(array, zip64Data);
+                if (compressedSize == ZipCentralDirectory.ZIP64_MAGIC)
+                    compressedSize = ZipExtraFields.u64(array, zip64Data + 8);
+            }
+
+            final long inputHeaderOffset = mInputOffset - headerSize;
+            final long headerOffset = mOutputStream.totalWritten;
+
+            /*
+             * Keep the original "extra" field for the central directory.
+             */
+            System.arraycopy(array, ZIP_ENTRY_HEADER_LEN + nameLen, extra, 0,
+                    extraLen);
+
+            final int padding;
+            final int outputHeaderSize;
+            if (method != ZipEntry.STORED) {
+                /*
+                 * Only deflated data tells where it ends.
+                 */
+                if (usesDataDescriptor && method != ZipEntry.DEFLATED)
+                    throw new IOException(String.format(
+                            "Cannot find the end of entry '%s', it uses data descriptor and compression method %d",
+                            new String(array, ZIP_ENTRY_HEADER_LEN, nameLen,
+                                    UTF8), method));
+
+                padding = 0;
+                outputHeaderSize = headerSize;
+            } else {
+                final String name = new String(array, ZIP_ENTRY_HEADER_LEN,
+                        nameLen, UTF8);
+                if (usesDataDescriptor)
+                    throw new IOException(String.format(
+                            "Cannot find the end of stored entry '%s', it uses data descriptor",
+                            name));
+
+                final int alignment = mPolicy.getAlignment(name);
+                if (mAlignmentExtraField) {
+                    final int strippedSize = removeAlignmentRecords(header);
+                    padding = getAlignmentRecordLength(headerOffset
+                            + strippedSize, alignment);
+                    outputHeaderSize = appendAlignmentRecord(header,
+                            strippedSize, padding, alignment);
+                } else {
+                    final long newOffset = headerOffset + headerSize;
+                    padding = (int) ((alignment - (newOffset % alignment)) % alignment);
+                    outputHeaderSize = appendPadding(header, headerSize,
+                            padding);
+                }
+                if (outputHeaderSize - ZIP_ENTRY_HEADER_LEN - nameLen > 0xffff)
+                    throw new IOException(String.format(
+                            "Cannot align entry '%s', its extra field is too long",
+                            name));
+            }
+
+            /*
+             * Copy the local header, with padding in its `extra` field.
+             */
+            mOutputStream.write(array, 0, outputHeaderSize);
+
+            if (!usesDataDescriptor) {
+                copy(compressedSize);
+            } else {
+                compressedSize = copyDeflated(inflater);
+                size = inflater.getBytesWritten();
 
-    /**
-     * @see <a
-     *      href="https://android.googlesource.com/platform/build/+/master/tools/zipalign/ZipEntry.h">ZipEntry.h</a>
-     */
-    public static final int ZIP_ENTRY_USES_DATA_DESCR = 0x0008;
+                /*
+                 * Copy the data descriptor, and take CRC from it.
+                 */
+                final byte[] descriptor = mDescriptor.array();
+                readFully(descriptor, 0, 4);
+                int descriptorLen = zip64 >= 0 ? ZIP64_ENTRY_DATA_DESCRIPTOR_NO_SIG_LEN
+                        : ZIP_ENTRY_DATA_DESCRIPTOR_NO_SIG_LEN;
+                int crcOffset = 0;
+                if (mDescriptor.getInt(0) == ZipCentralDirectory.EXTSIG) {
+                    descriptorLen += 4;
+                    crcOffset = 4;
+                }
+                readFully(descriptor, 4, descriptorLen - 4);
+                crc = mDescriptor.getInt(crcOffset) & 0xffffffffL;
+                mOutputStream.write(descriptor, 0, descriptorLen);
+            }// if
 
-    /**
-     * @see <a
-     *      href="https://android.googlesource.com/platform/build/+/master/tools/zipalign/ZipEntry.h">ZipEntry.h</a>
-     */
-    public static final int ZIP_ENTRY_DATA_DESCRIPTOR_LEN = 16;
+            /*
+             * Append the central directory record.
+             */
+            final boolean zip64Record = size >= ZipCentralDirectory.ZIP64_MAGIC
+                    || compressedSize >= ZipCentralDirectory.ZIP64_MAGIC
+                    || headerOffset >= ZipCentralDirectory.ZIP64_MAGIC;
+            final int version = zip64Record ? ZipCentralDirectory.ZIP64_VERSION
+                    : ZIP_ENTRY_VERSION;
 
-    /**
-     * Default alignment value.
-     * <p>
-     * See <a
-     * href="http://developer.android.com/tools/help/zipalign.html">zipalign
-     * </a>.
-     * </p>
-     */
-    public static final int DEFAULT_ALIGNMENT = 4;
+            int centralExtraLen = ZipExtraFields.remove(extra, 0, extraLen,
+                    ZipExtraFields.ZIP64);
+            if (mAlignmentExtraField)
+                centralExtraLen = ZipExtraFields.removeAlignment(extra, 0,
+                        centralExtraLen);
+            if (zip64Record) {
+                final int zip64DataLen = 8 * ((size >= ZipCentralDirectory.ZIP64_MAGIC ? 1
+                        : 0)
+                        + (compressedSize >= ZipCentralDirectory.ZIP64_MAGIC ? 1
+                                : 0) + (headerOffset >= ZipCentralDirectory.ZIP64_MAGIC ? 1
+                        : 0));
+                if (centralExtraLen + ZipExtraFields.RECORD_HEADER_LEN
+                        + zip64DataLen > extra.length)
+                    throw new IOException(String.format(
+                            "Extra field of entry '%s' is too long",
+                            new String(array, ZIP_ENTRY_HEADER_LEN, nameLen,
+                                    UTF8)));
 
-    /**
-     * Used to append to newly aligned APK's file name.
-     */
-    public static final String ALIGNED = "ALIGNED";
+                ZipExtraFields.put16(extra, centralExtraLen,
+                        ZipExtraFields.ZIP64);
+                ZipExtraFields.put16(extra, centralExtraLen + 2, zip64DataLen);
+                centralExtraLen += ZipExtraFields.RECORD_HEADER_LEN;
+                for (long value : new long[] { size, compressedSize,
+                        headerOffset }) {
+                    if (value >= ZipCentralDirectory.ZIP64_MAGIC) {
+                        ZipExtraFields.put64(extra, centralExtraLen, value);
+                        centralExtraLen += 8;
+                    }
+                }
+            }// if
 
-    /**
-     * Private helper class.
-     * 
-     * @author Hai Bison
-     * @since v1.6.9 beta
-     */
-    private static class XEntry {
+            putCentralHeader(mRecord, version, flags, method,
+                    header.getShort(ZIP_ENTRY_OFFSET_TIME) & 0xffff,
+                    header.getShort(ZIP_ENTRY_OFFSET_DATE) & 0xffff,
+                    crc, compressedSize, size, nameLen, centralExtraLen, 0,
+                    headerOffset);
+            mRecord.put(array, ZIP_ENTRY_HEADER_LEN, nameLen);
+            mRecord.put(extra, 0, centralExtraLen);
+            mCentralDirStream.write(mRecord.array(), 0, mRecord.position());
 
-        public final ZipEntry entry;
-        public final long headerOffset;
-        public final int flags;
-        public final int padding;
+            mEntryCount++;
+            mNewEntryFlags |= padding > 0 ? ProgressEvent.FLAG_PADDED
+                    : method != ZipEntry.STORED ? ProgressEvent.FLAG_COMPRESSED
+                            : 0;
+            notifyProgress(false);
+        }// copyEntry()
 
         /**
-         * Creates new instance.
+         * Sends a {@link ProgressEvent} of entries which have been copied
+         * since the previous one, if it's due. Entry count and input size are
+         * unknown, and per-entry results are not kept.
          * 
-         * @param entry
-         *            the entry.
-         * @param headerOffset
-         *            the offset of the header.
-         * @param flags
-         *            the flags.
-         * @param padding
-         *            the padding of the "extra" field.
+         * @param force
+         *            see {@link #isProgressDue(boolean)}.
          */
-        public XEntry(ZipEntry entry, long headerOffset, int flags, int padding) {
-            this.entry = entry;
-            this.headerOffset = headerOffset;
-            this.flags = flags;
-            this.padding = padding;
-        }// XEntry()
-    }// XEntry
+        private void notifyProgress(boolean force) {
+            if (mFirstNewEntry == mEntryCount || !isProgressDue(force))
+                return;
 
-    /**
-     * Extended class of {@link FilterOutputStream}, which has some helper
-     * methods for writing data to ZIP stream.
-     * 
-     * @author Hai Bison
-     * @since v1.6.9 beta
-     */
-    private static class FilterOutputStreamEx extends FilterOutputStream {
+            mSpeedTracker.addTotal(mInputOffset);
+            sendProgress(new ProgressEvent(null, mFirstNewEntry, mEntryCount,
+                    -1, mInputOffset, -1, mNewEntryFlags, mProgress,
+                    mSpeedTracker.calcInstantaneousSpeed(), -1));
+            mFirstNewEntry = mEntryCount;
+            mNewEntryFlags = 0;
+        }// notifyProgress()
 
-        private long totalWritten = 0;
+        /**
+         * Skips the central directory of input, keeps only the ZIP file
+         * comment.
+         *
+         * @throws IOException
+         */
+        private void skipCentralDirectory() throws IOException {
+            final ByteBuffer buf = ByteBuffer.allocate(
+                    ZipCentralDirectory.ZIP64_ENDHDR).order(
+                    ByteOrder.LITTLE_ENDIAN);
+
+            int signature = mSignature;
+            while (true) {
+                if (signature == ZipCentralDirectory.CENSIG) {
+                    readFully(buf.array(), 4, ZipCentralDirectory.CENHDR - 4);
+                    skip((buf.getShort(ZipCentralDirectory.CEN_NAME_LEN) & 0xffff)
+                            + (buf.getShort(ZipCentralDirectory.CEN_EXTRA_LEN) & 0xffff)
+                            + (buf.getShort(ZipCentralDirectory.CEN_COMMENT_LEN) & 0xffff));
+                } else if (signature == ZipCentralDirectory.ZIP64_ENDSIG) {
+                    readFully(buf.array(), 4, 8);
+                    skip(buf.getLong(4));
+                } else if (signature == ZipCentralDirectory.ZIP64_LOCSIG) {
+                    skip(ZipCentralDirectory.ZIP64_LOCHDR - 4);
+                } else if (signature == ZipCentralDirectory.ENDSIG) {
+                    readFully(buf.array(), 4, ZipCentralDirectory.ENDHDR - 4);
+                    mComment = new byte[buf
+                            .getShort(ZipCentralDirectory.END_COMMENT_LEN) & 0xffff];
+                    readFully(mComment, 0, mComment.length);
+                    return;
+                } else
+                    throw new IOException(String.format(
+                            "Unexpected signature 0x%08x at %,d", signature,
+                            mInputOffset - 4));
+
+                readFully(buf.array(), 0, 4);
+                signature = buf.getInt(0);
+            }// while
+        }// skipCentralDirectory()
 
         /**
-         * Creates new instance.
-         * 
-         * @param out
-         *            {@link OutputStream}.
+         * Writes the new central directory and the end records.
+         * <p>
+         * This takes 10% of total.
+         * </p>
+         *
+         * @throws IOException
          */
-        public FilterOutputStreamEx(OutputStream out) {
-            super(out);
-        }// FilterOutputStreamEx()
+        private void buildCentralDirectory() throws IOException {
+            final long centralDirOffset = mOutputStream.totalWritten;
 
-        @Override
-        public void write(byte[] b) throws IOException {
-            out.write(b);
-            totalWritten += b.length;
-        }// write()
+            L.d("\tWriting Central Directory at %,d", centralDirOffset);
 
-        @Override
-        public void write(byte[] b, int off, int len) throws IOException {
-            out.write(b, off, len);
-            totalWritten += len;
-        }// write()
+            mCentralDirStream.flush();
+            mCentralDir.writeTo(mOutputStream);
+            final long centralDirSize = mCentralDir.size();
+            mCentralDir = null;
 
-        @Override
-        public void write(int b) throws IOException {
-            out.write(b);
-            totalWritten += 1;
-        }// write()
+            sendNotification(MSG_INFO, mProgress += 5);
 
-        @Override
-        public void close() throws IOException {
-            // l("\t\tclose() >> totalWritten = %,d", totalWritten);
-            super.close();
-        }// close()
+            L.d("\tWriting End of Central Directory, its size = %,d",
+                    centralDirSize);
+
+            writeEndRecords(mOutputStream, mEntryCount, centralDirOffset,
+                    centralDirSize, mComment);
+
+            mOutputStream.flush();
+
+            sendNotification(MSG_INFO, mProgress += 5);
+        }// buildCentralDirectory()
 
         /**
-         * Writes a 32-bit int to the output stream in little-endian byte order.
-         * 
-         * @param v
-         *            the data to write.
+         * Fills the input buffer, if it's empty.
+         *
+         * @return {@code false} if end of input has been reached.
          * @throws IOException
          */
-        public void writeInt(long v) throws IOException {
-            write((int) ((v >>> 0) & 0xff));
-            write((int) ((v >>> 8) & 0xff));
-            write((int) ((v >>> 16) & 0xff));
-            write((int) ((v >>> 24) & 0xff));
-        }// writeInt()
+        private boolean fill() throws IOException {
+            if (mBufferPos < mBufferLimit)
+                return true;
+
+            final int read = mInput.read(mBuffer);
+            if (read < 0)
+                return false;
+            mBufferPos = 0;
+            mBufferLimit = read;
+            return true;
+        }// fill()
 
         /**
-         * Writes a 16-bit short to the output stream in little-endian byte
-         * order.
-         * 
-         * @param v
-         *            the data to write.
+         * Reads exactly {@code len} bytes from input.
+         *
+         * @param b
+         *            the destination.
+         * @param off
+         *            the offset in {@code b}.
+         * @param len
+         *            the number of bytes to read.
          * @throws IOException
+         *             if any occurred, or end of input has been reached.
          */
-        public void writeShort(int v) throws IOException {
-            write((v >>> 0) & 0xff);
-            write((v >>> 8) & 0xff);
-        }// writeShort()
+        private void readFully(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!fill())
+                    throw new IOException("Unexpected end of file");
 
-    }// FilterOutputStreamEx
+                final int count = Math.min(len, mBufferLimit - mBufferPos);
+                System.arraycopy(mBuffer, mBufferPos, b, off, count);
+                mBufferPos += count;
+                mInputOffset += count;
+                off += count;
+                len -= count;
+            }
+        }// readFully()
+
+        /**
+         * Copies exactly {@code size} bytes from input to output.
+         *
+         * @param size
+         *            the number of bytes to copy.
+         * @throws IOException
+         *             if any occurred, or end of input has been reached.
+         */
+        private void copy(long size) throws IOException {
+            while (size > 0) {
+                if (!fill())
+                    throw new IOException("Unexpected end of file");
+
+                final int count = (int) Math.min(size, mBufferLimit
+                        - mBufferPos);
+                mOutputStream.write(mBuffer, mBufferPos, count);
+                mBufferPos += count;
+                mInputOffset += count;
+                size -= count;
+            }
+        }// copy()
+
+        /**
+         * Skips exactly {@code size} bytes of input.
+         *
+         * @param size
+         *            the number of bytes to skip.
+         * @throws IOException
+         *             if any occurred, or end of input has been reached.
+         */
+        private void skip(long size) throws IOException {
+            while (size > 0) {
+                if (!fill())
+                    throw new IOException("Unexpected end of file");
+
+                final int count = (int) Math.min(size, mBufferLimit
+                        - mBufferPos);
+                mBufferPos += count;
+                mInputOffset += count;
+                size -= count;
+            }
+        }// skip()
+
+        /**
+         * Copies deflated data from input to output, until the end of the
+         * deflated stream.
+         *
+         * @param inflater
+         *            the inflater, it will be reset before use.
+         * @return the compressed size.
+         * @throws IOException
+         *             if any occurred, or the data is invalid.
+         */
+        private long copyDeflated(Inflater inflater) throws IOException {
+            inflater.reset();
+
+            long compressedSize = 0;
+            try {
+                while (!inflater.finished()) {
+                    if (inflater.needsInput()) {
+                        if (!fill())
+                            throw new IOException("Unexpected end of file");
+                        inflater.setInput(mBuffer, mBufferPos, mBufferLimit
+                                - mBufferPos);
+                    }
+
+                    final int pos = mBufferLimit - inflater.getRemaining();
+                    if (inflater.inflate(mInflated) == 0
+                            && inflater.needsDictionary())
+                        throw new IOException("Invalid deflated data");
+
+                    /*
+                     * Copy the bytes which the inflater has consumed.
+                     */
+                    final int consumed = mBufferLimit - inflater.getRemaining()
+                            - pos;
+                    mOutputStream.write(mBuffer, pos, consumed);
+                    mBufferPos = pos + consumed;
+                    mInputOffset += consumed;
+                    compressedSize += consumed;
+                }// while
+            } catch (DataFormatException e) {
+                throw new IOException(e);
+            }
+
+            return compressedSize;
+        }// copyDeflated()
+
+        /**
+         * Closes streams.
+         * <p>
+         * This takes 5% of total.
+         * </p>
+         *
+         * @throws IOException
+         */
+        private void closeStreams() throws IOException {
+            try {
+                mInput.close();
+            } finally {
+                if (mOutputStream != null)
+                    mOutputStream.close();
+                else
+                    mOutput.close();
+            }
+
+            sendNotification(MSG_INFO, mProgress = 100, Texts.NULL,
+                    String.format("\n%s", Messages.getString(
+                            R.string.pmsg_alignment_done, mOutput)));
+        }// closeStreams()
+    }// ZipStreamAligner
 
     /**
-     * To align ZIP files :-)
+     * The ZIP alignment verifier.
      * 
      * @author Hai Bison
      * @since v1.6.9 beta
      */
-    public static class ZipAligner extends BaseThread {
+    public static class ZipAlignmentVerifier extends BaseThread implements
+            EntryResults {
 
         private final File mInputFile;
-        private final int mAlignment;
-        private final File mOutputFile;
+        private final ZipAlignmentPolicy mPolicy;
+        private RandomAccessFile mRafInput;
+        private FileChannel mInputChannel;
+        private ZipCentralDirectory mCentralDir;
+        private int mParallelism = 1;
+        private boolean mCrcChecked = false;
+
+        /**
+         * 0 >> 100
+         */
+        private double mProgress = 0;
+        private volatile boolean mFoundBad = false;
+
+        /**
+         * Per-entry results, see {@link ProgressEvent}.
+         */
+        private ZipEntryTable mEntries;
+
+        /**
+         * States of {@link VerifierTask}s.
+         */
+        private final AtomicBoolean mCancelled = new AtomicBoolean();
+        private final AtomicReference<Throwable> mError = new AtomicReference<Throwable>();
+        private final AtomicLong mWorkDone = new AtomicLong();
+        private final AtomicInteger mEntriesDone = new AtomicInteger();
 
         /**
          * Creates new instance with alignment value of
          * {@link ZipAlign#DEFAULT_ALIGNMENT}.
          * 
-         * @param input
-         *            the input file.
-         * @param output
-         *            the output file.
+         * @param inputFile
+         *            the input file to verify.
          */
-        public ZipAligner(File input, File output) {
-            this(input, DEFAULT_ALIGNMENT, output);
-        }// ZipAligner()
+        public ZipAlignmentVerifier(File inputFile) {
+            this(inputFile, DEFAULT_ALIGNMENT);
+        }// ZipAlignmentVerifier()
 
         /**
          * Creates new instance.
@@ -270,41 +4609,73 @@ public class ZipAlign {
          * @param alignment
          *            the alignment, {@link ZipAlign#DEFAULT_ALIGNMENT} is
          *            highly recommended.
-         * @param output
-         *            the output file.
          */
-        public ZipAligner(File input, int alignment, File output) {
-            mInputFile = input;
-            mAlignment = alignment;
-            mOutputFile = output;
+        public ZipAlignmentVerifier(File inputFile, int alignment) {
+            this(inputFile, new ZipAlignmentPolicy(alignment));
+        }// ZipAlignmentVerifier()
 
-            setName(Messages.getString(R.string.apk_aligner_thread));
-        }// ZipAligner()
+        /**
+         * Creates new instance.
+         * 
+         * @param input
+         *            the input file.
+         * @param policy
+         *            the alignment policy, it should be the same one which
+         *            was used to align the file.
+         */
+        public ZipAlignmentVerifier(File inputFile, ZipAlignmentPolicy policy) {
+            mInputFile = inputFile;
+            mPolicy = policy;
 
-        private ZipFile mZipFile;
-        private RandomAccessFile mRafInput;
-        private FilterOutputStreamEx mOutputStream;
-        private List<XEntry> mXEntries = new ArrayList<XEntry>();
-        private long mInputFileOffset = 0;
-        private int mTotalPadding = 0;
+            setName(Messages.getString(R.string.apk_alignment_verifier_thread));
+        }// ZipAlignmentVerifier()
 
         /**
-         * 0 >> 100
+         * Sets number of threads to verify entries.
+         * <p>
+         * If it is greater than {@code 1}, entries are partitioned into ranges
+         * of their local header offsets, which are verified on a
+         * {@link ForkJoinPool}. The report is the same, in the order of the
+         * central directory. Default is {@code 1}.
+         * </p>
+         * 
+         * @param parallelism
+         *            number of threads, for example
+         *            {@link Runtime#availableProcessors()}.
+         * @return the instance of this verifier, to allow chaining multiple
+         *         calls into a single statement.
          */
-        private double mProgress = 0;
+        public ZipAlignmentVerifier setParallelism(int parallelism) {
+            mParallelism = Math.max(1, parallelism);
+            return this;
+        }// setParallelism()
+
+        /**
+         * Sets whether to check data of entries against their CRCs and
+         * sizes. This reads (and inflates) all data, so it's much slower.
+         * Entries which are neither stored nor deflated are not checked.
+         * Default is {@code false}.
+         * 
+         * @param crcChecked
+         *            {@code true} or {@code false}.
+         * @return the instance of this verifier, to allow chaining multiple
+         *         calls into a single statement.
+         */
+        public ZipAlignmentVerifier setCrcChecked(boolean crcChecked) {
+            mCrcChecked = crcChecked;
+            return this;
+        }// setCrcChecked()
 
         @Override
         public void run() {
-            L.d("%s >> starting", ZipAligner.class.getSimpleName());
+            L.d("%s >> starting", ZipAlignmentVerifier.class.getSimpleName());
 
             try {
                 openFiles();
                 if (!isInterrupted())
-                    copyAllEntries();
-                if (!isInterrupted())
-                    buildCentralDirectory();
+                    verify();
             } catch (Exception e) {
-                mOutputFile.delete();
+                mFoundBad = true;
                 sendNotification(
                         MSG_ERROR,
                         Texts.NULL,
@@ -314,7 +4685,7 @@ public class ZipAlign {
                 try {
                     closeFiles();
                 } catch (Exception e) {
-                    mOutputFile.delete();
+                    mFoundBad = true;
                     sendNotification(
                             MSG_ERROR,
                             Texts.NULL,
@@ -329,7 +4700,7 @@ public class ZipAlign {
 
             sendNotification(MSG_DONE);
 
-            L.d("%s >> finishing", ZipAligner.class.getSimpleName());
+            L.d("%s >> finishing", ZipAlignmentVerifier.class.getSimpleName());
         }// run()
 
         /**
@@ -341,324 +4712,364 @@ public class ZipAlign {
          * @throws IOException
          */
         private void openFiles() throws IOException {
-            sendNotification(MSG_INFO, Texts.NULL, String.format(
-                    "%s\n\n",
-                    Messages.getString(R.string.pmsg_aligning_apk,
-                            mInputFile.getName(), mAlignment)));
+            sendNotification(MSG_INFO, Texts.NULL, String.format("%s\n\n",
+                    Messages.getString(
+                            R.string.pmsg_verifying_alignment_of_apk,
+                            mInputFile.getName(), mPolicy)));
 
-            mZipFile = new ZipFile(mInputFile);
             mRafInput = new RandomAccessFile(mInputFile, "r");
-            mOutputStream = new FilterOutputStreamEx(new BufferedOutputStream(
-                    new FileOutputStream(mOutputFile), Files.FILE_BUFFER));
+            mInputChannel = mRafInput.getChannel();
+            mCentralDir = ZipCentralDirectory.read(mInputChannel);
 
             sendNotification(MSG_INFO, mProgress = 5);
         }// openFiles()
 
         /**
-         * Copies all entries, aligning them if needed.
+         * Verifies input file.
          * <p>
-         * This takes 80% of total.
+         * Local headers are visited in the order of their offsets, in one
+         * forward pass over mapped windows of the file (or in one pass per
+         * range of offsets, concurrently), and their fields are read in
+         * place. Then the results are checked and reported in the order of
+         * the central directory.
+         * </p>
+         * <p>
+         * This takes 90% of total.
          * </p>
          * 
          * @throws IOException
          */
-        private void copyAllEntries() throws IOException {
-            final int entryCount = mZipFile.size();
+        private void verify() throws IOException {
+            final int entryCount = mCentralDir.size();
             if (entryCount == 0) {
-                sendNotification(MSG_INFO, mProgress += 80);
+                sendNotification(MSG_INFO, mProgress += 90);
                 return;
             }
 
-            final float progress = 80f / entryCount;
+            mEntries = new ZipEntryTable(mCentralDir);
+            final int[] order = mCentralDir.getIndexesByLocalHeaderOffset();
+            if (mParallelism > 1 || mCrcChecked)
+                verifyConcurrently(order);
+            else
+                verifyRange(order, 0, entryCount);
+            if (isInterrupted())
+                return;
+            sendNotification(MSG_INFO, mProgress += 45);
+
+            final float progress = 45f / entryCount;
+            int firstNewEntry = 0;
+            int newEntryFlags = 0;
+            for (int i = 0; i < entryCount && !isInterrupted(); i++) {
+                final long dataOffset = mEntries.getDataOffset(i);
 
-            final Enumeration<? extends ZipEntry> entries = mZipFile.entries();
-            while (entries.hasMoreElements() && !isInterrupted()) {
-                final ZipEntry entry = entries.nextElement();
+                int flags = mEntries.getFlags(i);
+                if (mCentralDir.getMethod(i) != ZipEntry.STORED) {
+                    /*
+                     * The entry is compressed.
+                     */
+                    flags |= ProgressEvent.FLAG_COMPRESSED;
+                } else {
+                    mEntries.setAlignment(i, getAlignment(i));
+                    if (dataOffset % mEntries.getAlignment(i) != 0) {
+                        /*
+                         * The entry is not compressed, and not aligned.
+                         */
+                        flags |= ProgressEvent.FLAG_BAD;
+                        mFoundBad = true;
+                    }
+                }
+                mEntries.setFlags(i, flags);
+                newEntryFlags |= flags;
+                mProgress += progress;
 
-                int flags = entry.getMethod() == ZipEntry.STORED ? 0 : 1 << 3;
-                flags |= 1 << 11;
+                if (isProgressDue(i + 1 == entryCount)) {
+                    sendProgress(new ProgressEvent(this, firstNewEntry, i + 1,
+                            entryCount, dataOffset, mCentralDir.getOffset(),
+                            newEntryFlags, mProgress, 0, -1));
+                    firstNewEntry = i + 1;
+                    newEntryFlags = 0;
+                }
 
-                final long outputEntryHeaderOffset = mOutputStream.totalWritten;
                 if (Sys.DEBUG)
-                    L.d("\t\toutputEntryHeaderOffset = %,d",
-                            outputEntryHeaderOffset);
+                    L.d("size = %,8d, compressed = %,8d, crc32 = %08x, header offset = %,8d >> %,8d"
+                            + " >> Entry '%s'", mCentralDir.getSize(i),
+                            mCentralDir.getCompressedSize(i),
+                            mCentralDir.getCrc(i),
+                            mEntries.getHeaderOffset(i), dataOffset,
+                            mCentralDir.getName(i));
+            }// for
+        }// verify()
 
-                final int inputEntryHeaderSize = ZIP_ENTRY_HEADER_LEN
-                        + (entry.getExtra() != null ? entry.getExtra().length
-                                : 0)
-                        + entry.getName().getBytes(Texts.UTF8).length;
-                final long inputEntryDataOffset = mInputFileOffset
-                        + inputEntryHeaderSize;
+        /**
+         * Verifies entries with a {@link ForkJoinPool} of
+         * {@link #mParallelism} threads.
+         * <p>
+         * This takes 45% of total.
+         * </p>
+         * 
+         * @param order
+         *            indexes of entries, sorted by their local header offsets.
+         * @throws IOException
+         *             if any occurred, or a local header is invalid.
+         */
+        private void verifyConcurrently(final int[] order) throws IOException {
+            long totalWork = 0;
+            for (int i = 0; i < order.length; i++)
+                totalWork += getWork(i);
 
-                sendNotification(
-                        MSG_INFO,
-                        Texts.NULL,
-                        String.format("%,15d  %s", inputEntryDataOffset,
-                                entry.getName()));
+            final ForkJoinPool pool = new ForkJoinPool(mParallelism);
+            pool.execute(new VerifierTask(order, 0, order.length));
+            pool.shutdown();
 
-                final int padding;
+            boolean interrupted = false;
+            boolean terminated = false;
+            while (!terminated) {
+                try {
+                    terminated = pool.awaitTermination(
+                            UI.DELAY_TIME_UPDATING_UI, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    mCancelled.set(true);
+                }
 
-                if (entry.getMethod() != ZipEntry.STORED) {
-                    /*
-                     * The entry is compressed, copy it without padding.
-                     */
-                    padding = 0;
-                } else {
+                if (!terminated && !mCancelled.get() && isProgressDue(false)) {
                     /*
-                     * Copy the entry, adjusting as required. We assume that the
-                     * file position in the new file will be equal to the file
-                     * position in the original.
+                     * Results are reported after all entries are verified, so
+                     * no entry is new here. The work of an entry is 1, plus
+                     * its data size if its CRC is checked.
                      */
-                    long newOffset = inputEntryDataOffset + mTotalPadding;
-                    if (Sys.DEBUG)
-                        L.d("\t\t\tnewOffset = %,d", newOffset);
-                    padding = (int) ((mAlignment - (newOffset % mAlignment)) % mAlignment);
-                    mTotalPadding += padding;
+                    final int entriesDone = mEntriesDone.get();
+                    final long workDone = mWorkDone.get();
+                    sendProgress(new ProgressEvent(null, entriesDone,
+                            entriesDone, order.length, workDone - entriesDone,
+                            totalWork - order.length, 0, mProgress + 45.0
+                                    * workDone / Math.max(1, totalWork), 0, -1));
                 }
+            }// while
 
-                final XEntry xentry = new XEntry(entry,
-                        outputEntryHeaderOffset, flags, padding);
-                mXEntries.add(xentry);
-
-                if (Sys.DEBUG)
-                    L.d("\t'%s' >> header = %,d, padding = %,d",
-                            entry.getName(), inputEntryHeaderSize, padding);
-
-                /*
-                 * Modify the original header, add padding to `extra` field and
-                 * copy it to output.
-                 */
-                byte[] extra = entry.getExtra();
-                if (extra == null) {
-                    extra = new byte[padding];
-                    Arrays.fill(extra, (byte) 0);
-                } else {
-                    byte[] newExtra = new byte[extra.length + padding];
-                    System.arraycopy(extra, 0, newExtra, 0, extra.length);
-                    Arrays.fill(newExtra, extra.length, newExtra.length,
-                            (byte) 0);
-                    extra = newExtra;
-                }
-                entry.setExtra(extra);
+            if (interrupted)
+                interrupt();
 
-                /*
-                 * Now write the header to output.
-                 */
+            final Throwable t = mError.get();
+            if (t instanceof IOException)
+                throw (IOException) t;
+            else if (t != null)
+                throw new IOException(t);
+        }// verifyConcurrently()
 
-                mOutputStream.writeInt(ZipOutputStream.LOCSIG);
-                mOutputStream.writeShort(ZIP_ENTRY_VERSION);
-                mOutputStream.writeShort(flags);
-                mOutputStream.writeShort(entry.getMethod());
-
-                int modDate;
-                int time;
-                GregorianCalendar cal = new GregorianCalendar();
-                cal.setTime(new Date(entry.getTime()));
-                int year = cal.get(Calendar.YEAR);
-                if (year < 1980) {
-                    modDate = 0x21;
-                    time = 0;
-                } else {
-                    modDate = cal.get(Calendar.DATE);
-                    modDate = (cal.get(Calendar.MONTH) + 1 << 5) | modDate;
-                    modDate = ((cal.get(Calendar.YEAR) - 1980) << 9) | modDate;
-                    time = cal.get(Calendar.SECOND) >> 1;
-                    time = (cal.get(Calendar.MINUTE) << 5) | time;
-                    time = (cal.get(Calendar.HOUR_OF_DAY) << 11) | time;
-                }
+        /**
+         * Gets the amount of work to verify an entry, for progress.
+         * 
+         * @param index
+         *            the entry index.
+         * @return the amount of work.
+         */
+        private long getWork(int index) {
+            return 1 + (mCrcChecked ? mCentralDir.getCompressedSize(index)
+                    : 0);
+        }// getWork()
 
-                mOutputStream.writeShort(time);
-                mOutputStream.writeShort(modDate);
+        /**
+         * Task of {@link ZipAlignmentVerifier#verifyConcurrently(int[])}. It
+         * splits itself into halves until it's small enough.
+         * 
+         * @author Hai Bison
+         * @since v1.8.6 beta
+         */
+        private class VerifierTask extends RecursiveAction {
 
-                mOutputStream.writeInt(entry.getCrc());
-                mOutputStream.writeInt(entry.getCompressedSize());
-                mOutputStream.writeInt(entry.getSize());
+            private static final long serialVersionUID = 1L;
 
-                mOutputStream
-                        .writeShort(entry.getName().getBytes(Texts.UTF8).length);
-                mOutputStream.writeShort(entry.getExtra().length);
-                mOutputStream.write(entry.getName().getBytes(Texts.UTF8));
-                mOutputStream.write(entry.getExtra(), 0,
-                        entry.getExtra().length);
+            private final int[] mOrder;
+            private final int mFrom;
+            private final int mTo;
 
-                /*
-                 * Copy raw data.
-                 */
+            /**
+             * Creates new instance.
+             * 
+             * @param order
+             *            indexes of entries, sorted by their local header
+             *            offsets.
+             * @param from
+             *            the first position in {@code order}, inclusive.
+             * @param to
+             *            the last position in {@code order}, exclusive.
+             */
+            VerifierTask(int[] order, int from, int to) {
+                mOrder = order;
+                mFrom = from;
+                mTo = to;
+            }// VerifierTask()
 
-                mInputFileOffset += inputEntryHeaderSize;
+            @Override
+            protected void compute() {
+                if (mCancelled.get())
+                    return;
 
-                final long sizeToCopy;
-                if ((flags & ZIP_ENTRY_USES_DATA_DESCR) != 0)
-                    sizeToCopy = (entry.isDirectory() ? 0 : entry
-                            .getCompressedSize())
-                            + ZIP_ENTRY_DATA_DESCRIPTOR_LEN;
-                else
-                    sizeToCopy = entry.isDirectory() ? 0 : entry
-                            .getCompressedSize();
-
-                if (sizeToCopy > 0) {
-                    mRafInput.seek(mInputFileOffset);
-
-                    long totalSizeCopied = 0;
-                    final byte[] buf = new byte[Files.FILE_BUFFER];
-                    while (totalSizeCopied < sizeToCopy) {
-                        int read = mRafInput.read(
-                                buf,
-                                0,
-                                (int) Math.min(Files.FILE_BUFFER, sizeToCopy
-                                        - totalSizeCopied));
-                        if (read <= 0)
-                            break;
-
-                        mOutputStream.write(buf, 0, read);
-                        totalSizeCopied += read;
-                    }// while
-                }// if
+                if (mTo - mFrom > VERIFIER_TASK_ENTRIES
+                        || (mCrcChecked && mTo - mFrom > 1 && getDataSize() > VERIFIER_TASK_BYTES)) {
+                    final int mid = (mFrom + mTo) >>> 1;
+                    invokeAll(new VerifierTask(mOrder, mFrom, mid),
+                            new VerifierTask(mOrder, mid, mTo));
+                    return;
+                }
 
-                mInputFileOffset += sizeToCopy;
+                try {
+                    verifyRange(mOrder, mFrom, mTo);
+                } catch (Throwable t) {
+                    mError.compareAndSet(null, t);
+                    mCancelled.set(true);
+                }
+            }// compute()
 
-                if (padding == 0)
-                    sendNotification(MSG_INFO, mProgress += progress,
-                            Texts.NULL, String.format("  (%s, %s)\n",
-                                    Messages.getString(R.string.compressed),
-                                    Messages.getString(R.string.passed)));
-                else
-                    sendNotification(
-                            MSG_INFO,
-                            mProgress += progress,
-                            Texts.NULL,
-                            String.format("  (%s, %s)\n",
-                                    Messages.getString(R.string.aligned),
-                                    Texts.sizeToStr(padding)));
-            }// while
-        }// copyAllEntries()
+            /**
+             * Gets the total size of data of this task's entries.
+             * 
+             * @return the size.
+             */
+            private long getDataSize() {
+                long result = 0;
+                for (int k = mFrom; k < mTo; k++)
+                    result += mCentralDir.getCompressedSize(mOrder[k]);
+                return result;
+            }// getDataSize()
+        }// VerifierTask
 
         /**
-         * Builds central directory.
-         * <p>
-         * This takes 10% of total.
-         * </p>
+         * Reads local headers of a range of entries into {@link #mEntries},
+         * and checks their CRCs if needed. This method can be called from
+         * worker threads, for distinct ranges.
          * 
+         * @param order
+         *            indexes of entries, sorted by their local header offsets.
+         * @param from
+         *            the first position in {@code order}, inclusive.
+         * @param to
+         *            the last position in {@code order}, exclusive.
          * @throws IOException
+         *             if any occurred, or a local header is invalid.
          */
-        private void buildCentralDirectory() throws IOException {
-            final long centralDirOffset = mOutputStream.totalWritten;
+        private void verifyRange(int[] order, int from, int to)
+                throws IOException {
+            final long fileSize = mInputChannel.size();
+            final CRC32 crc = mCrcChecked ? new CRC32() : null;
+            final Inflater inflater = mCrcChecked ? new Inflater(true) : null;
+            final byte[] input = mCrcChecked ? new byte[Files.FILE_BUFFER]
+                    : null;
+            final byte[] output = mCrcChecked ? new byte[Files.FILE_BUFFER]
+                    : null;
 
-            L.d("\tWriting Central Directory at %,d", centralDirOffset);
-
-            for (XEntry xentry : mXEntries) {
-                if (isInterrupted())
-                    return;
+            try {
+                ByteBuffer window = null;
+                long windowOffset = 0;
+                for (int k = from; k < to; k++) {
+                    if (isInterrupted() || mCancelled.get())
+                        return;
 
-                /*
-                 * Write entry.
-                 */
-                final ZipEntry entry = xentry.entry;
-
-                int modDate;
-                int time;
-                GregorianCalendar cal = new GregorianCalendar();
-                cal.setTime(new Date(entry.getTime()));
-                int year = cal.get(Calendar.YEAR);
-                if (year < 1980) {
-                    modDate = 0x21;
-                    time = 0;
-                } else {
-                    modDate = cal.get(Calendar.DATE);
-                    modDate = (cal.get(Calendar.MONTH) + 1 << 5) | modDate;
-                    modDate = ((cal.get(Calendar.YEAR) - 1980) << 9) | modDate;
-                    time = cal.get(Calendar.SECOND) >> 1;
-                    time = (cal.get(Calendar.MINUTE) << 5) | time;
-                    time = (cal.get(Calendar.HOUR_OF_DAY) << 11) | time;
-                }
+                    final int i = order[k];
+                    final long headerOffset = mCentralDir
+                            .getLocalHeaderOffset(i);
+                    if (headerOffset < 0
+                            || headerOffset + ZIP_ENTRY_HEADER_LEN > fileSize) {
+                        mFoundBad = true;
+                        throw new IOException(
+                                "Reading extra field length failed");
+                    }
 
-                mOutputStream.writeInt(ZipFile.CENSIG); // CEN header signature
-                mOutputStream.writeShort(ZIP_ENTRY_VERSION); // version made by
-                mOutputStream.writeShort(ZIP_ENTRY_VERSION); // version needed
-                                                             // to
-                // extract
-                mOutputStream.writeShort(xentry.flags); // general purpose bit
-                                                        // flag
-                mOutputStream.writeShort(entry.getMethod()); // compression
-                                                             // method
-                mOutputStream.writeShort(time);
-                mOutputStream.writeShort(modDate);
-                mOutputStream.writeInt(entry.getCrc()); // crc-32
-                mOutputStream.writeInt(entry.getCompressedSize()); // compressed
-                                                                   // size
-                mOutputStream.writeInt(entry.getSize()); // uncompressed size
-                final byte[] nameBytes = entry.getName().getBytes(Texts.UTF8);
-                mOutputStream.writeShort(nameBytes.length);
-                mOutputStream.writeShort(entry.getExtra() != null ? entry
-                        .getExtra().length - xentry.padding : 0);
-                final byte[] commentBytes;
-                if (entry.getComment() != null) {
-                    commentBytes = entry.getComment().getBytes(Texts.UTF8);
-                    mOutputStream.writeShort(Math.min(commentBytes.length,
-                            0xffff));
-                } else {
-                    commentBytes = null;
-                    mOutputStream.writeShort(0);
-                }
-                mOutputStream.writeShort(0); // starting disk number
-                mOutputStream.writeShort(0); // internal file attributes
-                                             // (unused)
-                mOutputStream.writeInt(0); // external file attributes (unused)
-                mOutputStream.writeInt(xentry.headerOffset); // relative offset
-                                                             // of
-                // local
-                // header
-                mOutputStream.write(nameBytes);
-                if (entry.getExtra() != null)
-                    mOutputStream.write(entry.getExtra(), 0,
-                            entry.getExtra().length - xentry.padding);
-                if (commentBytes != null)
-                    mOutputStream.write(commentBytes, 0,
-                            Math.min(commentBytes.length, 0xffff));
-            }// for xentry
+                    if (window == null
+                            || headerOffset + ZIP_ENTRY_HEADER_LEN > windowOffset
+                                    + window.capacity()) {
+                        windowOffset = headerOffset;
+                        window = mInputChannel.map(
+                                FileChannel.MapMode.READ_ONLY,
+                                windowOffset,
+                                Math.min(VERIFIER_MAP_WINDOW, fileSize
+                                        - windowOffset)).order(
+                                ByteOrder.LITTLE_ENDIAN);
+                    }
 
-            if (isInterrupted())
-                return;
+                    final int pos = (int) (headerOffset - windowOffset);
+                    if (window.getInt(pos) != ZipCentralDirectory.LOCSIG) {
+                        mFoundBad = true;
+                        throw new IOException(String.format(
+                                "Invalid local header of entry #%,d at %,d",
+                                i, headerOffset));
+                    }
 
-            sendNotification(MSG_INFO, mProgress += 5);
+                    final int nameLen = window.getShort(pos
+                            + ZipCentralDirectory.LOC_OFFSET_NAME_LEN) & 0xffff;
+                    final int extraLen = window.getShort(pos
+                            + ZIP_ENTRY_OFFSET_EXTRA_LEN) & 0xffff;
+                    mEntries.setHeader(i, headerOffset, ZIP_ENTRY_HEADER_LEN
+                            + nameLen + extraLen);
 
-            /*
-             * Write the end of central directory.
-             */
-            final long centralDirSize = mOutputStream.totalWritten
-                    - centralDirOffset;
-            L.d("\tWriting End of Central Directory, its size = %,d",
-                    centralDirSize);
+                    if (mCrcChecked
+                            && !checkCrc(mInputChannel, mCentralDir, i,
+                                    mEntries.getDataOffset(i), crc, inflater,
+                                    input, output)) {
+                        mEntries.setFlags(i, ProgressEvent.FLAG_CRC_ERROR);
+                        mFoundBad = true;
+                    }
 
-            final int entryCount = mXEntries.size();
-
-            mOutputStream.writeInt(ZipFile.ENDSIG); // END record signature
-            mOutputStream.writeShort(0); // number of this disk
-            mOutputStream.writeShort(0); // central directory start disk
-            mOutputStream.writeShort(entryCount); // number of directory entries
-                                                  // on
-            // disk
-            mOutputStream.writeShort(entryCount); // total number of directory
-                                                  // entries
-            mOutputStream.writeInt(centralDirSize); // length of central
-                                                    // directory
-            mOutputStream.writeInt(centralDirOffset); // offset of central
-            // directory
-            if (mZipFile.getComment() != null) { // zip file comment
-                final byte[] bytes = mZipFile.getComment().getBytes(Texts.UTF8);
-                mOutputStream.writeShort(bytes.length);
-                mOutputStream.write(bytes);
-            } else {
-                mOutputStream.writeShort(0);
+                    mWorkDone.addAndGet(getWork(i));
+                    mEntriesDone.incrementAndGet();
+                }// for
+            } finally {
+                if (inflater != null)
+                    inflater.end();
             }
+        }// verifyRange()
 
-            mOutputStream.flush();
+        /**
+         * Gets the alignment of a {@link ZipEntry#STORED} entry.
+         * 
+         * @param index
+         *            the entry index.
+         * @return the alignment.
+         */
+        private int getAlignment(int index) {
+            return mPolicy.hasRules() ? mPolicy.getAlignment(mCentralDir
+                    .getName(index)) : mPolicy.getDefaultAlignment();
+        }// getAlignment()
 
-            sendNotification(MSG_INFO, mProgress += 5);
-        }// buildCentralDirectory()
+        @Override
+        public String getEntryName(int index) {
+            return mEntries.getName(index);
+        }// getEntryName()
+
+        @Override
+        public int getEntryFlags(int index) {
+            return mEntries.getFlags(index);
+        }// getEntryFlags()
+
+        @Override
+        public String formatEntry(int index) {
+            final long dataOffset = mEntries.getDataOffset(index);
+            final int flags = mEntries.getFlags(index);
+            if ((flags & (ProgressEvent.FLAG_BAD | ProgressEvent.FLAG_CRC_ERROR)) != 0) {
+                String details = (flags & ProgressEvent.FLAG_BAD) != 0 ? Texts
+                        .sizeToStr(dataOffset % mEntries.getAlignment(index))
+                        : null;
+                if ((flags & ProgressEvent.FLAG_CRC_ERROR) != 0)
+                    details = details == null ? Messages
+                            .getString(R.string.crc_error) : String.format(
+                            "%s, %s", details,
+                            Messages.getString(R.string.crc_error));
+                return String.format("%,15d  %s  (%s - %s)\n", dataOffset,
+                        getEntryName(index), Messages.getString(R.string.BAD),
+                        details);
+            }
+
+            if ((flags & ProgressEvent.FLAG_COMPRESSED) != 0)
+                return String.format("%,15d  %s  (%s - %s)\n", dataOffset,
+                        getEntryName(index), Messages.getString(R.string.ok),
+                        Messages.getString(R.string.compressed));
+            return String.format("%,15d  %s  (%s)\n", dataOffset,
+                    getEntryName(index), Messages.getString(R.string.ok));
+        }// formatEntry()
 
         /**
-         * Closes all files.
+         * Closes source files.
          * <p>
          * This takes 5% of total.
          * </p>
@@ -666,79 +5077,97 @@ public class ZipAlign {
          * @throws IOException
          */
         private void closeFiles() throws IOException {
-            try {
-                mZipFile.close();
-            } finally {
-                try {
-                    mRafInput.close();
-                } finally {
-                    mOutputStream.close();
-                }
-            }
+            mRafInput.close();
 
-            sendNotification(MSG_INFO, mProgress = 100, Texts.NULL,
-                    String.format("\n%s",
-                            Messages.getString(R.string.pmsg_alignment_done,
-                                    mOutputFile.getName())));
+            sendNotification(
+                    MSG_INFO,
+                    mProgress = 100,
+                    Texts.NULL,
+                    String.format(
+                            "\n%s",
+                            mFoundBad ? Messages
+                                    .getString(R.string.verification_failed)
+                                    : Messages
+                                            .getString(R.string.verification_succesful)));
         }// closeFiles()
-    }// ZipAligner
+
+    }// ZipAlignmentVerifier
 
     /**
-     * The ZIP alignment verifier.
+     * Finder of duplicate entries: entries which have the same data under
+     * different names, for example the same texture or sound in several
+     * folders of a game.
+     * <p>
+     * Entries are grouped by their CRC-32s, sizes, compressed sizes and
+     * compression methods from the central directory, so most of the
+     * entries are never read. The raw data of the candidates is hashed with
+     * {@link Hasher#SHA256} by a pool of threads, without inflating it, and
+     * each candidate group is split by digests. The report lists groups of
+     * duplicate entries by bytes wasted, which are the compressed sizes of
+     * all copies but one.
+     * </p>
      * 
      * @author Hai Bison
-     * @since v1.6.9 beta
+     * @since v1.8.6 beta
      */
-    public static class ZipAlignmentVerifier extends BaseThread {
+    public static class ZipDuplicateFinder extends BaseThread {
 
         private final File mInputFile;
-        private final int mAlignment;
-        private ZipFile mZipFile;
         private RandomAccessFile mRafInput;
+        private FileChannel mInputChannel;
+        private ZipCentralDirectory mCentralDir;
+        private int mParallelism = Runtime.getRuntime().availableProcessors();
 
         /**
          * 0 >> 100
          */
         private double mProgress = 0;
-        private boolean mFoundBad = false;
 
         /**
-         * Creates new instance with alignment value of
-         * {@link ZipAlign#DEFAULT_ALIGNMENT}.
-         * 
-         * @param inputFile
-         *            the input file to verify.
+         * Groups of duplicate entries, sorted by bytes wasted (descending).
+         * Each group holds entry indexes, in the order of the central
+         * directory.
          */
-        public ZipAlignmentVerifier(File inputFile) {
-            this(inputFile, DEFAULT_ALIGNMENT);
-        }// ZipAlignmentVerifier()
+        private final List<int[]> mGroups = new ArrayList<int[]>();
+        private long mWastedBytes = 0;
 
         /**
          * Creates new instance.
          * 
-         * @param input
+         * @param inputFile
          *            the input file.
-         * @param alignment
-         *            the alignment, {@link ZipAlign#DEFAULT_ALIGNMENT} is
-         *            highly recommended.
          */
-        public ZipAlignmentVerifier(File inputFile, int alignment) {
+        public ZipDuplicateFinder(File inputFile) {
             mInputFile = inputFile;
-            mAlignment = alignment;
 
-            setName(Messages.getString(R.string.apk_alignment_verifier_thread));
-        }// ZipAlignmentVerifier()
+            setName(Messages.getString(R.string.duplicate_finder_thread));
+        }// ZipDuplicateFinder()
+
+        /**
+         * Sets number of threads to hash data of candidates. Default is
+         * {@link Runtime#availableProcessors()}.
+         * 
+         * @param parallelism
+         *            number of threads.
+         * @return the instance of this finder, to allow chaining multiple
+         *         calls into a single statement.
+         */
+        public ZipDuplicateFinder setParallelism(int parallelism) {
+            mParallelism = Math.max(1, parallelism);
+            return this;
+        }// setParallelism()
 
         @Override
         public void run() {
-            L.d("%s >> starting", ZipAlignmentVerifier.class.getSimpleName());
+            L.d("%s >> starting", ZipDuplicateFinder.class.getSimpleName());
 
             try {
                 openFiles();
                 if (!isInterrupted())
-                    verify();
+                    findDuplicates();
+                if (!isInterrupted())
+                    notifyDuplicates();
             } catch (Exception e) {
-                mFoundBad = true;
                 sendNotification(
                         MSG_ERROR,
                         Texts.NULL,
@@ -748,7 +5177,6 @@ public class ZipAlign {
                 try {
                     closeFiles();
                 } catch (Exception e) {
-                    mFoundBad = true;
                     sendNotification(
                             MSG_ERROR,
                             Texts.NULL,
@@ -763,7 +5191,7 @@ public class ZipAlign {
 
             sendNotification(MSG_DONE);
 
-            L.d("%s >> finishing", ZipAlignmentVerifier.class.getSimpleName());
+            L.d("%s >> finishing", ZipDuplicateFinder.class.getSimpleName());
         }// run()
 
         /**
@@ -777,114 +5205,387 @@ public class ZipAlign {
         private void openFiles() throws IOException {
             sendNotification(MSG_INFO, Texts.NULL, String.format("%s\n\n",
                     Messages.getString(
-                            R.string.pmsg_verifying_alignment_of_apk,
-                            mInputFile.getName(), mAlignment)));
+                            R.string.pmsg_finding_duplicate_entries,
+                            mInputFile.getName())));
 
-            mZipFile = new ZipFile(mInputFile);
             mRafInput = new RandomAccessFile(mInputFile, "r");
+            mInputChannel = mRafInput.getChannel();
+            mCentralDir = ZipCentralDirectory.read(mInputChannel);
 
             sendNotification(MSG_INFO, mProgress = 5);
         }// openFiles()
 
         /**
-         * Verifies input file.
+         * Checks if an entry can be a duplicate of another one: it is a
+         * non-empty, unencrypted file.
+         * 
+         * @param index
+         *            the entry index.
+         * @return {@code true} or {@code false}.
+         */
+        private boolean isCandidate(int index) {
+            return !mCentralDir.isDirectory(index)
+                    && mCentralDir.getSize(index) > 0
+                    && mCentralDir.getCompressedSize(index) > 0
+                    && (mCentralDir.getFlags(index) & ZIP_ENTRY_ENCRYPTED) == 0;
+        }// isCandidate()
+
+        /**
+         * Checks if two entries have the same CRC-32, sizes and compression
+         * method.
+         * 
+         * @param a
+         *            the first entry index.
+         * @param b
+         *            the second entry index.
+         * @return {@code true} or {@code false}.
+         */
+        private boolean isSameKey(int a, int b) {
+            return mCentralDir.getCrc(a) == mCentralDir.getCrc(b)
+                    && mCentralDir.getSize(a) == mCentralDir.getSize(b)
+                    && mCentralDir.getCompressedSize(a) == mCentralDir
+                            .getCompressedSize(b)
+                    && mCentralDir.getMethod(a) == mCentralDir.getMethod(b);
+        }// isSameKey()
+
+        /**
+         * Finds groups of duplicate entries into {@link #mGroups}.
          * <p>
          * This takes 90% of total.
          * </p>
          * 
          * @throws IOException
+         *             if any occurred, or a local header is invalid.
          */
-        private void verify() throws IOException {
-            final int entryCount = mZipFile.size();
-            if (entryCount == 0) {
+        private void findDuplicates() throws IOException {
+            final int entryCount = mCentralDir.size();
+
+            /*
+             * Sorts candidates by their CRC-32s (then by their indexes), in
+             * one array of primitive keys.
+             */
+            final long[] keys = new long[entryCount];
+            int keyCount = 0;
+            for (int i = 0; i < entryCount; i++)
+                if (isCandidate(i))
+                    keys[keyCount++] = mCentralDir.getCrc(i) << 32 | i;
+            Arrays.sort(keys, 0, keyCount);
+
+            /*
+             * Splits each run of the same CRC-32 into candidate groups. Runs
+             * are short, unless the archive has lots of duplicates.
+             */
+            final List<int[]> candidates = new ArrayList<int[]>();
+            final boolean[] selected = new boolean[entryCount];
+            final boolean[] grouped = new boolean[keyCount];
+            final int[] group = new int[keyCount];
+            long bytesTotal = 0;
+            for (int k = 0; k < keyCount; k++) {
+                if (grouped[k])
+                    continue;
+
+                final int a = (int) keys[k];
+                int size = 0;
+                group[size++] = a;
+                for (int m = k + 1; m < keyCount
+                        && keys[m] >>> 32 == keys[k] >>> 32; m++) {
+                    final int b = (int) keys[m];
+                    if (grouped[m] || !isSameKey(a, b))
+                        continue;
+
+                    grouped[m] = true;
+                    /*
+                     * Entries which share the same local header don't waste
+                     * any bytes.
+                     */
+                    if (mCentralDir.getLocalHeaderOffset(b) != mCentralDir
+                            .getLocalHeaderOffset(a))
+                        group[size++] = b;
+                }// for
+
+                if (size > 1) {
+                    candidates.add(Arrays.copyOf(group, size));
+                    for (int m = 0; m < size; m++)
+                        selected[group[m]] = true;
+                    bytesTotal += size * mCentralDir.getCompressedSize(a);
+                }
+            }// for
+
+            if (candidates.isEmpty()) {
                 sendNotification(MSG_INFO, mProgress += 90);
                 return;
             }
 
-            final Enumeration<? extends ZipEntry> entries = mZipFile.entries();
-            final float progress = 90f / entryCount;
-            long dataOffset = 0;
-
-            while (entries.hasMoreElements() && !isInterrupted()) {
-                final ZipEntry entry = entries.nextElement();
+            final byte[][] digests = hashEntries(selected, bytesTotal);
+            if (isInterrupted())
+                return;
+            sendNotification(MSG_INFO, mProgress += 90);
 
-                mRafInput.seek(dataOffset + ZIP_ENTRY_OFFSET_EXTRA_LEN);
-                final byte[] buf = new byte[ZIP_ENTRY_FIELD_EXTRA_LEN_SIZE];
-                if (mRafInput.read(buf) != buf.length) {
-                    mFoundBad = true;
-                    throw new IOException("Reading extra field length failed");
-                }
-                /*
-                 * Fetches unsigned 16-bit value from byte array at specified
-                 * offset. The bytes are assumed to be in Intel (little-endian)
-                 * byte order.
-                 */
-                final int extraLen = (buf[0] & 0xff) | ((buf[1] & 0xff) << 8);
+            /*
+             * Splits candidate groups by digests.
+             */
+            for (int[] candidate : candidates) {
+                final boolean[] done = new boolean[candidate.length];
+                for (int k = 0; k < candidate.length; k++) {
+                    if (done[k])
+                        continue;
 
-                final int headerSize = ZIP_ENTRY_HEADER_LEN + extraLen
-                        + entry.getName().getBytes(Texts.UTF8).length;
+                    int size = 0;
+                    group[size++] = candidate[k];
+                    for (int m = k + 1; m < candidate.length; m++) {
+                        if (!done[m]
+                                && Arrays.equals(digests[candidate[k]],
+                                        digests[candidate[m]])) {
+                            done[m] = true;
+                            group[size++] = candidate[m];
+                        }
+                    }// for
 
-                if (entry.getMethod() != ZipEntry.STORED) {
-                    /*
-                     * The entry is compressed.
-                     */
-                    sendNotification(
-                            MSG_INFO,
-                            mProgress += progress,
-                            Texts.NULL,
-                            String.format("%,15d  %s  (%s - %s)\n", dataOffset
-                                    + headerSize, entry.getName(),
-                                    Messages.getString(R.string.ok),
-                                    Messages.getString(R.string.compressed)));
-                } else {
-                    /*
-                     * The entry is not compressed.
-                     */
-                    if ((dataOffset + headerSize) % mAlignment != 0) {
-                        sendNotification(
-                                MSG_INFO,
-                                mProgress += progress,
-                                Texts.NULL,
-                                String.format(
-                                        "%,15d  %s  (%s - %s)\n",
-                                        dataOffset + headerSize,
-                                        entry.getName(),
-                                        Messages.getString(R.string.BAD),
-                                        Texts.sizeToStr((dataOffset + headerSize)
-                                                % mAlignment)));
-                        mFoundBad = true;
-                    } else {
-                        sendNotification(
-                                MSG_INFO,
-                                mProgress += progress,
-                                Texts.NULL,
-                                String.format("%,15d  %s  (%s)\n", dataOffset
-                                        + headerSize, entry.getName(),
-                                        Messages.getString(R.string.ok)));
+                    if (size > 1) {
+                        final int[] duplicates = Arrays.copyOf(group, size);
+                        mGroups.add(duplicates);
+                        mWastedBytes += getWastedBytes(duplicates);
                     }
+                }// for
+            }// for
+
+            Collections.sort(mGroups, new Comparator<int[]>() {
+
+                @Override
+                public int compare(int[] lhs, int[] rhs) {
+                    final long a = getWastedBytes(lhs);
+                    final long b = getWastedBytes(rhs);
+                    if (a != b)
+                        return a > b ? -1 : 1;
+                    return lhs[0] < rhs[0] ? -1 : (lhs[0] == rhs[0] ? 0 : 1);
+                }// compare()
+            });
+        }// findDuplicates()
+
+        /**
+         * Hashes raw data of entries with a pool of {@link #mParallelism}
+         * threads. Entries are taken in the order of their local header
+         * offsets, so the file is read forward.
+         * <p>
+         * This takes 90% of total.
+         * </p>
+         * 
+         * @param selected
+         *            the entries to hash.
+         * @param bytesTotal
+         *            total compressed size of the entries.
+         * @return the digests, {@code null} for entries which are not
+         *         selected.
+         * @throws IOException
+         *             if any occurred, or a local header is invalid.
+         */
+        private byte[][] hashEntries(final boolean[] selected,
+                final long bytesTotal) throws IOException {
+            final int[] order = mCentralDir.getIndexesByLocalHeaderOffset();
+            final byte[][] digests = new byte[order.length][];
+            final AtomicInteger nextEntry = new AtomicInteger();
+            final AtomicBoolean cancelled = new AtomicBoolean();
+            final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+            final AtomicLong hashedBytes = new AtomicLong();
+
+            final ExecutorService executor = Executors
+                    .newFixedThreadPool(mParallelism);
+            for (int t = 0; t < mParallelism; t++) {
+                executor.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        final ByteBuffer header = newLocalHeaderBuffer();
+                        final byte[] buffer = new byte[Files.FILE_BUFFER];
+                        try {
+                            final MessageDigest md = MessageDigest
+                                    .getInstance(Hasher.SHA256);
+                            int k;
+                            while (!cancelled.get()
+                                    && (k = nextEntry.getAndIncrement()) < order.length) {
+                                final int i = order[k];
+                                if (selected[i])
+                                    digests[i] = hashEntry(i, md, header,
+                                            buffer, hashedBytes, cancelled);
+                            }
+                        } catch (Throwable t) {
+                            error.compareAndSet(null, t);
+                            cancelled.set(true);
+                        }
+                    }// run()
+                });
+            }// for
+            executor.shutdown();
+
+            boolean interrupted = false;
+            boolean terminated = false;
+            while (!terminated) {
+                try {
+                    terminated = executor.awaitTermination(
+                            UI.DELAY_TIME_UPDATING_UI, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    cancelled.set(true);
                 }
 
-                int flags = entry.getMethod() == ZipEntry.STORED ? 0 : 1 << 3;
-                flags |= 1 << 11;
-                final long dataSize;
-                if ((flags & ZIP_ENTRY_USES_DATA_DESCR) != 0)
-                    dataSize = (entry.isDirectory() ? 0 : entry
-                            .getCompressedSize())
-                            + ZIP_ENTRY_DATA_DESCRIPTOR_LEN;
-                else
-                    dataSize = entry.isDirectory() ? 0 : entry
-                            .getCompressedSize();
+                if (!terminated && !cancelled.get() && isProgressDue(false))
+                    sendNotification(MSG_INFO, mProgress + 90.0
+                            * hashedBytes.get() / Math.max(1, bytesTotal));
+            }// while
 
-                if (Sys.DEBUG)
-                    L.d("size = %,8d, compressed = %,8d, crc32 = %08x, data mHeaderOffset = %,8d >> %,8d"
-                            + " >> Entry '%s'", entry.getSize(),
-                            entry.getCompressedSize(), entry.getCrc(),
-                            dataOffset, dataOffset + headerSize,
-                            entry.getName());
+            if (interrupted)
+                interrupt();
+
+            final Throwable t = error.get();
+            if (t instanceof IOException)
+                throw (IOException) t;
+            else if (t != null)
+                throw new IOException(t);
+
+            return digests;
+        }// hashEntries()
+
+        /**
+         * Hashes raw data of an entry. This method is called from worker
+         * threads.
+         * 
+         * @param index
+         *            the entry index.
+         * @param md
+         *            the message digest to use.
+         * @param header
+         *            the buffer to read the local header, see
+         *            {@link ZipAlign#newLocalHeaderBuffer()}.
+         * @param buffer
+         *            the buffer to read data.
+         * @param hashedBytes
+         *            the counter of bytes hashed, for progress.
+         * @param cancelled
+         *            the flag to check for cancellation.
+         * @return the digest, or {@code null} if cancelled.
+         * @throws IOException
+         *             if any occurred, or the local header is invalid.
+         */
+        private byte[] hashEntry(int index, MessageDigest md,
+                ByteBuffer header, byte[] buffer, AtomicLong hashedBytes,
+                AtomicBoolean cancelled) throws IOException {
+            final long headerOffset = mCentralDir.getLocalHeaderOffset(index);
+            long offset = headerOffset
+                    + readLocalHeader(mInputChannel, headerOffset, header);
+            long remaining = mCentralDir.getCompressedSize(index);
+
+            md.reset();
+            while (remaining > 0) {
+                if (cancelled.get())
+                    return null;
 
-                dataOffset += headerSize + dataSize;
+                final int len = (int) Math.min(buffer.length, remaining);
+                readFully(mInputChannel, ByteBuffer.wrap(buffer, 0, len),
+                        offset);
+                md.update(buffer, 0, len);
+                offset += len;
+                remaining -= len;
+                hashedBytes.addAndGet(len);
             }// while
-        }// verify()
+
+            return md.digest();
+        }// hashEntry()
+
+        /**
+         * Sends the report of duplicate entries.
+         */
+        private void notifyDuplicates() {
+            if (mGroups.isEmpty()) {
+                sendNotification(MSG_INFO, Texts.NULL, String.format("%s\n",
+                        Messages.getString(R.string.msg_no_duplicate_entries)));
+                return;
+            }
+
+            final StringBuilder result = new StringBuilder();
+            for (int[] group : mGroups) {
+                result.append(
+                        Messages.getString(R.string.pmsg_duplicate_group,
+                                group.length, Texts.sizeToStr(mCentralDir
+                                        .getSize(group[0])), mCentralDir
+                                        .getCrc(group[0]), Texts
+                                        .sizeToStr(getWastedBytes(group))))
+                        .append('\n');
+                for (int i : group)
+                    result.append("    ").append(mCentralDir.getName(i))
+                            .append('\n');
+                result.append('\n');
+            }// for
+            result.append(Messages.getString(R.string.pmsg_duplicates_found,
+                    mGroups.size(), Texts.sizeToStr(mWastedBytes)));
+            sendNotification(MSG_INFO, Texts.NULL, result.append('\n')
+                    .toString());
+        }// notifyDuplicates()
+
+        /**
+         * Gets number of groups of duplicate entries. This is only valid
+         * after the finder has finished.
+         * 
+         * @return number of groups.
+         */
+        public int getGroupCount() {
+            return mGroups.size();
+        }// getGroupCount()
+
+        /**
+         * Gets entries of a group. Groups are sorted by bytes wasted, from
+         * the largest one.
+         * 
+         * @param group
+         *            the group index.
+         * @return indexes of the entries, in the order of the central
+         *         directory.
+         */
+        public int[] getGroup(int group) {
+            return mGroups.get(group).clone();
+        }// getGroup()
+
+        /**
+         * Gets name of an entry.
+         * 
+         * @param index
+         *            the entry index.
+         * @return the entry name.
+         */
+        public String getEntryName(int index) {
+            return mCentralDir.getName(index);
+        }// getEntryName()
+
+        /**
+         * Gets bytes wasted by a group.
+         * 
+         * @param group
+         *            the group index.
+         * @return the compressed size of all copies but one.
+         */
+        public long getWastedBytes(int group) {
+            return getWastedBytes(mGroups.get(group));
+        }// getWastedBytes()
+
+        /**
+         * Gets bytes wasted by all groups.
+         * 
+         * @return the compressed size of all copies but one, of all groups.
+         */
+        public long getWastedBytes() {
+            return mWastedBytes;
+        }// getWastedBytes()
+
+        /**
+         * Gets bytes wasted by a group.
+         * 
+         * @param group
+         *            indexes of the entries.
+         * @return the compressed size of all copies but one.
+         */
+        private long getWastedBytes(int[] group) {
+            return (group.length - 1)
+                    * mCentralDir.getCompressedSize(group[0]);
+        }// getWastedBytes()
 
         /**
          * Closes source files.
@@ -895,21 +5596,12 @@ public class ZipAlign {
          * @throws IOException
          */
         private void closeFiles() throws IOException {
-            mZipFile.close();
-            mRafInput.close();
+            if (mRafInput != null)
+                mRafInput.close();
 
-            sendNotification(
-                    MSG_INFO,
-                    mProgress = 100,
-                    Texts.NULL,
-                    String.format(
-                            "\n%s",
-                            mFoundBad ? Messages
-                                    .getString(R.string.verification_failed)
-                                    : Messages
-                                            .getString(R.string.verification_succesful)));
+            sendNotification(MSG_INFO, mProgress = 100);
         }// closeFiles()
 
-    }// ZipAlignmentVerifier
+    }// ZipDuplicateFinder
 
 }
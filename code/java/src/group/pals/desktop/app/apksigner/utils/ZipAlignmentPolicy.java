@@ -0,0 +1,275 @@
+/*
+ *    Copyright (C) 2012 Hai Bison
+ *
+ *    See the file LICENSE at the root directory of this project for copying
+ *    permission.
+ */
+
+package group.pals.desktop.app.apksigner.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Alignment policy of ZIP entries.
+ * <p>
+ * A policy is an ordered list of rules, each of them maps entry names (by a
+ * glob or a regular expression) to an alignment value. The first matching
+ * rule wins, and entries which match no rules get the default alignment.
+ * </p>
+ * <p>
+ * Globs match whole entry names: {@code *} matches any characters except
+ * {@code /}, {@code **} matches any characters including {@code /},
+ * {@code **}{@code /} matches zero or more directories, and {@code ?}
+ * matches one character except {@code /}.
+ * </p>
+ *
+ * @author Hai Bison
+ * @since v1.8.6 beta
+ */
+public class ZipAlignmentPolicy {
+
+    /**
+     * Page size of Android devices.
+     */
+    public static final int PAGE_SIZE = 4096;
+
+    /**
+     * Glob of native libraries inside APK files.
+     */
+    public static final String GLOB_NATIVE_LIBRARIES = "lib/**/*.so";
+
+    /**
+     * Creates new policy for APK files: native libraries are aligned to
+     * {@link #PAGE_SIZE}, so they can be mapped directly from the APK file,
+     * other entries are aligned to {@link ZipAlign#DEFAULT_ALIGNMENT}. This
+     * is the same as {@code zipalign -p}.
+     *
+     * @return the new policy.
+     */
+    public static ZipAlignmentPolicy newApkPolicy() {
+        return new ZipAlignmentPolicy(ZipAlign.DEFAULT_ALIGNMENT).addGlob(
+                GLOB_NATIVE_LIBRARIES, PAGE_SIZE);
+    }// newApkPolicy()
+
+    /**
+     * Converts a glob to a regular expression.
+     *
+     * @param glob
+     *            the glob.
+     * @return the regular expression.
+     */
+    public static String globToRegex(String glob) {
+        final StringBuilder result = new StringBuilder();
+        final StringBuilder literal = new StringBuilder();
+
+        for (int i = 0; i < glob.length(); i++) {
+            final char c = glob.charAt(i);
+            if (c != '*' && c != '?') {
+                literal.append(c);
+                continue;
+            }
+
+            if (literal.length() > 0) {
+                result.append(Pattern.quote(literal.toString()));
+                literal.setLength(0);
+            }
+
+            if (c == '?')
+                result.append("[^/]");
+            else if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                i++;
+                if (i + 1 < glob.length() && glob.charAt(i + 1) == '/') {
+                    i++;
+                    result.append("(?:.*/)?");
+                } else
+                    result.append(".*");
+            } else
+                result.append("[^/]*");
+        }// for
+
+        if (literal.length() > 0)
+            result.append(Pattern.quote(literal.toString()));
+
+        return result.toString();
+    }// globToRegex()
+
+    /**
+     * Appends a rule to an unambiguous description of a policy, see
+     * {@link #getKey()}. The expression is prefixed with its kind and
+     * length, so no characters in it can be mistaken for separators.
+     *
+     * @param key
+     *            the description.
+     * @param glob
+     *            {@code true} if the expression is a glob, {@code false} if
+     *            it is a regular expression.
+     * @param expression
+     *            the expression.
+     * @param value
+     *            the value of the rule.
+     */
+    static void appendRuleKey(StringBuilder key, boolean glob,
+            String expression, int value) {
+        key.append(';').append(glob ? 'g' : 'r').append(expression.length())
+                .append(':').append(expression).append('=').append(value);
+    }// appendRuleKey()
+
+    /**
+     * A rule.
+     *
+     * @author Hai Bison
+     * @since v1.8.6 beta
+     */
+    private static class Rule {
+
+        final String expression;
+        final boolean glob;
+        final Pattern pattern;
+        final int alignment;
+
+        /**
+         * Creates new instance.
+         *
+         * @param expression
+         *            the glob or regular expression, as given by user.
+         * @param glob
+         *            {@code true} if {@code expression} is a glob.
+         * @param pattern
+         *            the pattern of entry names.
+         * @param alignment
+         *            the alignment.
+         */
+        Rule(String expression, boolean glob, Pattern pattern, int alignment) {
+            this.expression = expression;
+            this.glob = glob;
+            this.pattern = pattern;
+            this.alignment = alignment;
+        }// Rule()
+    }// Rule
+
+    private final int mDefaultAlignment;
+    private final List<Rule> mRules = new ArrayList<Rule>();
+
+    /**
+     * Creates new instance.
+     *
+     * @param defaultAlignment
+     *            the alignment of entries which match no rules,
+     *            {@link ZipAlign#DEFAULT_ALIGNMENT} is highly recommended.
+     */
+    public ZipAlignmentPolicy(int defaultAlignment) {
+        mDefaultAlignment = checkAlignment(defaultAlignment);
+    }// ZipAlignmentPolicy()
+
+    /**
+     * Adds new rule. Rules are checked in the order they were added.
+     *
+     * @param glob
+     *            the glob of entry names.
+     * @param alignment
+     *            the alignment.
+     * @return the instance of this policy, to allow chaining multiple calls
+     *         into a single statement.
+     */
+    public ZipAlignmentPolicy addGlob(String glob, int alignment) {
+        mRules.add(new Rule(glob, true, Pattern.compile(globToRegex(glob)),
+                checkAlignment(alignment)));
+        return this;
+    }// addGlob()
+
+    /**
+     * Adds new rule. Rules are checked in the order they were added.
+     *
+     * @param regex
+     *            the regular expression of entry names, it must match whole
+     *            names.
+     * @param alignment
+     *            the alignment.
+     * @return the instance of this policy, to allow chaining multiple calls
+     *         into a single statement.
+     */
+    public ZipAlignmentPolicy addRegex(String regex, int alignment) {
+        mRules.add(new Rule(regex, false, Pattern.compile(regex),
+                checkAlignment(alignment)));
+        return this;
+    }// addRegex()
+
+    /**
+     * Gets the default alignment.
+     *
+     * @return the default alignment.
+     */
+    public int getDefaultAlignment() {
+        return mDefaultAlignment;
+    }// getDefaultAlignment()
+
+    /**
+     * Checks if this policy has any rules.
+     *
+     * @return {@code true} or {@code false}.
+     */
+    public boolean hasRules() {
+        return !mRules.isEmpty();
+    }// hasRules()
+
+    /**
+     * Gets alignment of an entry.
+     *
+     * @param name
+     *            the entry name.
+     * @return the alignment.
+     */
+    public int getAlignment(String name) {
+        for (Rule rule : mRules)
+            if (rule.pattern.matcher(name).matches())
+                return rule.alignment;
+        return mDefaultAlignment;
+    }// getAlignment()
+
+    /**
+     * Returns a short description of this policy, for example
+     * {@code "4; lib/**}{@code /*.so: 4,096"}.
+     */
+    @Override
+    public String toString() {
+        final StringBuilder result = new StringBuilder(String.format("%,d",
+                mDefaultAlignment));
+        for (Rule rule : mRules)
+            result.append(String.format("; %s: %,d", rule.expression,
+                    rule.alignment));
+        return result.toString();
+    }// toString()
+
+    /**
+     * Gets an unambiguous description of this policy, which doesn't depend
+     * on the locale, to be used in keys of {@link ResultCache}. Unlike
+     * {@link #toString()}, it tells globs from regular expressions.
+     *
+     * @return the description.
+     */
+    public String getKey() {
+        final StringBuilder result = new StringBuilder(
+                Integer.toString(mDefaultAlignment));
+        for (Rule rule : mRules)
+            appendRuleKey(result, rule.glob, rule.expression, rule.alignment);
+        return result.toString();
+    }// getKey()
+
+    /**
+     * Checks an alignment value.
+     *
+     * @param alignment
+     *            the alignment.
+     * @return the alignment.
+     * @throws IllegalArgumentException
+     *             if the alignment is out of range.
+     */
+    private static int checkAlignment(int alignment) {
+        if (alignment < 1 || alignment > 0xffff)
+            throw new IllegalArgumentException(String.format(
+                    "Invalid alignment: %,d", alignment));
+        return alignment;
+    }// checkAlignment()
+}
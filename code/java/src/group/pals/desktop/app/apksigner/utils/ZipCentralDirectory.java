@@ -0,0 +1,895 @@
+/*
+ *    Copyright (C) 2012 Hai Bison
+ *
+ *    See the file LICENSE at the root directory of this project for copying
+ *    permission.
+ */
+
+package group.pals.desktop.app.apksigner.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Memory-mapped reader of a ZIP file's central directory.
+ * <p>
+ * The end of central directory record and the central directory itself are
+ * mapped into memory (or copied into a heap buffer, see
+ * {@link #read(FileChannel, boolean)}), and all fields of an entry are read in
+ * place by its index. No object is created per entry.
+ * </p>
+ * <p>
+ * ZIP64 archives are supported: sizes and offsets are resolved from ZIP64
+ * extended information if needed.
+ * </p>
+ * <p>
+ * All getters use absolute reads, so an instance can be shared between
+ * threads once it has been created.
+ * </p>
+ * <p>
+ * See <a href=
+ * "http://www.pkware.com/documents/casestudies/APPNOTE.TXT">APPNOTE.TXT</a>
+ * for the file format.
+ * </p>
+ *
+ * @author Hai Bison
+ * @since v1.8.6 beta
+ */
+public class ZipCentralDirectory {
+
+    /**
+     * Signature of local file headers.
+     */
+    public static final int LOCSIG = 0x04034b50;
+
+    /**
+     * Signature of central directory file headers.
+     */
+    public static final int CENSIG = 0x02014b50;
+
+    /**
+     * Signature of the end of central directory record.
+     */
+    public static final int ENDSIG = 0x06054b50;
+
+    /**
+     * Signature of the ZIP64 end of central directory record.
+     */
+    public static final int ZIP64_ENDSIG = 0x06064b50;
+
+    /**
+     * Signature of the ZIP64 end of central directory locator.
+     */
+    public static final int ZIP64_LOCSIG = 0x07064b50;
+
+    /**
+     * Signature of data descriptors (optional).
+     */
+    public static final int EXTSIG = 0x08074b50;
+
+    /**
+     * The minimum size of a central directory file header.
+     */
+    public static final int CENHDR = 46;
+
+    /**
+     * The minimum size of the end of central directory record.
+     */
+    public static final int ENDHDR = 22;
+
+    /**
+     * Size of the ZIP64 end of central directory record (version 1).
+     */
+    public static final int ZIP64_ENDHDR = 56;
+
+    /**
+     * Size of the ZIP64 end of central directory locator.
+     */
+    public static final int ZIP64_LOCHDR = 20;
+
+    /**
+     * A 32-bit size or offset which has this value is stored in ZIP64
+     * extended information.
+     */
+    public static final long ZIP64_MAGIC = 0xffffffffL;
+
+    /**
+     * A 16-bit entry count which has this value is stored in the ZIP64 end of
+     * central directory record.
+     */
+    public static final int ZIP64_MAGIC_COUNT = 0xffff;
+
+    /**
+     * Version needed to extract ZIP64 archives.
+     */
+    public static final int ZIP64_VERSION = 45;
+
+    /**
+     * Max length of the ZIP file comment.
+     */
+    public static final int MAX_COMMENT_LEN = 0xffff;
+
+    /**
+     * The offset of field file name length in a local file header.
+     */
+    public static final int LOC_OFFSET_NAME_LEN = 26;
+
+    /*
+     * Offsets of fields in a central directory file header.
+     */
+
+    private static final int CEN_VERSION_MADE_BY = 4;
+    static final int CEN_VERSION_NEEDED = 6;
+    static final int CEN_FLAGS = 8;
+    static final int CEN_METHOD = 10;
+    private static final int CEN_TIME = 12;
+    private static final int CEN_DATE = 14;
+    private static final int CEN_CRC = 16;
+    static final int CEN_COMPRESSED_SIZE = 20;
+    private static final int CEN_SIZE = 24;
+    static final int CEN_NAME_LEN = 28;
+    static final int CEN_EXTRA_LEN = 30;
+    static final int CEN_COMMENT_LEN = 32;
+    private static final int CEN_INTERNAL_ATTRS = 36;
+    private static final int CEN_EXTERNAL_ATTRS = 38;
+
+    /**
+     * Offset of field "relative offset of local header" in a central
+     * directory file header.
+     */
+    public static final int CEN_LOCAL_HEADER_OFFSET = 42;
+
+    /*
+     * Offsets of fields in the end of central directory record.
+     */
+
+    private static final int END_TOTAL_ENTRIES = 10;
+    private static final int END_CEN_SIZE = 12;
+    private static final int END_CEN_OFFSET = 16;
+    static final int END_COMMENT_LEN = 20;
+
+    /*
+     * Offsets of fields in the ZIP64 end of central directory record/
+     * locator.
+     */
+
+    private static final int ZIP64_END_TOTAL_ENTRIES = 32;
+    private static final int ZIP64_END_CEN_SIZE = 40;
+    private static final int ZIP64_END_CEN_OFFSET = 48;
+    private static final int ZIP64_LOC_END_OFFSET = 8;
+
+    private final ByteBuffer mBuffer;
+    private final int[] mRecordOffsets;
+    private final long mOffset;
+    private final long mSize;
+    private final byte[] mComment;
+
+    /**
+     * Creates new instance.
+     *
+     * @param buffer
+     *            the mapped (or copied) central directory.
+     * @param recordOffsets
+     *            offsets of all records within {@code buffer}.
+     * @param offset
+     *            the offset of the central directory in the file.
+     * @param comment
+     *            the ZIP file comment.
+     */
+    private ZipCentralDirectory(ByteBuffer buffer, int[] recordOffsets,
+            long offset, byte[] comment) {
+        mBuffer = buffer;
+        mRecordOffsets = recordOffsets;
+        mOffset = offset;
+        mSize = buffer.capacity();
+        mComment = comment;
+    }// ZipCentralDirectory()
+
+    /**
+     * Reads the central directory of a ZIP file.
+     *
+     * @param channel
+     *            the channel of the ZIP file. It can be closed after this
+     *            method returns, the mapping stays valid.
+     * @return the central directory.
+     * @throws IOException
+     *             if any occurred, or the file is not a valid ZIP file.
+     */
+    public static ZipCentralDirectory read(FileChannel channel)
+            throws IOException {
+        return read(channel, false);
+    }// read()
+
+    /**
+     * Reads the central directory of a ZIP file.
+     * <p>
+     * A mapping reflects later changes of the file, and can't outlive a
+     * truncation of it. So if the file will be rewritten while the central
+     * directory is in use, it must be copied into the heap instead.
+     * </p>
+     *
+     * @param channel
+     *            the channel of the ZIP file. It can be closed after this
+     *            method returns.
+     * @param heap
+     *            {@code true} to copy the central directory into a heap
+     *            buffer, {@code false} to map it.
+     * @return the central directory.
+     * @throws IOException
+     *             if any occurred, or the file is not a valid ZIP file.
+     */
+    public static ZipCentralDirectory read(FileChannel channel, boolean heap)
+            throws IOException {
+        final long fileSize = channel.size();
+        if (fileSize < ENDHDR)
+            throw new IOException("File too small to be a ZIP file");
+
+        /*
+         * Find the end of central directory record, it is followed by a
+         * comment of at most MAX_COMMENT_LEN bytes.
+         */
+        final int tailSize = (int) Math.min(fileSize, ENDHDR
+                + MAX_COMMENT_LEN);
+        final ByteBuffer tail = load(channel, fileSize - tailSize, tailSize,
+                heap);
+
+        int endPos = -1;
+        for (int i = tailSize - ENDHDR; i >= 0; i--) {
+            if (tail.getInt(i) == ENDSIG
+                    && i + ENDHDR + (tail.getShort(i + END_COMMENT_LEN) & 0xffff) == tailSize) {
+                endPos = i;
+                break;
+            }
+        }// for
+        if (endPos < 0)
+            throw new IOException("End of central directory not found");
+
+        long entryCount = tail.getShort(endPos + END_TOTAL_ENTRIES) & 0xffff;
+        long cenSize = tail.getInt(endPos + END_CEN_SIZE) & 0xffffffffL;
+        long cenOffset = tail.getInt(endPos + END_CEN_OFFSET) & 0xffffffffL;
+        long cenLimit = fileSize - tailSize + endPos;
+
+        final byte[] comment = new byte[tail
+                .getShort(endPos + END_COMMENT_LEN) & 0xffff];
+        for (int i = 0; i < comment.length; i++)
+            comment[i] = tail.get(endPos + ENDHDR + i);
+
+        /*
+         * ZIP64 end of central directory locator, if any, is right before the
+         * end of central directory record.
+         */
+        if (cenLimit >= ZIP64_LOCHDR) {
+            final ByteBuffer locator = ByteBuffer.allocate(ZIP64_LOCHDR).order(
+                    ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, locator, cenLimit - ZIP64_LOCHDR);
+            if (locator.getInt(0) == ZIP64_LOCSIG) {
+                final long zip64EndOffset = locator
+                        .getLong(ZIP64_LOC_END_OFFSET);
+                final ByteBuffer zip64End = ByteBuffer.allocate(ZIP64_ENDHDR)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                if (zip64EndOffset < 0
+                        || zip64EndOffset + ZIP64_ENDHDR > cenLimit)
+                    throw new IOException(
+                            "Invalid ZIP64 end of central directory offset");
+                readFully(channel, zip64End, zip64EndOffset);
+                if (zip64End.getInt(0) != ZIP64_ENDSIG)
+                    throw new IOException(
+                            "ZIP64 end of central directory not found");
+
+                entryCount = zip64End.getLong(ZIP64_END_TOTAL_ENTRIES);
+                cenSize = zip64End.getLong(ZIP64_END_CEN_SIZE);
+                cenOffset = zip64End.getLong(ZIP64_END_CEN_OFFSET);
+                cenLimit = zip64EndOffset;
+            }// if
+        }// if
+
+        if (cenOffset < 0 || cenSize < 0 || cenOffset + cenSize > cenLimit)
+            throw new IOException("Invalid central directory offset/ size");
+        if (cenSize > Integer.MAX_VALUE || entryCount > Integer.MAX_VALUE
+                || entryCount * CENHDR > cenSize)
+            throw new IOException("Central directory is too large");
+
+        final ByteBuffer buffer = load(channel, cenOffset, (int) cenSize,
+                heap);
+
+        /*
+         * Index all records.
+         */
+        final int[] recordOffsets = new int[(int) entryCount];
+        int pos = 0;
+        for (int i = 0; i < entryCount; i++) {
+            if (pos + CENHDR > cenSize || buffer.getInt(pos) != CENSIG)
+                throw new IOException(String.format(
+                        "Invalid central directory file header #%,d", i));
+
+            recordOffsets[i] = pos;
+            pos += CENHDR + (buffer.getShort(pos + CEN_NAME_LEN) & 0xffff)
+                    + (buffer.getShort(pos + CEN_EXTRA_LEN) & 0xffff)
+                    + (buffer.getShort(pos + CEN_COMMENT_LEN) & 0xffff);
+        }// for
+        if (pos > cenSize)
+            throw new IOException("Central directory is truncated");
+
+        final ZipCentralDirectory result = new ZipCentralDirectory(buffer,
+                recordOffsets, cenOffset, comment);
+
+        /*
+         * Make sure all ZIP64 fields are there, so getters never fail.
+         */
+        for (int i = 0; i < recordOffsets.length; i++) {
+            final int zip64FieldCount = result.getZip64FieldIndex(i,
+                    CEN_LOCAL_HEADER_OFFSET + 4);
+            if (zip64FieldCount > 0
+                    && result.getZip64FieldsLength(i) < zip64FieldCount * 8)
+                throw new IOException(String.format(
+                        "Missing ZIP64 extended information of entry #%,d",
+                        i));
+        }// for
+
+        return result;
+    }// read()
+
+    /**
+     * Maps a region of a file, or copies it into a heap buffer.
+     *
+     * @param channel
+     *            the channel of the file.
+     * @param offset
+     *            the offset of the region.
+     * @param size
+     *            the size of the region.
+     * @param heap
+     *            {@code true} to copy, {@code false} to map.
+     * @return the buffer, in little-endian byte order.
+     * @throws IOException
+     */
+    private static ByteBuffer load(FileChannel channel, long offset,
+            int size, boolean heap) throws IOException {
+        if (!heap)
+            return channel.map(FileChannel.MapMode.READ_ONLY, offset, size)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+
+        final ByteBuffer buffer = ByteBuffer.allocate(size).order(
+                ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, buffer, offset);
+        return buffer;
+    }// load()
+
+    /**
+     * Reads from {@code channel} until {@code buf} is full.
+     *
+     * @param channel
+     *            the channel.
+     * @param buf
+     *            the buffer.
+     * @param offset
+     *            the position in {@code channel} to start reading from.
+     * @throws IOException
+     *             if any occurred, or end of file has been reached.
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buf,
+            long offset) throws IOException {
+        while (buf.hasRemaining()) {
+            final int read = channel.read(buf, offset);
+            if (read < 0)
+                throw new IOException("Unexpected end of file");
+            offset += read;
+        }
+    }// readFully()
+
+    /**
+     * Gets total entries.
+     *
+     * @return total entries.
+     */
+    public int size() {
+        return mRecordOffsets.length;
+    }// size()
+
+    /**
+     * Gets the offset of the central directory in the file.
+     *
+     * @return the offset.
+     */
+    public long getOffset() {
+        return mOffset;
+    }// getOffset()
+
+    /**
+     * Gets the size of the central directory.
+     *
+     * @return the size.
+     */
+    public long getSize() {
+        return mSize;
+    }// getSize()
+
+    /**
+     * Gets the ZIP file comment.
+     *
+     * @return the raw comment, can be empty.
+     */
+    public byte[] getComment() {
+        return mComment;
+    }// getComment()
+
+    /**
+     * Gets the offset of the record of an entry, within the central directory.
+     *
+     * @param index
+     *            the entry index.
+     * @return the offset.
+     */
+    public int getRecordOffset(int index) {
+        return mRecordOffsets[index];
+    }// getRecordOffset()
+
+    /**
+     * Gets the length of the record of an entry.
+     *
+     * @param index
+     *            the entry index.
+     * @return the record length.
+     */
+    public int getRecordLength(int index) {
+        return CENHDR + getNameLength(index) + getExtraLength(index)
+                + getCommentLength(index);
+    }// getRecordLength()
+
+    /**
+     * Copies raw bytes of consecutive records. Records are stored one after
+     * another, in the order of their indexes.
+     *
+     * @param index
+     *            the index of the first entry.
+     * @param count
+     *            the number of records.
+     * @param dst
+     *            the destination.
+     * @param off
+     *            the offset in {@code dst}.
+     * @return the number of bytes copied.
+     */
+    public int getRecords(int index, int count, byte[] dst, int off) {
+        final int last = index + count - 1;
+        return copy(mRecordOffsets[index], mRecordOffsets[last]
+                + getRecordLength(last) - mRecordOffsets[index], dst, off);
+    }// getRecords()
+
+    /**
+     * Checks if the local header offset of an entry is stored in its ZIP64
+     * extended information, rather than in the record's fixed fields.
+     *
+     * @param index
+     *            the entry index.
+     * @return {@code true} or {@code false}.
+     */
+    public boolean isLocalHeaderOffsetInZip64(int index) {
+        return u32(index, CEN_LOCAL_HEADER_OFFSET) == ZIP64_MAGIC;
+    }// isLocalHeaderOffsetInZip64()
+
+    /**
+     * Gets "version made by".
+     *
+     * @param index
+     *            the entry index.
+     * @return the version.
+     */
+    public int getVersionMadeBy(int index) {
+        return u16(index, CEN_VERSION_MADE_BY);
+    }// getVersionMadeBy()
+
+    /**
+     * Gets "version needed to extract".
+     *
+     * @param index
+     *            the entry index.
+     * @return the version.
+     */
+    public int getVersionNeeded(int index) {
+        return u16(index, CEN_VERSION_NEEDED);
+    }// getVersionNeeded()
+
+    /**
+     * Gets general purpose bit flags.
+     *
+     * @param index
+     *            the entry index.
+     * @return the flags.
+     */
+    public int getFlags(int index) {
+        return u16(index, CEN_FLAGS);
+    }// getFlags()
+
+    /**
+     * Gets compression method.
+     *
+     * @param index
+     *            the entry index.
+     * @return the method.
+     */
+    public int getMethod(int index) {
+        return u16(index, CEN_METHOD);
+    }// getMethod()
+
+    /**
+     * Gets last modification time, in MS-DOS format.
+     *
+     * @param index
+     *            the entry index.
+     * @return the time.
+     */
+    public int getDosTime(int index) {
+        return u16(index, CEN_TIME);
+    }// getDosTime()
+
+    /**
+     * Gets last modification date, in MS-DOS format.
+     *
+     * @param index
+     *            the entry index.
+     * @return the date.
+     */
+    public int getDosDate(int index) {
+        return u16(index, CEN_DATE);
+    }// getDosDate()
+
+    /**
+     * Gets CRC-32 of uncompressed data.
+     *
+     * @param index
+     *            the entry index.
+     * @return the CRC-32.
+     */
+    public long getCrc(int index) {
+        return u32(index, CEN_CRC);
+    }// getCrc()
+
+    /**
+     * Gets compressed size.
+     *
+     * @param index
+     *            the entry index.
+     * @return the compressed size.
+     */
+    public long getCompressedSize(int index) {
+        return u32OrZip64(index, CEN_COMPRESSED_SIZE);
+    }// getCompressedSize()
+
+    /**
+     * Gets uncompressed size.
+     *
+     * @param index
+     *            the entry index.
+     * @return the uncompressed size.
+     */
+    public long getSize(int index) {
+        return u32OrZip64(index, CEN_SIZE);
+    }// getSize()
+
+    /**
+     * Gets length of the file name.
+     *
+     * @param index
+     *            the entry index.
+     * @return the length.
+     */
+    public int getNameLength(int index) {
+        return u16(index, CEN_NAME_LEN);
+    }// getNameLength()
+
+    /**
+     * Gets length of the "extra" field.
+     *
+     * @param index
+     *            the entry index.
+     * @return the length.
+     */
+    public int getExtraLength(int index) {
+        return u16(index, CEN_EXTRA_LEN);
+    }// getExtraLength()
+
+    /**
+     * Gets length of the file comment.
+     *
+     * @param index
+     *            the entry index.
+     * @return the length.
+     */
+    public int getCommentLength(int index) {
+        return u16(index, CEN_COMMENT_LEN);
+    }// getCommentLength()
+
+    /**
+     * Gets internal file attributes.
+     *
+     * @param index
+     *            the entry index.
+     * @return the attributes.
+     */
+    public int getInternalAttributes(int index) {
+        return u16(index, CEN_INTERNAL_ATTRS);
+    }// getInternalAttributes()
+
+    /**
+     * Gets external file attributes.
+     *
+     * @param index
+     *            the entry index.
+     * @return the attributes.
+     */
+    public long getExternalAttributes(int index) {
+        return u32(index, CEN_EXTERNAL_ATTRS);
+    }// getExternalAttributes()
+
+    /**
+     * Gets the offset of the local file header.
+     *
+     * @param index
+     *            the entry index.
+     * @return the offset.
+     */
+    public long getLocalHeaderOffset(int index) {
+        return u32OrZip64(index, CEN_LOCAL_HEADER_OFFSET);
+    }// getLocalHeaderOffset()
+
+    /**
+     * Gets indexes of all entries, sorted by their local header offsets, so
+     * local headers can be visited in one forward pass over the file. Entries
+     * of the same offset keep their order.
+     *
+     * @return the sorted indexes.
+     */
+    public int[] getIndexesByLocalHeaderOffset() {
+        final int size = size();
+        final long[] offsets = new long[size];
+        int[] indexes = new int[size];
+        boolean sorted = true;
+        for (int i = 0; i < size; i++) {
+            offsets[i] = getLocalHeaderOffset(i);
+            indexes[i] = i;
+            if (i > 0 && offsets[i] < offsets[i - 1])
+                sorted = false;
+        }
+        if (sorted)
+            return indexes;
+
+        /*
+         * Bottom-up merge sort, it's stable and doesn't box the keys.
+         */
+        int[] temp = new int[size];
+        for (int width = 1; width < size; width *= 2) {
+            for (int lo = 0; lo < size; lo += 2 * width) {
+                final int mid = Math.min(lo + width, size);
+                final int hi = Math.min(lo + 2 * width, size);
+                int a = lo, b = mid, k = lo;
+                while (a < mid && b < hi)
+                    temp[k++] = offsets[indexes[b]] < offsets[indexes[a]] ? indexes[b++]
+                            : indexes[a++];
+                while (a < mid)
+                    temp[k++] = indexes[a++];
+                while (b < hi)
+                    temp[k++] = indexes[b++];
+            }// for
+
+            final int[] swap = indexes;
+            indexes = temp;
+            temp = swap;
+        }// for
+
+        return indexes;
+    }// getIndexesByLocalHeaderOffset()
+
+    /**
+     * Checks if an entry is a directory.
+     *
+     * @param index
+     *            the entry index.
+     * @return {@code true} or {@code false}.
+     */
+    public boolean isDirectory(int index) {
+        final int len = getNameLength(index);
+        return len > 0
+                && mBuffer.get(mRecordOffsets[index] + CENHDR + len - 1) == '/';
+    }// isDirectory()
+
+    /**
+     * Copies the raw file name into {@code dst}.
+     *
+     * @param index
+     *            the entry index.
+     * @param dst
+     *            the destination, must have at least
+     *            {@link #getNameLength(int)} bytes from {@code off}.
+     * @param off
+     *            the offset in {@code dst}.
+     * @return the name length.
+     */
+    public int getName(int index, byte[] dst, int off) {
+        return copy(mRecordOffsets[index] + CENHDR, getNameLength(index), dst,
+                off);
+    }// getName()
+
+    /**
+     * Copies the raw "extra" field into {@code dst}.
+     *
+     * @param index
+     *            the entry index.
+     * @param dst
+     *            the destination, must have at least
+     *            {@link #getExtraLength(int)} bytes from {@code off}.
+     * @param off
+     *            the offset in {@code dst}.
+     * @return the "extra" field length.
+     */
+    public int getExtra(int index, byte[] dst, int off) {
+        return copy(mRecordOffsets[index] + CENHDR + getNameLength(index),
+                getExtraLength(index), dst, off);
+    }// getExtra()
+
+    /**
+     * Copies the raw file comment into {@code dst}.
+     *
+     * @param index
+     *            the entry index.
+     * @param dst
+     *            the destination, must have at least
+     *            {@link #getCommentLength(int)} bytes from {@code off}.
+     * @param off
+     *            the offset in {@code dst}.
+     * @return the comment length.
+     */
+    public int getComment(int index, byte[] dst, int off) {
+        return copy(mRecordOffsets[index] + CENHDR + getNameLength(index)
+                + getExtraLength(index), getCommentLength(index), dst, off);
+    }// getComment()
+
+    /**
+     * Decodes the file name. This creates new string, it should be used for
+     * displaying purposes only.
+     *
+     * @param index
+     *            the entry index.
+     * @return the file name.
+     */
+    public String getName(int index) {
+        final byte[] name = new byte[getNameLength(index)];
+        getName(index, name, 0);
+        return new String(name, Charset.forName(Texts.UTF8));
+    }// getName()
+
+    /**
+     * Reads an unsigned 16-bit value of an entry's record.
+     *
+     * @param index
+     *            the entry index.
+     * @param field
+     *            the field offset.
+     * @return the value.
+     */
+    private int u16(int index, int field) {
+        return mBuffer.getShort(mRecordOffsets[index] + field) & 0xffff;
+    }// u16()
+
+    /**
+     * Reads an unsigned 32-bit value of an entry's record.
+     *
+     * @param index
+     *            the entry index.
+     * @param field
+     *            the field offset.
+     * @return the value.
+     */
+    private long u32(int index, int field) {
+        return mBuffer.getInt(mRecordOffsets[index] + field) & 0xffffffffL;
+    }// u32()
+
+    /**
+     * Reads an unsigned 32-bit value of an entry's record. If it is
+     * {@link #ZIP64_MAGIC}, reads the 64-bit value from ZIP64 extended
+     * information.
+     *
+     * @param index
+     *            the entry index.
+     * @param field
+     *            the field offset, one of uncompressed size, compressed size
+     *            and local header offset.
+     * @return the value.
+     */
+    private long u32OrZip64(int index, int field) {
+        final long result = u32(index, field);
+        if (result != ZIP64_MAGIC)
+            return result;
+
+        return mBuffer.getLong(findZip64Fields(index) + 8
+                * getZip64FieldIndex(index, field));
+    }// u32OrZip64()
+
+    /**
+     * Gets the index of a field in ZIP64 extended information. Fields are
+     * stored in this order: uncompressed size, compressed size, local header
+     * offset; a field exists only if its 32-bit value is
+     * {@link #ZIP64_MAGIC}.
+     *
+     * @param index
+     *            the entry index.
+     * @param field
+     *            the field offset.
+     * @return the number of ZIP64 fields which precede {@code field}.
+     */
+    private int getZip64FieldIndex(int index, int field) {
+        int result = 0;
+        if (field > CEN_SIZE && u32(index, CEN_SIZE) == ZIP64_MAGIC)
+            result++;
+        if (field > CEN_COMPRESSED_SIZE
+                && u32(index, CEN_COMPRESSED_SIZE) == ZIP64_MAGIC)
+            result++;
+        if (field > CEN_LOCAL_HEADER_OFFSET
+                && u32(index, CEN_LOCAL_HEADER_OFFSET) == ZIP64_MAGIC)
+            result++;
+        return result;
+    }// getZip64FieldIndex()
+
+    /**
+     * Finds data of ZIP64 extended information of an entry.
+     *
+     * @param index
+     *            the entry index.
+     * @return the position of the data in the buffer, or {@code -1} if not
+     *         found.
+     */
+    private int findZip64Fields(int index) {
+        final int start = mRecordOffsets[index] + CENHDR
+                + getNameLength(index);
+        final int end = start + getExtraLength(index);
+        int pos = start;
+        while (pos + ZipExtraFields.RECORD_HEADER_LEN <= end) {
+            final int dataLen = mBuffer.getShort(pos + 2) & 0xffff;
+            if ((mBuffer.getShort(pos) & 0xffff) == ZipExtraFields.ZIP64)
+                return pos + ZipExtraFields.RECORD_HEADER_LEN;
+            pos += ZipExtraFields.RECORD_HEADER_LEN + dataLen;
+        }
+
+        return -1;
+    }// findZip64Fields()
+
+    /**
+     * Gets the length of data of ZIP64 extended information of an entry.
+     *
+     * @param index
+     *            the entry index.
+     * @return the length, or {@code -1} if there is no such information.
+     */
+    private int getZip64FieldsLength(int index) {
+        final int pos = findZip64Fields(index);
+        if (pos < 0)
+            return -1;
+
+        final int end = mRecordOffsets[index] + CENHDR + getNameLength(index)
+                + getExtraLength(index);
+        return Math.min(end - pos, mBuffer.getShort(pos - 2) & 0xffff);
+    }// getZip64FieldsLength()
+
+    /**
+     * Copies bytes from the mapped buffer.
+     *
+     * @param pos
+     *            the position in the buffer.
+     * @param len
+     *            the length.
+     * @param dst
+     *            the destination.
+     * @param off
+     *            the offset in {@code dst}.
+     * @return {@code len}.
+     */
+    private int copy(int pos, int len, byte[] dst, int off) {
+        final ByteBuffer buf = mBuffer.duplicate();
+        buf.position(pos);
+        buf.get(dst, off, len);
+        return len;
+    }// copy()
+}
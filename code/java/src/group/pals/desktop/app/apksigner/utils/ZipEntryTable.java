@@ -0,0 +1,400 @@
+/*
+ *    Copyright (C) 2012 Hai Bison
+ *
+ *    See the file LICENSE at the root directory of this project for copying
+ *    permission.
+ */
+
+package group.pals.desktop.app.apksigner.utils;
+
+import java.util.Arrays;
+
+/**
+ * Table of per-entry layout information of a ZIP file.
+ * <p>
+ * The table is stored as columns of primitive arrays, one element per entry,
+ * in the order of the central directory. Entry names and other fields of the
+ * central directory are not copied: they are read in place from
+ * {@link ZipCentralDirectory}, which maps them from the file (outside of the
+ * Java heap). So the table creates no objects per entry, no matter how many
+ * entries the file has.
+ * </p>
+ * <p>
+ * Rows are written by a single thread while the table is being filled, and
+ * can be read by other threads after that.
+ * </p>
+ *
+ * @author Hai Bison
+ * @since v1.8.6 beta
+ */
+public class ZipEntryTable {
+
+    private final ZipCentralDirectory mCentralDir;
+
+    /*
+     * Columns of input file.
+     */
+
+    private final long[] mHeaderOffsets;
+    private final int[] mHeaderSizes;
+    private final long[] mDataLengths;
+
+    /*
+     * Columns of output file, if any.
+     */
+
+    private final long[] mOutputHeaderOffsets;
+    private final int[] mOutputHeaderSizes;
+    private final int[] mPaddings;
+
+    /*
+     * Columns of recompressed data, if any.
+     */
+
+    private final short[] mMethods;
+    private final int[] mSpools;
+    private final long[] mRecompressedOffsets;
+    private final long[] mRecompressedSizes;
+
+    /*
+     * Other columns.
+     */
+
+    private final int[] mAlignments;
+    private final byte[] mFlags;
+
+    /**
+     * Creates new instance, with columns of input file only.
+     *
+     * @param centralDir
+     *            the central directory.
+     */
+    public ZipEntryTable(ZipCentralDirectory centralDir) {
+        this(centralDir, false);
+    }// ZipEntryTable()
+
+    /**
+     * Creates new instance.
+     *
+     * @param centralDir
+     *            the central directory.
+     * @param output
+     *            {@code true} to create columns of output file as well.
+     */
+    public ZipEntryTable(ZipCentralDirectory centralDir, boolean output) {
+        this(centralDir, output, false);
+    }// ZipEntryTable()
+
+    /**
+     * Creates new instance.
+     *
+     * @param centralDir
+     *            the central directory.
+     * @param output
+     *            {@code true} to create columns of output file as well.
+     * @param recompressed
+     *            {@code true} to create columns of recompressed data as well.
+     */
+    public ZipEntryTable(ZipCentralDirectory centralDir, boolean output,
+            boolean recompressed) {
+        mCentralDir = centralDir;
+
+        final int size = centralDir.size();
+        mHeaderOffsets = new long[size];
+        mHeaderSizes = new int[size];
+        mDataLengths = new long[size];
+        mOutputHeaderOffsets = output ? new long[size] : null;
+        mOutputHeaderSizes = output ? new int[size] : null;
+        mPaddings = output ? new int[size] : null;
+        mMethods = recompressed ? new short[size] : null;
+        mSpools = recompressed ? new int[size] : null;
+        mRecompressedOffsets = recompressed ? new long[size] : null;
+        mRecompressedSizes = recompressed ? new long[size] : null;
+        if (recompressed)
+            Arrays.fill(mRecompressedSizes, -1);
+        mAlignments = new int[size];
+        mFlags = new byte[size];
+    }// ZipEntryTable()
+
+    /**
+     * Gets the central directory.
+     *
+     * @return the central directory.
+     */
+    public ZipCentralDirectory getCentralDirectory() {
+        return mCentralDir;
+    }// getCentralDirectory()
+
+    /**
+     * Gets total entries.
+     *
+     * @return total entries.
+     */
+    public int size() {
+        return mHeaderOffsets.length;
+    }// size()
+
+    /**
+     * Gets the name of an entry.
+     *
+     * @param index
+     *            the entry index.
+     * @return the name.
+     */
+    public String getName(int index) {
+        return mCentralDir.getName(index);
+    }// getName()
+
+    /**
+     * Sets the local header of an entry in input file.
+     *
+     * @param index
+     *            the entry index.
+     * @param offset
+     *            the offset of the local header.
+     * @param size
+     *            the size of the local header, including name and "extra"
+     *            field.
+     */
+    public void setHeader(int index, long offset, int size) {
+        mHeaderOffsets[index] = offset;
+        mHeaderSizes[index] = size;
+    }// setHeader()
+
+    /**
+     * Gets the offset of an entry's local header in input file.
+     *
+     * @param index
+     *            the entry index.
+     * @return the offset.
+     */
+    public long getHeaderOffset(int index) {
+        return mHeaderOffsets[index];
+    }// getHeaderOffset()
+
+    /**
+     * Gets the size of an entry's local header in input file.
+     *
+     * @param index
+     *            the entry index.
+     * @return the size.
+     */
+    public int getHeaderSize(int index) {
+        return mHeaderSizes[index];
+    }// getHeaderSize()
+
+    /**
+     * Gets the offset of an entry's data in input file.
+     *
+     * @param index
+     *            the entry index.
+     * @return the offset.
+     */
+    public long getDataOffset(int index) {
+        return mHeaderOffsets[index] + mHeaderSizes[index];
+    }// getDataOffset()
+
+    /**
+     * Sets the length of an entry's data.
+     *
+     * @param index
+     *            the entry index.
+     * @param length
+     *            the length, including the data descriptor (if any).
+     */
+    public void setDataLength(int index, long length) {
+        mDataLengths[index] = length;
+    }// setDataLength()
+
+    /**
+     * Gets the length of an entry's data, including the data descriptor (if
+     * any).
+     *
+     * @param index
+     *            the entry index.
+     * @return the length.
+     */
+    public long getDataLength(int index) {
+        return mDataLengths[index];
+    }// getDataLength()
+
+    /**
+     * Sets the local header of an entry in output file.
+     *
+     * @param index
+     *            the entry index.
+     * @param offset
+     *            the offset of the local header.
+     * @param size
+     *            the size of the local header.
+     * @param padding
+     *            the padding of the "extra" field, or the size of the
+     *            alignment record.
+     */
+    public void setOutputHeader(int index, long offset, int size, int padding) {
+        mOutputHeaderOffsets[index] = offset;
+        mOutputHeaderSizes[index] = size;
+        mPaddings[index] = padding;
+    }// setOutputHeader()
+
+    /**
+     * Gets the offset of an entry's local header in output file.
+     *
+     * @param index
+     *            the entry index.
+     * @return the offset.
+     */
+    public long getOutputHeaderOffset(int index) {
+        return mOutputHeaderOffsets[index];
+    }// getOutputHeaderOffset()
+
+    /**
+     * Gets the size of an entry's local header in output file.
+     *
+     * @param index
+     *            the entry index.
+     * @return the size.
+     */
+    public int getOutputHeaderSize(int index) {
+        return mOutputHeaderSizes[index];
+    }// getOutputHeaderSize()
+
+    /**
+     * Gets the padding of an entry in output file.
+     *
+     * @param index
+     *            the entry index.
+     * @return the padding of the "extra" field, or the size of the alignment
+     *         record.
+     */
+    public int getPadding(int index) {
+        return mPaddings[index];
+    }// getPadding()
+
+    /**
+     * Sets the recompressed data of an entry. This method can be called from
+     * several threads, for different entries.
+     *
+     * @param index
+     *            the entry index.
+     * @param method
+     *            the compression method of the data.
+     * @param spool
+     *            the index of the spool file which holds the data.
+     * @param offset
+     *            the offset of the data in the spool file.
+     * @param size
+     *            the size of the data.
+     */
+    public void setRecompressed(int index, int method, int spool,
+            long offset, long size) {
+        mMethods[index] = (short) method;
+        mSpools[index] = spool;
+        mRecompressedOffsets[index] = offset;
+        mRecompressedSizes[index] = size;
+    }// setRecompressed()
+
+    /**
+     * Checks if an entry has been recompressed.
+     *
+     * @param index
+     *            the entry index.
+     * @return {@code true} or {@code false}.
+     */
+    public boolean isRecompressed(int index) {
+        return mRecompressedSizes != null && mRecompressedSizes[index] >= 0;
+    }// isRecompressed()
+
+    /**
+     * Gets the compression method of an entry in output file.
+     *
+     * @param index
+     *            the entry index.
+     * @return the method of recompressed data if the entry has been
+     *         recompressed, or the original method.
+     */
+    public int getMethod(int index) {
+        return isRecompressed(index) ? mMethods[index] : mCentralDir
+                .getMethod(index);
+    }// getMethod()
+
+    /**
+     * Gets the index of the spool file which holds an entry's recompressed
+     * data.
+     *
+     * @param index
+     *            the entry index.
+     * @return the spool file index.
+     */
+    public int getSpool(int index) {
+        return mSpools[index];
+    }// getSpool()
+
+    /**
+     * Gets the offset of an entry's recompressed data in its spool file.
+     *
+     * @param index
+     *            the entry index.
+     * @return the offset.
+     */
+    public long getRecompressedOffset(int index) {
+        return mRecompressedOffsets[index];
+    }// getRecompressedOffset()
+
+    /**
+     * Gets the size of an entry's recompressed data.
+     *
+     * @param index
+     *            the entry index.
+     * @return the size, {@code -1} if the entry has not been recompressed.
+     */
+    public long getRecompressedSize(int index) {
+        return mRecompressedSizes != null ? mRecompressedSizes[index] : -1;
+    }// getRecompressedSize()
+
+    /**
+     * Sets the alignment of an entry.
+     *
+     * @param index
+     *            the entry index.
+     * @param alignment
+     *            the alignment, {@code 0} if the entry is compressed.
+     */
+    public void setAlignment(int index, int alignment) {
+        mAlignments[index] = alignment;
+    }// setAlignment()
+
+    /**
+     * Gets the alignment of an entry.
+     *
+     * @param index
+     *            the entry index.
+     * @return the alignment, {@code 0} if the entry is compressed.
+     */
+    public int getAlignment(int index) {
+        return mAlignments[index];
+    }// getAlignment()
+
+    /**
+     * Sets the flags of an entry.
+     *
+     * @param index
+     *            the entry index.
+     * @param flags
+     *            the flags, their meaning is up to the user of this table.
+     */
+    public void setFlags(int index, int flags) {
+        mFlags[index] = (byte) flags;
+    }// setFlags()
+
+    /**
+     * Gets the flags of an entry.
+     *
+     * @param index
+     *            the entry index.
+     * @return the flags.
+     */
+    public int getFlags(int index) {
+        return mFlags[index] & 0xff;
+    }// getFlags()
+}
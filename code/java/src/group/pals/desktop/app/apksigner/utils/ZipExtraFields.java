@@ -0,0 +1,226 @@
+/*
+ *    Copyright (C) 2012 Hai Bison
+ *
+ *    See the file LICENSE at the root directory of this project for copying
+ *    permission.
+ */
+
+package group.pals.desktop.app.apksigner.utils;
+
+/**
+ * Utilities for "extra" fields of ZIP entries.
+ * <p>
+ * An "extra" field is a sequence of records, each of them starts with a
+ * 16-bit header ID and a 16-bit data size (little-endian), followed by the
+ * data.
+ * </p>
+ *
+ * @author Hai Bison
+ * @since v1.8.6 beta
+ */
+public class ZipExtraFields {
+
+    /**
+     * Header ID of ZIP64 extended information.
+     */
+    public static final int ZIP64 = 0x0001;
+
+    /**
+     * Header ID of Android's alignment record. Its data is a 16-bit
+     * alignment value, followed by zero padding.
+     */
+    public static final int ALIGNMENT = 0xd935;
+
+    /**
+     * Minimum size of an alignment record (header and alignment value).
+     */
+    public static final int ALIGNMENT_RECORD_MIN_LEN = 6;
+
+    /**
+     * Size of a record's header (header ID and data size).
+     */
+    public static final int RECORD_HEADER_LEN = 4;
+
+    /**
+     * Finds a record.
+     *
+     * @param extra
+     *            the "extra" field.
+     * @param off
+     *            the offset of the "extra" field in {@code extra}.
+     * @param len
+     *            the length of the "extra" field.
+     * @param headerId
+     *            the header ID to find.
+     * @return the offset of the record in {@code extra}, or {@code -1} if not
+     *         found.
+     */
+    public static int find(byte[] extra, int off, int len, int headerId) {
+        final int end = off + len;
+        int pos = off;
+        while (pos + RECORD_HEADER_LEN <= end) {
+            if (u16(extra, pos) == headerId)
+                return pos;
+            pos += RECORD_HEADER_LEN + u16(extra, pos + 2);
+        }
+
+        return -1;
+    }// find()
+
+    /**
+     * Removes all records of {@code headerId}, in place.
+     *
+     * @param extra
+     *            the "extra" field.
+     * @param off
+     *            the offset of the "extra" field in {@code extra}.
+     * @param len
+     *            the length of the "extra" field.
+     * @param headerId
+     *            the header ID to remove.
+     * @return the new length of the "extra" field.
+     */
+    public static int remove(byte[] extra, int off, int len, int headerId) {
+        int pos;
+        while ((pos = find(extra, off, len, headerId)) >= 0) {
+            final int recordLen = Math.min(off + len - pos, RECORD_HEADER_LEN
+                    + u16(extra, pos + 2));
+            System.arraycopy(extra, pos + recordLen, extra, pos, off + len
+                    - pos - recordLen);
+            len -= recordLen;
+        }
+
+        return len;
+    }// remove()
+
+    /**
+     * Removes all records but the ones of {@code headerId}, in place, in one
+     * pass. Trailing bytes which don't make a complete record are removed
+     * too.
+     *
+     * @param extra
+     *            the "extra" field.
+     * @param off
+     *            the offset of the "extra" field in {@code extra}.
+     * @param len
+     *            the length of the "extra" field.
+     * @param headerId
+     *            the header ID to keep.
+     * @return the new length of the "extra" field.
+     */
+    public static int keep(byte[] extra, int off, int len, int headerId) {
+        final int end = off + len;
+        int pos = off;
+        int newEnd = off;
+        while (pos + RECORD_HEADER_LEN <= end) {
+            final int recordLen = RECORD_HEADER_LEN + u16(extra, pos + 2);
+            if (pos + recordLen > end)
+                break;
+
+            if (u16(extra, pos) == headerId) {
+                System.arraycopy(extra, pos, extra, newEnd, recordLen);
+                newEnd += recordLen;
+            }
+            pos += recordLen;
+        }// while
+
+        return newEnd - off;
+    }// keep()
+
+    /**
+     * Removes alignment records and padding, in place, in one pass. These
+     * are removed: records of {@link #ALIGNMENT}, records of header ID
+     * {@code 0} (which are runs of zeros, added by tools which pad with raw
+     * zeros), and trailing bytes which don't make a complete record.
+     *
+     * @param extra
+     *            the "extra" field.
+     * @param off
+     *            the offset of the "extra" field in {@code extra}.
+     * @param len
+     *            the length of the "extra" field.
+     * @return the new length of the "extra" field.
+     */
+    public static int removeAlignment(byte[] extra, int off, int len) {
+        final int end = off + len;
+        int pos = off;
+        int newEnd = off;
+        while (pos + RECORD_HEADER_LEN <= end) {
+            final int headerId = u16(extra, pos);
+            final int recordLen = RECORD_HEADER_LEN + u16(extra, pos + 2);
+            if (pos + recordLen > end)
+                break;
+
+            if (headerId != ALIGNMENT && headerId != 0) {
+                System.arraycopy(extra, pos, extra, newEnd, recordLen);
+                newEnd += recordLen;
+            }
+            pos += recordLen;
+        }// while
+
+        return newEnd - off;
+    }// removeAlignment()
+
+    /**
+     * Fetches unsigned 16-bit value from byte array at specified offset. The
+     * bytes are assumed to be in Intel (little-endian) byte order.
+     *
+     * @param b
+     *            the byte array.
+     * @param off
+     *            the offset.
+     * @return the value.
+     */
+    public static int u16(byte[] b, int off) {
+        return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8);
+    }// u16()
+
+    /**
+     * Fetches 64-bit value from byte array at specified offset. The bytes are
+     * assumed to be in Intel (little-endian) byte order.
+     *
+     * @param b
+     *            the byte array.
+     * @param off
+     *            the offset.
+     * @return the value.
+     */
+    public static long u64(byte[] b, int off) {
+        long result = 0;
+        for (int i = 7; i >= 0; i--)
+            result = (result << 8) | (b[off + i] & 0xff);
+        return result;
+    }// u64()
+
+    /**
+     * Puts a 16-bit value into byte array at specified offset, in Intel
+     * (little-endian) byte order.
+     *
+     * @param b
+     *            the byte array.
+     * @param off
+     *            the offset.
+     * @param v
+     *            the value.
+     */
+    public static void put16(byte[] b, int off, int v) {
+        b[off] = (byte) v;
+        b[off + 1] = (byte) (v >>> 8);
+    }// put16()
+
+    /**
+     * Puts a 64-bit value into byte array at specified offset, in Intel
+     * (little-endian) byte order.
+     *
+     * @param b
+     *            the byte array.
+     * @param off
+     *            the offset.
+     * @param v
+     *            the value.
+     */
+    public static void put64(byte[] b, int off, long v) {
+        for (int i = 0; i < 8; i++)
+            b[off + i] = (byte) (v >>> (8 * i));
+    }// put64()
+}
@@ -0,0 +1,240 @@
+/*
+ *    Copyright (C) 2012 Hai Bison
+ *
+ *    See the file LICENSE at the root directory of this project for copying
+ *    permission.
+ */
+
+package group.pals.desktop.app.apksigner.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+
+/**
+ * Storage policy of ZIP entries: which compression method they should have
+ * in output file.
+ * <p>
+ * A policy is an ordered list of rules, each of them maps entry names (by a
+ * glob or a regular expression, see {@link ZipAlignmentPolicy}) to
+ * {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}. The first matching
+ * rule wins, and entries which match no rules keep their methods.
+ * </p>
+ *
+ * @author Hai Bison
+ * @since v1.8.6 beta
+ */
+public class ZipStoragePolicy {
+
+    /**
+     * Globs of entries which should be stored in APK files: the resource
+     * table and native libraries, so they can be mapped directly from the APK
+     * file, and media files which are already compressed.
+     */
+    public static final String[] APK_STORED_GLOBS = { "resources.arsc",
+            ZipAlignmentPolicy.GLOB_NATIVE_LIBRARIES, "**/*.png", "**/*.jpg",
+            "**/*.jpeg", "**/*.gif", "**/*.webp", "**/*.ogg", "**/*.mp3",
+            "**/*.aac", "**/*.m4a", "**/*.mp4", "**/*.3gp", "**/*.webm",
+            "**/*.mkv", "**/*.amr" };
+
+    /**
+     * Creates new policy for APK files, which stores entries matching
+     * {@link #APK_STORED_GLOBS}.
+     *
+     * @return the new policy.
+     */
+    public static ZipStoragePolicy newApkPolicy() {
+        final ZipStoragePolicy result = new ZipStoragePolicy();
+        for (String glob : APK_STORED_GLOBS)
+            result.addGlob(glob, ZipEntry.STORED);
+        return result;
+    }// newApkPolicy()
+
+    /**
+     * A rule.
+     *
+     * @author Hai Bison
+     * @since v1.8.6 beta
+     */
+    private static class Rule {
+
+        final String expression;
+        final boolean glob;
+        final Pattern pattern;
+        final int method;
+
+        /**
+         * Creates new instance.
+         *
+         * @param expression
+         *            the glob or regular expression, as given by user.
+         * @param glob
+         *            {@code true} if {@code expression} is a glob.
+         * @param pattern
+         *            the pattern of entry names.
+         * @param method
+         *            the compression method.
+         */
+        Rule(String expression, boolean glob, Pattern pattern, int method) {
+            this.expression = expression;
+            this.glob = glob;
+            this.pattern = pattern;
+            this.method = method;
+        }// Rule()
+    }// Rule
+
+    private final List<Rule> mRules = new ArrayList<Rule>();
+
+    /**
+     * Adds new rule. Rules are checked in the order they were added.
+     *
+     * @param glob
+     *            the glob of entry names.
+     * @param method
+     *            {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}.
+     * @return the instance of this policy, to allow chaining multiple calls
+     *         into a single statement.
+     */
+    public ZipStoragePolicy addGlob(String glob, int method) {
+        mRules.add(new Rule(glob, true, Pattern.compile(ZipAlignmentPolicy
+                .globToRegex(glob)), checkMethod(method)));
+        return this;
+    }// addGlob()
+
+    /**
+     * Adds new rule. Rules are checked in the order they were added.
+     *
+     * @param regex
+     *            the regular expression of entry names, it must match whole
+     *            names.
+     * @param method
+     *            {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}.
+     * @return the instance of this policy, to allow chaining multiple calls
+     *         into a single statement.
+     */
+    public ZipStoragePolicy addRegex(String regex, int method) {
+        mRules.add(new Rule(regex, false, Pattern.compile(regex),
+                checkMethod(method)));
+        return this;
+    }// addRegex()
+
+    /**
+     * Gets number of rules.
+     *
+     * @return number of rules.
+     */
+    public int getRuleCount() {
+        return mRules.size();
+    }// getRuleCount()
+
+    /**
+     * Gets the glob or regular expression of a rule.
+     *
+     * @param rule
+     *            the rule index.
+     * @return the glob or regular expression.
+     */
+    public String getExpression(int rule) {
+        return mRules.get(rule).expression;
+    }// getExpression()
+
+    /**
+     * Gets the compression method of a rule.
+     *
+     * @param rule
+     *            the rule index.
+     * @return the compression method.
+     */
+    public int getMethod(int rule) {
+        return mRules.get(rule).method;
+    }// getMethod()
+
+    /**
+     * Finds the rule of an entry.
+     *
+     * @param name
+     *            the entry name.
+     * @return the index of the first matching rule, or {@code -1} if there
+     *         is none.
+     */
+    public int findRule(String name) {
+        for (int i = 0; i < mRules.size(); i++)
+            if (mRules.get(i).pattern.matcher(name).matches())
+                return i;
+        return -1;
+    }// findRule()
+
+    /**
+     * Gets the compression method of an entry.
+     *
+     * @param name
+     *            the entry name.
+     * @param method
+     *            the current compression method of the entry.
+     * @return the compression method of the first matching rule, or
+     *         {@code method} if there is none.
+     */
+    public int getMethod(String name, int method) {
+        final int rule = findRule(name);
+        return rule >= 0 ? getMethod(rule) : method;
+    }// getMethod()
+
+    /**
+     * Returns a short description of this policy, for example
+     * {@code "resources.arsc: STORED; lib/**}{@code /*.so: STORED"}.
+     */
+    @Override
+    public String toString() {
+        final StringBuilder result = new StringBuilder();
+        for (Rule rule : mRules) {
+            if (result.length() > 0)
+                result.append("; ");
+            result.append(String.format("%s: %s", rule.expression,
+                    methodToString(rule.method)));
+        }
+        return result.toString();
+    }// toString()
+
+    /**
+     * Gets an unambiguous description of this policy, which doesn't depend
+     * on the locale, to be used in keys of {@link ResultCache}. Unlike
+     * {@link #toString()}, it tells globs from regular expressions.
+     *
+     * @return the description.
+     */
+    public String getKey() {
+        final StringBuilder result = new StringBuilder();
+        for (Rule rule : mRules)
+            ZipAlignmentPolicy.appendRuleKey(result, rule.glob,
+                    rule.expression, rule.method);
+        return result.toString();
+    }// getKey()
+
+    /**
+     * Gets the name of a compression method.
+     *
+     * @param method
+     *            the compression method.
+     * @return the name.
+     */
+    public static String methodToString(int method) {
+        return method == ZipEntry.STORED ? "STORED" : "DEFLATED";
+    }// methodToString()
+
+    /**
+     * Checks a compression method.
+     *
+     * @param method
+     *            the compression method.
+     * @return the compression method.
+     * @throws IllegalArgumentException
+     *             if the method is not supported.
+     */
+    private static int checkMethod(int method) {
+        if (method != ZipEntry.STORED && method != ZipEntry.DEFLATED)
+            throw new IllegalArgumentException(String.format(
+                    "Invalid compression method: %,d", method));
+        return method;
+    }// checkMethod()
+}